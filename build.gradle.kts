@@ -13,6 +13,12 @@ repositories {
     jcenter()
 }
 
+// JMH benchmarks of the DAO in src/jmh
+val jmhSourceSet = sourceSets.create("jmh") {
+    compileClasspath += sourceSets["main"].output + sourceSets["main"].compileClasspath
+    runtimeClasspath += sourceSets["main"].output + sourceSets["main"].runtimeClasspath
+}
+
 dependencies {
     // Logging
     compile("org.slf4j:slf4j-api:1.7.26")
@@ -27,6 +33,10 @@ dependencies {
     // JUnit Jupiter test framework
     testCompile("org.junit.jupiter:junit-jupiter-api:5.4.0")
     testRuntime("org.junit.jupiter:junit-jupiter-engine:5.4.0")
+
+    // JMH benchmarks
+    "jmhCompile"("org.openjdk.jmh:jmh-core:1.21")
+    "jmhAnnotationProcessor"("org.openjdk.jmh:jmh-generator-annprocess:1.21")
 }
 
 val run by tasks.getting(JavaExec::class) {
@@ -38,6 +48,17 @@ tasks {
         maxHeapSize = "128m"
         useJUnitPlatform()
     }
+
+    // Runs the benchmarks with the allocation profiler, JMH options may be passed in the property,
+    // e.g. ./gradlew jmh -Pjmh="GetBenchmark -p ssTables=8 -p hitRatio=0.5"
+    register<JavaExec>("jmh") {
+        group = "benchmark"
+        description = "Runs the JMH benchmarks"
+        classpath = jmhSourceSet.runtimeClasspath
+        main = "org.openjdk.jmh.Main"
+        val options = (project.findProperty("jmh") as String?).orEmpty()
+        args = listOf("-prof", "gc") + options.split(" ").filter { it.isNotEmpty() }
+    }
 }
 
 application {
@@ -0,0 +1,133 @@
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+import ru.mail.polis.vasekha.Config;
+import ru.mail.polis.vasekha.MemTableMode;
+import ru.mail.polis.vasekha.MyDAO;
+import ru.mail.polis.vasekha.SyncPolicy;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.SplittableRandom;
+
+/**
+ * Data of the benchmarks. The key of the index is the index as a big-endian long padded with zeros to the key size,
+ * so that the keys are sorted like the indices and the absent keys are the indices past the written ones.
+ */
+public final class Benchmarks {
+    /**
+     * The size of the data written before the reads, it fits the memTables of the forked JVM with the small heap.
+     */
+    static final long DATA_BYTES = 16 * 1024 * 1024;
+
+    private Benchmarks() {
+        // Don't instantiate
+    }
+
+    /**
+     * The order in which the keys are written or read.
+     */
+    public enum Order {
+        SEQUENTIAL,
+        RANDOM
+    }
+
+    /**
+     * Returns the source of the indices of the keys in the order.
+     *
+     * @param order the order
+     * @param count the number of keys, the indices are taken modulo it
+     */
+    @NotNull
+    static Indices indices(@NotNull final Order order, final long count) {
+        if (order == Order.SEQUENTIAL) {
+            return new Indices() {
+                private long next;
+
+                @Override
+                public long next() {
+                    final long result = next;
+                    next = next + 1 == count ? 0 : next + 1;
+                    return result;
+                }
+            };
+        }
+        final SplittableRandom random = new SplittableRandom(count);
+        return () -> random.nextLong(count);
+    }
+
+    /**
+     * Source of the indices of the keys.
+     */
+    interface Indices {
+        long next();
+    }
+
+    @NotNull
+    static ByteBuffer key(final long index, final int size) {
+        return ByteBuffer.allocate(size).putLong(0, index);
+    }
+
+    @NotNull
+    static ByteBuffer value(final int size) {
+        final byte[] result = new byte[size];
+        new SplittableRandom(size).nextBytes(result);
+        return ByteBuffer.wrap(result);
+    }
+
+    /**
+     * Returns the number of the keys which make up the data of the benchmarks.
+     */
+    static long count(final int keySize, final int valueSize) {
+        return DATA_BYTES / (keySize + valueSize);
+    }
+
+    @NotNull
+    static File tempDir() throws IOException {
+        return java.nio.file.Files.createTempDirectory("dao-jmh").toFile();
+    }
+
+    /**
+     * Writes the keys to the given number of SSTables, every table covers the whole key range,
+     * like the tables of level 0 do before they are compacted.
+     *
+     * @param data      the folder of the DAO
+     * @param config    the parameters of the DAO, which must not compact the tables
+     * @param count     the number of keys
+     * @param keySize   the size of keys
+     * @param valueSize the size of values
+     * @param ssTables  the number of SSTables
+     */
+    static void fill(
+            @NotNull final File data,
+            @NotNull final Config config,
+            final long count,
+            final int keySize,
+            final int valueSize,
+            final int ssTables) throws IOException {
+        final ByteBuffer value = value(valueSize);
+        for (int table = 0; table < ssTables; table++) {
+            // Closing the DAO flushes its memTable to a single table
+            try (MyDAO dao = new MyDAO(data, config)) {
+                for (long i = table; i < count; i += ssTables) {
+                    dao.upsert(key(i, keySize), value.duplicate());
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the parameters which keep the data in the off-heap memTable until the DAO is closed
+     * and let the SSTables pile up at level 0 without compactions.
+     */
+    @NotNull
+    static Config uncompacted() {
+        return Config.builder()
+                .flushThresholdBytes(DATA_BYTES * 2)
+                .memTableMode(MemTableMode.OFF_HEAP)
+                .syncPolicy(SyncPolicy.NONE)
+                .levelZeroCompactionTrigger(Integer.MAX_VALUE)
+                .build();
+    }
+}
@@ -0,0 +1,63 @@
+package ru.mail.polis;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.mail.polis.vasekha.MyDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time of the compaction of the SSTables which all cover the whole key range.
+ * Every iteration fills a fresh folder and measures a single compaction.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = "-Xmx128m")
+public class CompactBenchmark {
+    @Param({"16"})
+    private int keySize;
+
+    @Param({"16", "1024"})
+    private int valueSize;
+
+    @Param({"4", "16"})
+    private int ssTables;
+
+    private File data;
+    private MyDAO dao;
+
+    @Setup(Level.Iteration)
+    public void setUp() throws IOException {
+        data = Benchmarks.tempDir();
+        final long count = Benchmarks.count(keySize, valueSize);
+        Benchmarks.fill(data, Benchmarks.uncompacted(), count, keySize, valueSize, ssTables);
+        dao = new MyDAO(data, Benchmarks.uncompacted());
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws IOException {
+        dao.close();
+        Files.recursiveDelete(data);
+    }
+
+    @Benchmark
+    public void compact() throws IOException {
+        dao.compact();
+    }
+}
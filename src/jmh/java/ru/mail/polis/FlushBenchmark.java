@@ -0,0 +1,63 @@
+package ru.mail.polis;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.mail.polis.vasekha.MyDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time of the flush of the memTable holding the whole data, which is done by closing the DAO.
+ * Every iteration fills a fresh folder and measures a single flush.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = "-Xmx128m")
+public class FlushBenchmark {
+    @Param({"16", "64"})
+    private int keySize;
+
+    @Param({"16", "1024"})
+    private int valueSize;
+
+    private File data;
+    private MyDAO dao;
+
+    @Setup(Level.Iteration)
+    public void setUp() throws IOException {
+        data = Benchmarks.tempDir();
+        dao = new MyDAO(data, Benchmarks.uncompacted());
+        final ByteBuffer value = Benchmarks.value(valueSize);
+        final long count = Benchmarks.count(keySize, valueSize);
+        for (long i = 0; i < count; i++) {
+            dao.upsert(Benchmarks.key(i, keySize), value.duplicate());
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws IOException {
+        Files.recursiveDelete(data);
+    }
+
+    @Benchmark
+    public void flush() throws IOException {
+        dao.close();
+    }
+}
@@ -0,0 +1,86 @@
+package ru.mail.polis;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.mail.polis.vasekha.MyDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.NoSuchElementException;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of point reads from the SSTables which all cover the whole key range, the hits are found
+ * in one of them and the misses are mostly rejected by the bloom filters.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx128m")
+public class GetBenchmark {
+    @Param({"16", "64"})
+    private int keySize;
+
+    @Param({"16", "1024"})
+    private int valueSize;
+
+    @Param({"1", "8"})
+    private int ssTables;
+
+    @Param({"1.0", "0.5", "0.0"})
+    private double hitRatio;
+
+    @Param({"SEQUENTIAL", "RANDOM"})
+    private Benchmarks.Order order;
+
+    private File data;
+    private MyDAO dao;
+    private long count;
+    private Benchmarks.Indices indices;
+    private SplittableRandom random;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        data = Benchmarks.tempDir();
+        count = Benchmarks.count(keySize, valueSize);
+        Benchmarks.fill(data, Benchmarks.uncompacted(), count, keySize, valueSize, ssTables);
+        dao = new MyDAO(data, Benchmarks.uncompacted());
+        indices = Benchmarks.indices(order, count);
+        random = new SplittableRandom(count);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        dao.close();
+        Files.recursiveDelete(data);
+    }
+
+    /**
+     * Returns the value or null if the key is a miss, the cost of the exception is a part of the miss.
+     */
+    @Benchmark
+    public ByteBuffer get() {
+        final long index = indices.next();
+        final boolean hit = random.nextDouble() < hitRatio;
+        try {
+            return dao.get(Benchmarks.key(hit ? index : count + index, keySize));
+        } catch (NoSuchElementException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package ru.mail.polis;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import ru.mail.polis.vasekha.CloseableIterator;
+import ru.mail.polis.vasekha.MyDAO;
+import ru.mail.polis.vasekha.RecordCursor;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of range scans merging the SSTables which all cover the whole key range,
+ * through the iterator of records and through the cursor which does not materialize them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx128m")
+public class ScanBenchmark {
+    @Param({"16"})
+    private int keySize;
+
+    @Param({"16", "1024"})
+    private int valueSize;
+
+    @Param({"1", "8"})
+    private int ssTables;
+
+    @Param({"100", "10000"})
+    private int length;
+
+    @Param({"SEQUENTIAL", "RANDOM"})
+    private Benchmarks.Order order;
+
+    private File data;
+    private MyDAO dao;
+    private Benchmarks.Indices indices;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        data = Benchmarks.tempDir();
+        final long count = Benchmarks.count(keySize, valueSize);
+        Benchmarks.fill(data, Benchmarks.uncompacted(), count, keySize, valueSize, ssTables);
+        dao = new MyDAO(data, Benchmarks.uncompacted());
+        indices = Benchmarks.indices(order, Math.max(1, count - length));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        dao.close();
+        Files.recursiveDelete(data);
+    }
+
+    @Benchmark
+    public void iterator(final Blackhole blackhole) {
+        try (CloseableIterator<Record> iterator = dao.iterator(Benchmarks.key(indices.next(), keySize))) {
+            for (int i = 0; i < length && iterator.hasNext(); i++) {
+                blackhole.consume(iterator.next());
+            }
+        }
+    }
+
+    @Benchmark
+    public void cursor(final Blackhole blackhole) {
+        try (RecordCursor cursor = dao.cursor(Benchmarks.key(indices.next(), keySize), null)) {
+            for (int i = 0; i < length && cursor.advance(); i++) {
+                blackhole.consume(cursor.key());
+                blackhole.consume(cursor.value());
+            }
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package ru.mail.polis;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.mail.polis.vasekha.Config;
+import ru.mail.polis.vasekha.MemTableMode;
+import ru.mail.polis.vasekha.MyDAO;
+import ru.mail.polis.vasekha.SyncPolicy;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of writes including the write-ahead log, the flushes and the compactions they cause.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx128m")
+public class UpsertBenchmark {
+    @Param({"16", "64"})
+    private int keySize;
+
+    @Param({"16", "1024"})
+    private int valueSize;
+
+    @Param({"SEQUENTIAL", "RANDOM"})
+    private Benchmarks.Order order;
+
+    @Param({"HEAP", "OFF_HEAP"})
+    private MemTableMode memTableMode;
+
+    @Param({"NONE", "ALWAYS"})
+    private SyncPolicy syncPolicy;
+
+    private File data;
+    private MyDAO dao;
+    private Benchmarks.Indices indices;
+    private ByteBuffer value;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        data = Benchmarks.tempDir();
+        final Config config = Config.builder()
+                .memTableMode(memTableMode)
+                .syncPolicy(syncPolicy)
+                .build();
+        dao = new MyDAO(data, config);
+        // Random keys are drawn from the wider range, so that they are mostly new ones as the sequential keys are
+        indices = Benchmarks.indices(order, Long.MAX_VALUE);
+        value = Benchmarks.value(valueSize);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        dao.close();
+        Files.recursiveDelete(data);
+    }
+
+    @Benchmark
+    public void upsert() throws IOException {
+        dao.upsert(Benchmarks.key(indices.next(), keySize), value.duplicate());
+    }
+}
@@ -0,0 +1,534 @@
+package ru.mail.polis.vasekha;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Sorted rows of an SSTable which are read together.
+ * Keys are prefix compressed: each row stores only the suffix which differs from the key of the previous row,
+ * except the rows at restart points which store the whole key and may be found with binary search.
+ * Block format: rows | array of offsets of restart points | restart points count
+ * Row format: shared prefix size | suffix size | suffix | timestamp | value size * 2 | value
+ * if value expires
+ * shared prefix size | suffix size | suffix | timestamp | value size * 2 + 1 | expiration time | value
+ * if value is tombstone
+ * shared prefix size | suffix size | suffix | -timestamp
+ * Sizes are stored as varints.
+ * Blocks of version 1 files have a restart point at every row and store sizes as ints without the prefix size.
+ */
+final class Block {
+    private static final int VARINT_MASK = 0x7F;
+    private static final int VARINT_MORE = 0x80;
+    private static final byte[] NO_KEY = new byte[0];
+    private static final ByteBuffer NO_KEY_BUFFER = ByteBuffer.wrap(NO_KEY);
+
+    private final ByteBuffer rowsBuffer;
+    private final IntBuffer restartsBuffer;
+    private final int restartsCount;
+    private final boolean legacy;
+    private final long[] fences;
+
+    /**
+     * Reads the block which occupies the whole buffer.
+     *
+     * @param buffer the buffer with the block
+     * @param legacy whether the block is written in the format of version 1
+     * @throws IllegalArgumentException if the block is malformed
+     */
+    Block(@NotNull final ByteBuffer buffer, final boolean legacy) {
+        if (buffer.limit() < Integer.BYTES) {
+            throw new IllegalArgumentException("Invalid block");
+        }
+        this.legacy = legacy;
+        this.restartsCount = buffer.getInt(buffer.limit() - Integer.BYTES);
+        final long position = buffer.limit() - (long) Integer.BYTES * restartsCount - Integer.BYTES;
+        if (restartsCount < 0 || position < 0) {
+            throw new IllegalArgumentException("Invalid block");
+        }
+        this.restartsBuffer = buffer.duplicate()
+                .position((int) position)
+                .limit(buffer.limit() - Integer.BYTES)
+                .slice()
+                .asIntBuffer()
+                .asReadOnlyBuffer();
+        this.rowsBuffer = buffer.duplicate()
+                .limit((int) position)
+                .slice()
+                .asReadOnlyBuffer();
+        this.fences = null;
+    }
+
+    private Block(@NotNull final Block block, @NotNull final long[] fences) {
+        this.rowsBuffer = block.rowsBuffer;
+        this.restartsBuffer = block.restartsBuffer;
+        this.restartsCount = block.restartsCount;
+        this.legacy = block.legacy;
+        this.fences = fences;
+    }
+
+    /**
+     * Returns the same block which keeps the prefixes of the restart keys in an array,
+     * so that the binary search decodes the rows only when the prefixes of the keys are equal,
+     * which is worth it for the blocks which are searched many times, e.g. the index.
+     */
+    @NotNull
+    Block withFences() {
+        final long[] prefixes = new long[restartsCount];
+        for (int i = 0; i < restartsCount; i++) {
+            final Cursor cursor = new Cursor(restartOffset(i), false);
+            prefixes[i] = Keys.prefix(rowsBuffer, cursor.suffixOffset, cursor.suffixSize);
+        }
+        return new Block(this, prefixes);
+    }
+
+    /**
+     * Returns the number of restart points, which is the number of rows if the block is built
+     * with the restart interval of 1.
+     */
+    int getRestartsCount() {
+        return restartsCount;
+    }
+
+    /**
+     * Returns the last restart point with the key which is less than or equal to the given one
+     * or 0 if there is no such point.
+     */
+    int findRestart(@NotNull final ByteBuffer key) {
+        final long prefix = fences == null ? 0 : Keys.prefix(key, key.position(), key.remaining());
+        int left = 0;
+        int right = restartsCount - 1;
+        while (left <= right) {
+            final int mid = left + (right - left) / 2;
+            final int cmp = fences == null || fences[mid] == prefix
+                    ? compareRestartKey(mid, key)
+                    : Long.compareUnsigned(fences[mid], prefix);
+            if (cmp < 0) {
+                left = mid + 1;
+            } else if (cmp > 0) {
+                right = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return Math.max(0, left - 1);
+    }
+
+    private int compareRestartKey(final int restart, @NotNull final ByteBuffer key) {
+        final Cursor cursor = new Cursor(restartOffset(restart), false);
+        return Keys.compare(rowsBuffer, cursor.suffixOffset, cursor.suffixSize, key);
+    }
+
+    /**
+     * Reads the long from the value of the row at the restart point without creating the row.
+     *
+     * @param restart the index of the restart point
+     * @param index   the offset of the long in the value data
+     * @return the long
+     */
+    long getLong(final int restart, final int index) {
+        return rowsBuffer.getLong(new Cursor(restartOffset(restart), false).dataOffset + index);
+    }
+
+    /**
+     * Reads the int from the value of the row at the restart point without creating the row.
+     *
+     * @param restart the index of the restart point
+     * @param index   the offset of the int in the value data
+     * @return the int
+     */
+    int getInt(final int restart, final int index) {
+        return rowsBuffer.getInt(new Cursor(restartOffset(restart), false).dataOffset + index);
+    }
+
+    /**
+     * Returns the row (possibly tombstone) with the key or null if the block does not contain it.
+     */
+    @Nullable
+    Row get(@NotNull final ByteBuffer key) {
+        if (restartsCount == 0) {
+            return null;
+        }
+        final Cursor cursor = new Cursor(restartOffset(findRestart(key)), true);
+        while (true) {
+            final int cmp = cursor.compareKey(key);
+            if (cmp == 0) {
+                return cursor.row();
+            }
+            if (cmp > 0 || !cursor.hasNextRow()) {
+                return null;
+            }
+            cursor.decode();
+        }
+    }
+
+    /**
+     * Returns the rows with the keys which are greater than or equal to the given one.
+     */
+    @NotNull
+    Iterator<Row> iterator(@NotNull final ByteBuffer from) {
+        return seek(from);
+    }
+
+    /**
+     * Returns the cursor over the rows with the keys which are greater than or equal to the given one.
+     */
+    @NotNull
+    RowCursor cursor(@NotNull final ByteBuffer from) {
+        return seek(from);
+    }
+
+    @NotNull
+    private Cursor seek(@NotNull final ByteBuffer from) {
+        if (restartsCount == 0) {
+            return new Cursor(rowsBuffer.limit(), false);
+        }
+        final Cursor cursor = new Cursor(restartOffset(findRestart(from)), true);
+        while (cursor.hasNext() && cursor.compareKey(from) < 0) {
+            cursor.skip();
+        }
+        return cursor;
+    }
+
+    /**
+     * Returns the key of the row at the restart point, the key is not copied.
+     */
+    @NotNull
+    ByteBuffer getRestartKey(final int restart) {
+        final Cursor cursor = new Cursor(restartOffset(restart), false);
+        return rowsBuffer.duplicate()
+                .position(cursor.suffixOffset)
+                .limit(cursor.suffixOffset + cursor.suffixSize)
+                .slice()
+                .asReadOnlyBuffer();
+    }
+
+    private int restartOffset(final int restart) {
+        if (restart < 0 || restart >= restartsCount) {
+            throw new IllegalArgumentException("Invalid restart point");
+        }
+        return restartsBuffer.get(restart);
+    }
+
+    /**
+     * Decodes the rows one by one starting from a restart point.
+     * The fields describe the current row, the key is accumulated only if requested.
+     * The cursor is either iterated or advanced as a {@link RowCursor}, whose views are reused for every row.
+     */
+    private final class Cursor implements Iterator<Row>, RowCursor {
+        private final boolean withKey;
+        private byte[] key = NO_KEY;
+        private ByteBuffer keyBuffer = NO_KEY_BUFFER;
+        private ByteBuffer keyView;
+        private ByteBuffer dataView;
+        private int keySize;
+        private int suffixOffset;
+        private int suffixSize;
+        private long timestamp;
+        private int dataOffset;
+        private int dataSize;
+        private long expiresAt;
+        private int nextOffset;
+        private boolean valid;
+        private boolean started;
+
+        Cursor(final int offset, final boolean withKey) {
+            this.withKey = withKey;
+            this.nextOffset = offset;
+            if (offset < rowsBuffer.limit()) {
+                decode();
+            }
+        }
+
+        /**
+         * Decodes the row at the next offset.
+         */
+        void decode() {
+            int offset = nextOffset;
+            final int shared;
+            if (legacy) {
+                shared = 0;
+                suffixSize = rowsBuffer.getInt(offset);
+                offset += Integer.BYTES;
+            } else {
+                shared = readVarInt(offset);
+                offset += varIntSize(shared);
+                suffixSize = readVarInt(offset);
+                offset += varIntSize(suffixSize);
+            }
+            suffixOffset = offset;
+            offset += suffixSize;
+            if (withKey) {
+                keySize = shared + suffixSize;
+                if (key.length < keySize) {
+                    key = Arrays.copyOf(key, Math.max(keySize, key.length * 2));
+                    keyBuffer = ByteBuffer.wrap(key);
+                    keyView = null;
+                }
+                for (int i = 0; i < suffixSize; i++) {
+                    key[shared + i] = rowsBuffer.get(suffixOffset + i);
+                }
+            }
+            timestamp = rowsBuffer.getLong(offset);
+            offset += Long.BYTES;
+            expiresAt = Value.NEVER;
+            if (timestamp < 0) {
+                dataSize = 0;
+            } else if (legacy) {
+                dataSize = rowsBuffer.getInt(offset);
+                offset += Integer.BYTES;
+            } else {
+                final int storedSize = readVarInt(offset);
+                offset += varIntSize(storedSize);
+                dataSize = storedSize >>> 1;
+                if ((storedSize & 1) != 0) {
+                    expiresAt = rowsBuffer.getLong(offset);
+                    offset += Long.BYTES;
+                }
+            }
+            dataOffset = offset;
+            nextOffset = offset + dataSize;
+            valid = true;
+        }
+
+        boolean hasNextRow() {
+            return nextOffset < rowsBuffer.limit();
+        }
+
+        int compareKey(@NotNull final ByteBuffer other) {
+            return Keys.compare(keyBuffer, 0, keySize, other);
+        }
+
+        void skip() {
+            if (hasNextRow()) {
+                decode();
+            } else {
+                valid = false;
+            }
+        }
+
+        @Override
+        public boolean advance() {
+            if (started) {
+                skip();
+            }
+            started = true;
+            return valid;
+        }
+
+        @NotNull
+        @Override
+        public ByteBuffer key() {
+            if (keyView == null) {
+                keyView = keyBuffer.asReadOnlyBuffer();
+            }
+            return keyView.clear().limit(keySize);
+        }
+
+        @NotNull
+        @Override
+        public ByteBuffer value() {
+            if (dataView == null) {
+                dataView = rowsBuffer.duplicate();
+            }
+            return dataView.clear().position(dataOffset).limit(dataOffset + dataSize);
+        }
+
+        @Override
+        public long timestamp() {
+            return Math.abs(timestamp);
+        }
+
+        @Override
+        public boolean isRemoved() {
+            return timestamp < 0;
+        }
+
+        @Override
+        public long expiresAt() {
+            return expiresAt;
+        }
+
+        @NotNull
+        @Override
+        public Row row() {
+            final ByteBuffer rowKey = ByteBuffer.wrap(Arrays.copyOf(key, keySize)).asReadOnlyBuffer();
+            if (timestamp < 0) {
+                return new Row(rowKey, new Value(-timestamp, true, Value.EMPTY_BUFFER));
+            }
+            final ByteBuffer data = rowsBuffer.duplicate()
+                    .position(dataOffset)
+                    .limit(dataOffset + dataSize)
+                    .slice()
+                    .asReadOnlyBuffer();
+            return new Row(rowKey, new Value(timestamp, false, data, expiresAt));
+        }
+
+        @Override
+        public boolean hasNext() {
+            return valid;
+        }
+
+        @Override
+        public Row next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            final Row row = row();
+            skip();
+            return row;
+        }
+    }
+
+    private int readVarInt(final int offset) {
+        int result = 0;
+        for (int shift = 0, position = offset; ; shift += 7, position++) {
+            final int b = rowsBuffer.get(position);
+            result |= (b & VARINT_MASK) << shift;
+            if ((b & VARINT_MORE) == 0) {
+                return result;
+            }
+        }
+    }
+
+    private static int varIntSize(final int value) {
+        int size = 1;
+        for (int rest = value >>> 7; rest != 0; rest >>>= 7) {
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * Accumulates rows in the block format, may be reused after {@link #reset()}.
+     */
+    static final class Builder {
+        private final int restartInterval;
+        private ByteBuffer rowsBuffer = ByteBuffer.allocate(1024);
+        private int[] restarts = new int[16];
+        private int restartsCount;
+        private int rowsCount;
+        private byte[] lastKey = new byte[0];
+        private int lastKeySize;
+        private ByteBuffer firstKey;
+
+        /**
+         * Creates the builder.
+         *
+         * @param restartInterval the number of rows between restart points
+         */
+        Builder(final int restartInterval) {
+            this.restartInterval = restartInterval;
+        }
+
+        /**
+         * Appends the row which key must be greater than the keys of the added rows.
+         */
+        void add(@NotNull final Row row) {
+            final ByteBuffer key = row.getKey();
+            final Value value = row.getValue();
+            final int keySize = key.remaining();
+            int shared = 0;
+            if (rowsCount % restartInterval == 0) {
+                if (restartsCount == restarts.length) {
+                    restarts = Arrays.copyOf(restarts, restarts.length * 2);
+                }
+                restarts[restartsCount++] = rowsBuffer.position();
+            } else {
+                final int limit = Math.min(lastKeySize, keySize);
+                while (shared < limit && lastKey[shared] == key.get(key.position() + shared)) {
+                    shared++;
+                }
+            }
+            if (rowsCount == 0) {
+                firstKey = ByteBuffer.allocate(keySize).put(key.duplicate()).rewind();
+            }
+            rowsCount++;
+            final ByteBuffer data = value.getData();
+            ensureCapacity(Integer.BYTES * 3 + keySize - shared + Long.BYTES * 2 + data.remaining());
+            putVarInt(shared);
+            putVarInt(keySize - shared);
+            rowsBuffer.put(key.duplicate().position(key.position() + shared));
+            if (value.isRemoved()) {
+                rowsBuffer.putLong(-value.getTimestamp());
+            } else {
+                rowsBuffer.putLong(value.getTimestamp());
+                if (value.getExpiresAt() == Value.NEVER) {
+                    putVarInt(data.remaining() << 1);
+                } else {
+                    putVarInt(data.remaining() << 1 | 1);
+                    rowsBuffer.putLong(value.getExpiresAt());
+                }
+                rowsBuffer.put(data);
+            }
+            if (lastKey.length < keySize) {
+                lastKey = new byte[Math.max(keySize, lastKey.length * 2)];
+            }
+            key.duplicate().get(lastKey, 0, keySize);
+            lastKeySize = keySize;
+        }
+
+        private void putVarInt(final int value) {
+            int rest = value;
+            while ((rest & ~VARINT_MASK) != 0) {
+                rowsBuffer.put((byte) ((rest & VARINT_MASK) | VARINT_MORE));
+                rest >>>= 7;
+            }
+            rowsBuffer.put((byte) rest);
+        }
+
+        boolean isEmpty() {
+            return rowsCount == 0;
+        }
+
+        /**
+         * Returns the size of the block if it is built now.
+         */
+        int getSizeBytes() {
+            return rowsBuffer.position() + Integer.BYTES * (restartsCount + 1);
+        }
+
+        /**
+         * Returns a copy of the key of the first added row.
+         */
+        @NotNull
+        ByteBuffer getFirstKey() {
+            return firstKey.duplicate();
+        }
+
+        /**
+         * Returns the block which is valid until the builder is modified.
+         */
+        @NotNull
+        ByteBuffer build() {
+            final int rowsSize = rowsBuffer.position();
+            ensureCapacity(Integer.BYTES * (restartsCount + 1));
+            for (int i = 0; i < restartsCount; i++) {
+                rowsBuffer.putInt(restarts[i]);
+            }
+            rowsBuffer.putInt(restartsCount);
+            final ByteBuffer result = rowsBuffer.duplicate().flip();
+            rowsBuffer.position(rowsSize);
+            return result;
+        }
+
+        void reset() {
+            rowsBuffer.clear();
+            restartsCount = 0;
+            rowsCount = 0;
+            lastKeySize = 0;
+        }
+
+        private void ensureCapacity(final int size) {
+            if (rowsBuffer.remaining() < size) {
+                final int capacity = Math.max(rowsBuffer.capacity() * 2, rowsBuffer.position() + size);
+                rowsBuffer = ByteBuffer.allocate(capacity).put(rowsBuffer.flip());
+            }
+        }
+    }
+}
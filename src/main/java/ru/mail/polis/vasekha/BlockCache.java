@@ -0,0 +1,202 @@
+package ru.mail.polis.vasekha;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cache of SSTable blocks which had to be decompressed or copied to the heap to be read,
+ * may be shared by several {@link MyDAO} instances through their {@link Config}.
+ * Blocks are keyed by the table and the offset of the block in the file.
+ * The cache is split into up to 16 shards by the hash of the key, each shard gets an equal part of the capacity
+ * and evicts its blocks with the CLOCK algorithm: a block which was read since the hand passed it
+ * gets a second chance. Lookups do not lock, insertions and evictions lock only the shard.
+ */
+public final class BlockCache {
+    private static final int MAX_SHARDS = 16;
+    private static final long MIN_SHARD_BYTES = 256 * 1024;
+
+    private final long capacityBytes;
+    private final Shard[] shards;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Creates an empty cache.
+     *
+     * @param capacityBytes the total size of the blocks which may be cached
+     */
+    public BlockCache(final long capacityBytes) {
+        if (capacityBytes <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        this.capacityBytes = capacityBytes;
+        // Small caches get fewer shards, so that a shard still fits several blocks
+        final long shardsCount = Math.max(1, Math.min(MAX_SHARDS, capacityBytes / MIN_SHARD_BYTES));
+        this.shards = new Shard[Integer.highestOneBit((int) shardsCount)];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new Shard(capacityBytes / shards.length);
+        }
+    }
+
+    /**
+     * Returns the cached block or null if it is not cached.
+     *
+     * @param tableId the unique id of the table
+     * @param offset  the offset of the block in the file
+     * @return the block
+     */
+    @Nullable
+    Block get(final long tableId, final long offset) {
+        final Key key = new Key(tableId, offset);
+        final Entry entry = shard(key).entries.get(key);
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        entry.referenced = true;
+        hits.increment();
+        return entry.block;
+    }
+
+    /**
+     * Caches the block, evicting the others if its shard is full.
+     * Blocks larger than the shard are not cached.
+     *
+     * @param tableId   the unique id of the table
+     * @param offset    the offset of the block in the file
+     * @param block     the block
+     * @param sizeBytes the size of the block on the heap
+     */
+    void put(final long tableId, final long offset, @NotNull final Block block, final int sizeBytes) {
+        final Key key = new Key(tableId, offset);
+        shard(key).put(key, new Entry(key, block, sizeBytes));
+    }
+
+    public long getCapacityBytes() {
+        return capacityBytes;
+    }
+
+    /**
+     * Returns the total size of the cached blocks.
+     */
+    public long getSizeBytes() {
+        long sizeBytes = 0;
+        for (final Shard shard : shards) {
+            sizeBytes += shard.getSizeBytes();
+        }
+        return sizeBytes;
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    @NotNull
+    private Shard shard(@NotNull final Key key) {
+        return shards[key.hashCode() & (shards.length - 1)];
+    }
+
+    private static final class Shard {
+        private final long capacityBytes;
+        private final ConcurrentMap<Key, Entry> entries = new ConcurrentHashMap<>();
+        private final List<Entry> clock = new ArrayList<>();
+        private int hand;
+        private long sizeBytes;
+
+        Shard(final long capacityBytes) {
+            this.capacityBytes = capacityBytes;
+        }
+
+        synchronized void put(@NotNull final Key key, @NotNull final Entry entry) {
+            if (entry.sizeBytes > capacityBytes || entries.containsKey(key)) {
+                return;
+            }
+            while (sizeBytes + entry.sizeBytes > capacityBytes) {
+                evict();
+            }
+            entries.put(key, entry);
+            clock.add(entry);
+            sizeBytes += entry.sizeBytes;
+        }
+
+        /**
+         * Moves the hand clearing the reference bits until it finds a block which was not read since
+         * the last pass and removes it, the last block of the clock takes its place.
+         */
+        private void evict() {
+            while (true) {
+                if (hand >= clock.size()) {
+                    hand = 0;
+                }
+                final Entry entry = clock.get(hand);
+                if (entry.referenced) {
+                    entry.referenced = false;
+                    hand++;
+                    continue;
+                }
+                final Entry last = clock.remove(clock.size() - 1);
+                if (hand < clock.size()) {
+                    clock.set(hand, last);
+                }
+                entries.remove(entry.key);
+                sizeBytes -= entry.sizeBytes;
+                return;
+            }
+        }
+
+        synchronized long getSizeBytes() {
+            return sizeBytes;
+        }
+    }
+
+    private static final class Entry {
+        private final Key key;
+        private final Block block;
+        private final int sizeBytes;
+        private volatile boolean referenced;
+
+        Entry(@NotNull final Key key, @NotNull final Block block, final int sizeBytes) {
+            this.key = key;
+            this.block = block;
+            this.sizeBytes = sizeBytes;
+        }
+    }
+
+    private static final class Key {
+        private final long tableId;
+        private final long offset;
+
+        Key(final long tableId, final long offset) {
+            this.tableId = tableId;
+            this.offset = offset;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return tableId == other.tableId && offset == other.offset;
+        }
+
+        @Override
+        public int hashCode() {
+            final long hash = (tableId * 31 + offset) * 0x9E3779B97F4A7C15L;
+            return (int) (hash ^ (hash >>> Integer.SIZE));
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package ru.mail.polis.vasekha;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Compression of SSTable blocks.
+ * The identifier of the codec is stored in the file, so a table may be read only by the codec with the same id.
+ * Identifiers 1 and 2 are taken by {@link DeflateCodec} and {@link LzCodec}.
+ */
+public interface BlockCodec {
+    int getId();
+
+    /**
+     * Compresses the remaining bytes of the buffer, the result may be larger than the source.
+     */
+    @NotNull
+    ByteBuffer compress(@NotNull ByteBuffer src);
+
+    /**
+     * Decompresses the remaining bytes of the buffer.
+     *
+     * @param src     the compressed bytes
+     * @param rawSize the size of the source before compression
+     * @return the decompressed bytes
+     * @throws IllegalArgumentException if the source is malformed
+     */
+    @NotNull
+    ByteBuffer decompress(@NotNull ByteBuffer src, int rawSize);
+}
@@ -0,0 +1,189 @@
+package ru.mail.polis.vasekha;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+
+/**
+ * Bloom filter over the keys of an SSTable which is read directly from the mapped file.
+ * Filter format in file: bit words | words count | hash functions count
+ */
+final class BloomFilter {
+    static final int TRAILER_BYTES = Integer.BYTES * 2;
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+    // The largest power of two words whose size fits the filter size of the footer
+    private static final long MAX_WORDS = 1L << 27;
+
+    private final LongBuffer words;
+    private final long bitsCount;
+    private final int hashCount;
+
+    private BloomFilter(@NotNull final LongBuffer words, final int hashCount) {
+        this.words = words;
+        this.bitsCount = (long) words.limit() * Long.SIZE;
+        this.hashCount = hashCount;
+    }
+
+    /**
+     * Reads the filter which ends at the limit of the buffer.
+     *
+     * @param buffer the buffer which contains the filter in the end
+     * @return the filter
+     * @throws IllegalArgumentException if the filter is malformed
+     */
+    @NotNull
+    static BloomFilter read(@NotNull final ByteBuffer buffer) {
+        final int limit = buffer.limit();
+        final int wordsCount = buffer.getInt(limit - TRAILER_BYTES);
+        final int hashCount = buffer.getInt(limit - Integer.BYTES);
+        final long start = limit - TRAILER_BYTES - (long) wordsCount * Long.BYTES;
+        if (wordsCount <= 0 || hashCount <= 0 || start < 0) {
+            throw new IllegalArgumentException("Invalid filter");
+        }
+        final LongBuffer words = buffer.duplicate()
+                .position((int) start)
+                .limit(limit - TRAILER_BYTES)
+                .slice()
+                .asLongBuffer()
+                .asReadOnlyBuffer();
+        return new BloomFilter(words, hashCount);
+    }
+
+    /**
+     * Returns the size of the filter in the file.
+     */
+    int getSizeBytes() {
+        return words.limit() * Long.BYTES + TRAILER_BYTES;
+    }
+
+    long getBitsCount() {
+        return bitsCount;
+    }
+
+    /**
+     * Returns false if the key has definitely not been added to the filter.
+     */
+    boolean mightContain(@NotNull final ByteBuffer key) {
+        final long hash = hash(key);
+        final int h1 = (int) hash;
+        final int h2 = (int) (hash >>> Integer.SIZE);
+        for (int i = 0; i < hashCount; i++) {
+            final long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % bitsCount;
+            if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hashCount(final int bitsPerKey) {
+        return Math.max(1, Math.min(30, (int) Math.round(bitsPerKey * Math.log(2))));
+    }
+
+    private static long wordsCount(final long keysCount, final int bitsPerKey) {
+        return Math.max(1, Math.min(MAX_WORDS, (keysCount * bitsPerKey + Long.SIZE - 1) / Long.SIZE));
+    }
+
+    /**
+     * Computes 64-bit hash of the remaining bytes of the key with MurmurHash3 mixing.
+     * The hash does not depend on the byte order of the buffer.
+     */
+    static long hash(@NotNull final ByteBuffer key) {
+        final int start = key.position();
+        final int length = key.remaining();
+        long h = length * C1;
+        int i = 0;
+        final boolean reversed = key.order() != ByteOrder.BIG_ENDIAN;
+        for (; i + Long.BYTES <= length; i += Long.BYTES) {
+            final long k = key.getLong(start + i);
+            h ^= mixK(reversed ? Long.reverseBytes(k) : k);
+            h = Long.rotateLeft(h, 27) * 5 + 0x52dce729;
+        }
+        long tail = 0;
+        for (; i < length; i++) {
+            tail = (tail << Byte.SIZE) | (key.get(start + i) & 0xFF);
+        }
+        h ^= mixK(tail);
+        return fmix(h);
+    }
+
+    private static long mixK(final long k) {
+        return Long.rotateLeft(k * C1, 31) * C2;
+    }
+
+    private static long fmix(final long k) {
+        long h = k;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Sets the bits of the keys as they are added, so that the filter takes no memory per key while it is built.
+     * The bits are sized for the expected number of keys and rounded up to a multiple of a power of two,
+     * then folded in halves while the half still has enough bits for the keys which were actually added:
+     * a bit modulo the size of the half is the same as the bit modulo the whole size modulo the half size.
+     * If more keys than expected are added the filter just gets more false positives.
+     */
+    static final class Builder {
+        private final int bitsPerKey;
+        private final int hashCount;
+        private final long[] words;
+        private final long bitsCount;
+        private long keysCount;
+
+        /**
+         * Creates the builder.
+         *
+         * @param expectedKeys the upper bound of the number of keys, it defines the memory taken by the builder
+         * @param bitsPerKey   the number of bits per key which defines the false positive rate
+         */
+        Builder(final long expectedKeys, final int bitsPerKey) {
+            this.bitsPerKey = bitsPerKey;
+            this.hashCount = hashCount(bitsPerKey);
+            final long needed = wordsCount(expectedKeys, bitsPerKey);
+            // Keeps at most 1/8 of the words as the padding
+            final long granularity = Long.highestOneBit(Math.max(1, needed >>> 3));
+            this.words = new long[(int) ((needed + granularity - 1) / granularity * granularity)];
+            this.bitsCount = (long) words.length * Long.SIZE;
+        }
+
+        void add(@NotNull final ByteBuffer key) {
+            final long hash = hash(key);
+            final int h1 = (int) hash;
+            final int h2 = (int) (hash >>> Integer.SIZE);
+            for (int i = 0; i < hashCount; i++) {
+                final long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % bitsCount;
+                words[(int) (bit >>> 6)] |= 1L << bit;
+            }
+            keysCount++;
+        }
+
+        /**
+         * Folds the bits down to the size of the added keys and returns the filter in the file format.
+         */
+        @NotNull
+        ByteBuffer build() {
+            final long needed = wordsCount(keysCount, bitsPerKey);
+            int wordsCount = words.length;
+            while (wordsCount % 2 == 0 && wordsCount / 2 >= needed) {
+                wordsCount /= 2;
+                for (int i = 0; i < wordsCount; i++) {
+                    words[i] |= words[i + wordsCount];
+                }
+            }
+            final ByteBuffer result = ByteBuffer.allocate(wordsCount * Long.BYTES + TRAILER_BYTES);
+            result.asLongBuffer().put(words, 0, wordsCount);
+            return result.position(wordsCount * Long.BYTES)
+                    .putInt(wordsCount)
+                    .putInt(hashCount)
+                    .rewind();
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package ru.mail.polis.vasekha;
+
+/**
+ * Defines when the checksums of SSTable blocks are verified.
+ * The checksum of the index, filter and footer is verified when a table is opened in any case.
+ */
+public enum ChecksumVerification {
+    /**
+     * Every block is verified when it is read from the file.
+     */
+    ALWAYS,
+    /**
+     * Blocks are verified only when they are read by compactions,
+     * so that corrupted data is not spread to new tables.
+     */
+    COMPACTION
+}
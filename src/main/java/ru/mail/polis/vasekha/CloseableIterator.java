@@ -0,0 +1,14 @@
+package ru.mail.polis.vasekha;
+
+import java.io.Closeable;
+import java.util.Iterator;
+
+/**
+ * Iterator which holds resources until it is exhausted or closed.
+ *
+ * @param <T> the type of elements
+ */
+public interface CloseableIterator<T> extends Iterator<T>, Closeable {
+    @Override
+    void close();
+}
@@ -0,0 +1,119 @@
+package ru.mail.polis.vasekha;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterators;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * SSTables which are merged together into the tables of the output level.
+ */
+final class Compaction {
+    private final ImmutableList<SSTable> inputs;
+    private final int outputLevel;
+    private final boolean bottommost;
+
+    /**
+     * Creates the compaction.
+     *
+     * @param inputs      the tables to merge
+     * @param outputLevel the level of the merged tables
+     * @param bottommost  whether there is no older data below the output level, so tombstones may be dropped
+     */
+    Compaction(
+            @NotNull final Collection<SSTable> inputs,
+            final int outputLevel,
+            final boolean bottommost) {
+        this.inputs = ImmutableList.copyOf(inputs);
+        this.outputLevel = outputLevel;
+        this.bottommost = bottommost;
+    }
+
+    @NotNull
+    ImmutableList<SSTable> getInputs() {
+        return inputs;
+    }
+
+    int getOutputLevel() {
+        return outputLevel;
+    }
+
+    boolean isBottommost() {
+        return bottommost;
+    }
+
+    /**
+     * Returns the range tombstones of the inputs which are kept in the outputs.
+     * They are dropped if the output level is the bottommost, since there are no older rows for them to cover.
+     */
+    @NotNull
+    RangeTombstones getRangeTombstones() {
+        return bottommost ? RangeTombstones.EMPTY : inputRangeTombstones();
+    }
+
+    @NotNull
+    private RangeTombstones inputRangeTombstones() {
+        final List<RangeTombstones> sets = new ArrayList<>(inputs.size());
+        for (final SSTable ssTable : inputs) {
+            sets.add(ssTable.getRangeTombstones());
+        }
+        return RangeTombstones.merge(sets);
+    }
+
+    /**
+     * Returns the newest row of every key of the inputs, without tombstones if the output level is the bottommost.
+     * The rows covered by the range tombstones of the inputs are dropped, the tombstones still cover
+     * the older rows of the other tables if they are kept.
+     * Expired rows are dropped at the bottommost level, above it they become tombstones of the same timestamp,
+     * as the older rows of the key in the deeper levels would be visible otherwise.
+     */
+    @NotNull
+    Iterator<Row> iterator() {
+        // Inputs of several levels are not ordered by recency, the merge takes the newest table first
+        final List<SSTable> newestFirst = new ArrayList<>(inputs);
+        newestFirst.sort(TableSet.ORDER.reversed());
+        final List<RowCursor> cursors = new ArrayList<>(inputs.size());
+        for (final SSTable ssTable : newestFirst) {
+            cursors.add(ssTable.cursor(Value.EMPTY_BUFFER, true));
+        }
+        final long now = System.currentTimeMillis();
+        if (bottommost) {
+            return RowCursors.rows(MergeCursor.alive(cursors, inputRangeTombstones(), now));
+        }
+        final Iterator<Row> collapsed = RowCursors.rows(MergeCursor.all(cursors, inputRangeTombstones()));
+        return Iterators.transform(collapsed, row -> row.getValue().isRemoved() || row.getValue().isAlive(now)
+                ? row
+                : new Row(row.getKey(), new Value(row.getValue().getTimestamp(), true, Value.EMPTY_BUFFER)));
+    }
+
+    /**
+     * Returns the total size of the inputs in bytes.
+     */
+    long getInputBytes() {
+        long result = 0;
+        for (final SSTable ssTable : inputs) {
+            result += ssTable.getSizeBytes();
+        }
+        return result;
+    }
+
+    /**
+     * Returns the upper bound of the number of rows in the inputs, see {@link SSTable#estimateRowsCount(int)}.
+     */
+    long estimateRowsCount(final int bitsPerKey) {
+        long result = 0;
+        for (final SSTable ssTable : inputs) {
+            result += ssTable.estimateRowsCount(bitsPerKey);
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return inputs.size() + " tables of " + getInputBytes() + " bytes to level " + outputLevel;
+    }
+}
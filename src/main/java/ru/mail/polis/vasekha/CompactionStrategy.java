@@ -0,0 +1,30 @@
+package ru.mail.polis.vasekha;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+
+/**
+ * Decides which SSTables are merged together.
+ */
+interface CompactionStrategy {
+    /**
+     * Returns the compaction which restores the shape of the tables or null if they are fine.
+     *
+     * @param ssTables the current tables from the oldest to the newest
+     * @return the compaction to run or null
+     */
+    @Nullable
+    Compaction pick(@NotNull List<SSTable> ssTables);
+
+    /**
+     * Returns the first compaction requested by {@link ru.mail.polis.DAO#compact()},
+     * the next ones are picked by {@link #pick(List)}.
+     *
+     * @param ssTables the current tables from the oldest to the newest
+     * @return the compaction to run or null
+     */
+    @Nullable
+    Compaction pickManual(@NotNull List<SSTable> ssTables);
+}
@@ -0,0 +1,15 @@
+package ru.mail.polis.vasekha;
+
+/**
+ * Defines how SSTables are merged together.
+ */
+public enum CompactionStyle {
+    /**
+     * Tables are organized in levels of disjoint key ranges, see {@link LeveledCompactionStrategy}.
+     */
+    LEVELED,
+    /**
+     * Runs of tables of similar size are merged, see {@link SizeTieredCompactionStrategy}.
+     */
+    SIZE_TIERED
+}
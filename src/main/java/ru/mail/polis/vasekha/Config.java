@@ -0,0 +1,539 @@
+package ru.mail.polis.vasekha;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Tunable parameters of {@link MyDAO}.
+ */
+public final class Config {
+    private static final long DEFAULT_FLUSH_THRESHOLD_BYTES = 4 * 1024 * 1024;
+    private static final long DEFAULT_SYNC_INTERVAL_MILLIS = 100;
+    private static final int DEFAULT_MAX_FLUSHING_MEMTABLES = 2;
+    private static final int DEFAULT_SLAB_SIZE_BYTES = 1024 * 1024;
+    private static final int DEFAULT_BLOOM_BITS_PER_KEY = 10;
+    private static final int DEFAULT_BLOCK_SIZE_BYTES = 4 * 1024;
+    private static final int DEFAULT_BLOCK_RESTART_INTERVAL = 16;
+    private static final int DEFAULT_LEVEL_ZERO_COMPACTION_TRIGGER = 4;
+    private static final long DEFAULT_LEVEL_BASE_BYTES = 10 * 1024 * 1024;
+    private static final int DEFAULT_LEVEL_SIZE_MULTIPLIER = 10;
+    private static final long DEFAULT_TARGET_FILE_SIZE_BYTES = 2 * 1024 * 1024;
+    private static final int DEFAULT_SIZE_TIERED_MIN_THRESHOLD = 4;
+    private static final int DEFAULT_SIZE_TIERED_MAX_THRESHOLD = 32;
+    private static final long DEFAULT_SIZE_TIERED_MIN_BYTES = 1024 * 1024;
+    private static final long DEFAULT_SIZE_TIERED_MAX_FILE_BYTES = 256 * 1024 * 1024;
+    private static final int DEFAULT_MAPPED_SEGMENT_BYTES = 1024 * 1024 * 1024;
+    private static final long DEFAULT_BLOCK_CACHE_BYTES = 8 * 1024 * 1024;
+
+    private final long flushThresholdBytes;
+    private final SyncPolicy syncPolicy;
+    private final long syncIntervalMillis;
+    private final int replayThreads;
+    private final int openThreads;
+    private final int maxFlushingMemTables;
+    private final MemTableMode memTableMode;
+    private final int slabSizeBytes;
+    private final int bloomBitsPerKey;
+    private final int blockSizeBytes;
+    private final int blockRestartInterval;
+    private final BlockCodec blockCodec;
+    private final int levelZeroCompactionTrigger;
+    private final long levelBaseBytes;
+    private final int levelSizeMultiplier;
+    private final long targetFileSizeBytes;
+    private final CompactionStyle compactionStyle;
+    private final int sizeTieredMinThreshold;
+    private final int sizeTieredMaxThreshold;
+    private final long sizeTieredMinBytes;
+    private final long sizeTieredMaxFileBytes;
+    private final long compactionRateBytesPerSecond;
+    private final int mappedSegmentBytes;
+    private final BlockCache blockCache;
+    private final ChecksumVerification checksumVerification;
+
+    private Config(@NotNull final Builder builder) {
+        this.flushThresholdBytes = builder.flushThresholdBytes;
+        this.syncPolicy = builder.syncPolicy;
+        this.syncIntervalMillis = builder.syncIntervalMillis;
+        this.replayThreads = builder.replayThreads;
+        this.openThreads = builder.openThreads;
+        this.maxFlushingMemTables = builder.maxFlushingMemTables;
+        this.memTableMode = builder.memTableMode;
+        this.slabSizeBytes = builder.slabSizeBytes;
+        this.bloomBitsPerKey = builder.bloomBitsPerKey;
+        this.blockSizeBytes = builder.blockSizeBytes;
+        this.blockRestartInterval = builder.blockRestartInterval;
+        this.blockCodec = builder.blockCodec;
+        this.levelZeroCompactionTrigger = builder.levelZeroCompactionTrigger;
+        this.levelBaseBytes = builder.levelBaseBytes;
+        this.levelSizeMultiplier = builder.levelSizeMultiplier;
+        this.targetFileSizeBytes = builder.targetFileSizeBytes;
+        this.compactionStyle = builder.compactionStyle;
+        this.sizeTieredMinThreshold = builder.sizeTieredMinThreshold;
+        this.sizeTieredMaxThreshold = builder.sizeTieredMaxThreshold;
+        this.sizeTieredMinBytes = builder.sizeTieredMinBytes;
+        this.sizeTieredMaxFileBytes = builder.sizeTieredMaxFileBytes;
+        this.compactionRateBytesPerSecond = builder.compactionRateBytesPerSecond;
+        this.mappedSegmentBytes = builder.mappedSegmentBytes;
+        this.blockCache = builder.blockCacheSet ? builder.blockCache : SharedBlockCache.INSTANCE;
+        this.checksumVerification = builder.checksumVerification;
+    }
+
+    /**
+     * Holder of the cache shared by the DAOs which do not set their own one, it is created on the first use.
+     */
+    private static final class SharedBlockCache {
+        static final BlockCache INSTANCE = new BlockCache(DEFAULT_BLOCK_CACHE_BYTES);
+    }
+
+    @NotNull
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public long getFlushThresholdBytes() {
+        return flushThresholdBytes;
+    }
+
+    @NotNull
+    public SyncPolicy getSyncPolicy() {
+        return syncPolicy;
+    }
+
+    public long getSyncIntervalMillis() {
+        return syncIntervalMillis;
+    }
+
+    public int getReplayThreads() {
+        return replayThreads;
+    }
+
+    public int getOpenThreads() {
+        return openThreads;
+    }
+
+    public int getMaxFlushingMemTables() {
+        return maxFlushingMemTables;
+    }
+
+    @NotNull
+    public MemTableMode getMemTableMode() {
+        return memTableMode;
+    }
+
+    public int getSlabSizeBytes() {
+        return slabSizeBytes;
+    }
+
+    public int getBloomBitsPerKey() {
+        return bloomBitsPerKey;
+    }
+
+    public int getBlockSizeBytes() {
+        return blockSizeBytes;
+    }
+
+    public int getBlockRestartInterval() {
+        return blockRestartInterval;
+    }
+
+    @Nullable
+    public BlockCodec getBlockCodec() {
+        return blockCodec;
+    }
+
+    public int getLevelZeroCompactionTrigger() {
+        return levelZeroCompactionTrigger;
+    }
+
+    public long getLevelBaseBytes() {
+        return levelBaseBytes;
+    }
+
+    public int getLevelSizeMultiplier() {
+        return levelSizeMultiplier;
+    }
+
+    public long getTargetFileSizeBytes() {
+        return targetFileSizeBytes;
+    }
+
+    @NotNull
+    public CompactionStyle getCompactionStyle() {
+        return compactionStyle;
+    }
+
+    public int getSizeTieredMinThreshold() {
+        return sizeTieredMinThreshold;
+    }
+
+    public int getSizeTieredMaxThreshold() {
+        return sizeTieredMaxThreshold;
+    }
+
+    public long getSizeTieredMinBytes() {
+        return sizeTieredMinBytes;
+    }
+
+    public long getSizeTieredMaxFileBytes() {
+        return sizeTieredMaxFileBytes;
+    }
+
+    public long getCompactionRateBytesPerSecond() {
+        return compactionRateBytesPerSecond;
+    }
+
+    public int getMappedSegmentBytes() {
+        return mappedSegmentBytes;
+    }
+
+    /**
+     * Returns the cache of decompressed blocks, by default the one shared by all the DAOs of the process.
+     */
+    @Nullable
+    public BlockCache getBlockCache() {
+        return blockCache;
+    }
+
+    @NotNull
+    public ChecksumVerification getChecksumVerification() {
+        return checksumVerification;
+    }
+
+    public static final class Builder {
+        private long flushThresholdBytes = DEFAULT_FLUSH_THRESHOLD_BYTES;
+        private SyncPolicy syncPolicy = SyncPolicy.INTERVAL;
+        private long syncIntervalMillis = DEFAULT_SYNC_INTERVAL_MILLIS;
+        private int replayThreads = Runtime.getRuntime().availableProcessors();
+        private int openThreads = Runtime.getRuntime().availableProcessors();
+        private int maxFlushingMemTables = DEFAULT_MAX_FLUSHING_MEMTABLES;
+        private MemTableMode memTableMode = MemTableMode.HEAP;
+        private int slabSizeBytes = DEFAULT_SLAB_SIZE_BYTES;
+        private int bloomBitsPerKey = DEFAULT_BLOOM_BITS_PER_KEY;
+        private int blockSizeBytes = DEFAULT_BLOCK_SIZE_BYTES;
+        private int blockRestartInterval = DEFAULT_BLOCK_RESTART_INTERVAL;
+        private BlockCodec blockCodec = new LzCodec();
+        private int levelZeroCompactionTrigger = DEFAULT_LEVEL_ZERO_COMPACTION_TRIGGER;
+        private long levelBaseBytes = DEFAULT_LEVEL_BASE_BYTES;
+        private int levelSizeMultiplier = DEFAULT_LEVEL_SIZE_MULTIPLIER;
+        private long targetFileSizeBytes = DEFAULT_TARGET_FILE_SIZE_BYTES;
+        private CompactionStyle compactionStyle = CompactionStyle.LEVELED;
+        private int sizeTieredMinThreshold = DEFAULT_SIZE_TIERED_MIN_THRESHOLD;
+        private int sizeTieredMaxThreshold = DEFAULT_SIZE_TIERED_MAX_THRESHOLD;
+        private long sizeTieredMinBytes = DEFAULT_SIZE_TIERED_MIN_BYTES;
+        private long sizeTieredMaxFileBytes = DEFAULT_SIZE_TIERED_MAX_FILE_BYTES;
+        private long compactionRateBytesPerSecond;
+        private int mappedSegmentBytes = DEFAULT_MAPPED_SEGMENT_BYTES;
+        private BlockCache blockCache;
+        private boolean blockCacheSet;
+        private ChecksumVerification checksumVerification = ChecksumVerification.ALWAYS;
+
+        private Builder() {
+        }
+
+        /**
+         * Sets the size of the memTable after which it is flushed to the disk.
+         */
+        @NotNull
+        public Builder flushThresholdBytes(final long flushThresholdBytes) {
+            if (flushThresholdBytes <= 0) {
+                throw new IllegalArgumentException("Flush threshold must be positive");
+            }
+            this.flushThresholdBytes = flushThresholdBytes;
+            return this;
+        }
+
+        /**
+         * Sets the policy of forcing the write-ahead log to the storage device.
+         */
+        @NotNull
+        public Builder syncPolicy(@NotNull final SyncPolicy syncPolicy) {
+            this.syncPolicy = syncPolicy;
+            return this;
+        }
+
+        /**
+         * Sets the period of forcing the write-ahead log for {@link SyncPolicy#INTERVAL}.
+         */
+        @NotNull
+        public Builder syncIntervalMillis(final long syncIntervalMillis) {
+            if (syncIntervalMillis <= 0) {
+                throw new IllegalArgumentException("Sync interval must be positive");
+            }
+            this.syncIntervalMillis = syncIntervalMillis;
+            return this;
+        }
+
+        /**
+         * Sets the number of threads decoding the write-ahead log on startup.
+         */
+        @NotNull
+        public Builder replayThreads(final int replayThreads) {
+            if (replayThreads <= 0) {
+                throw new IllegalArgumentException("Replay threads count must be positive");
+            }
+            this.replayThreads = replayThreads;
+            return this;
+        }
+
+        /**
+         * Sets the number of threads opening SSTables and reading their indexes and filters on startup.
+         */
+        @NotNull
+        public Builder openThreads(final int openThreads) {
+            if (openThreads <= 0) {
+                throw new IllegalArgumentException("Open threads count must be positive");
+            }
+            this.openThreads = openThreads;
+            return this;
+        }
+
+        /**
+         * Sets the number of full memTables waiting for flush after which writers are stalled.
+         */
+        @NotNull
+        public Builder maxFlushingMemTables(final int maxFlushingMemTables) {
+            if (maxFlushingMemTables <= 0) {
+                throw new IllegalArgumentException("Flush queue size must be positive");
+            }
+            this.maxFlushingMemTables = maxFlushingMemTables;
+            return this;
+        }
+
+        /**
+         * Sets where memTables keep the rows. Off-heap memTables are limited by the flush threshold
+         * and -XX:MaxDirectMemorySize rather than -Xmx, so the threshold may be much larger.
+         */
+        @NotNull
+        public Builder memTableMode(@NotNull final MemTableMode memTableMode) {
+            this.memTableMode = memTableMode;
+            return this;
+        }
+
+        /**
+         * Sets the size of direct buffers allocated by off-heap memTables.
+         */
+        @NotNull
+        public Builder slabSizeBytes(final int slabSizeBytes) {
+            if (slabSizeBytes <= 0) {
+                throw new IllegalArgumentException("Slab size must be positive");
+            }
+            this.slabSizeBytes = slabSizeBytes;
+            return this;
+        }
+
+        /**
+         * Sets the size of SSTable bloom filters per key, 10 bits give about 1% of false positives.
+         * Zero disables the filters.
+         */
+        @NotNull
+        public Builder bloomBitsPerKey(final int bloomBitsPerKey) {
+            if (bloomBitsPerKey < 0) {
+                throw new IllegalArgumentException("Bits per key must not be negative");
+            }
+            this.bloomBitsPerKey = bloomBitsPerKey;
+            return this;
+        }
+
+        /**
+         * Sets the size of SSTable blocks, the index of a table keeps one key per block.
+         */
+        @NotNull
+        public Builder blockSizeBytes(final int blockSizeBytes) {
+            if (blockSizeBytes <= 0) {
+                throw new IllegalArgumentException("Block size must be positive");
+            }
+            this.blockSizeBytes = blockSizeBytes;
+            return this;
+        }
+
+        /**
+         * Sets the number of rows in a block between the keys which are stored in full.
+         * Larger intervals save more on common key prefixes but make lookups in a block scan more rows.
+         */
+        @NotNull
+        public Builder blockRestartInterval(final int blockRestartInterval) {
+            if (blockRestartInterval <= 0) {
+                throw new IllegalArgumentException("Restart interval must be positive");
+            }
+            this.blockRestartInterval = blockRestartInterval;
+            return this;
+        }
+
+        /**
+         * Sets the codec compressing SSTable blocks, null disables compression.
+         * Tables written by other codecs remain readable while their codec is built-in or configured.
+         */
+        @NotNull
+        public Builder blockCodec(@Nullable final BlockCodec blockCodec) {
+            this.blockCodec = blockCodec;
+            return this;
+        }
+
+        /**
+         * Sets the number of level 0 tables after which they are compacted into level 1.
+         */
+        @NotNull
+        public Builder levelZeroCompactionTrigger(final int levelZeroCompactionTrigger) {
+            if (levelZeroCompactionTrigger <= 0) {
+                throw new IllegalArgumentException("Level 0 compaction trigger must be positive");
+            }
+            this.levelZeroCompactionTrigger = levelZeroCompactionTrigger;
+            return this;
+        }
+
+        /**
+         * Sets the size of level 1 after which its tables are compacted into level 2.
+         */
+        @NotNull
+        public Builder levelBaseBytes(final long levelBaseBytes) {
+            if (levelBaseBytes <= 0) {
+                throw new IllegalArgumentException("Level base size must be positive");
+            }
+            this.levelBaseBytes = levelBaseBytes;
+            return this;
+        }
+
+        /**
+         * Sets how many times every next level is larger than the previous one.
+         */
+        @NotNull
+        public Builder levelSizeMultiplier(final int levelSizeMultiplier) {
+            if (levelSizeMultiplier <= 1) {
+                throw new IllegalArgumentException("Level size multiplier must be greater than 1");
+            }
+            this.levelSizeMultiplier = levelSizeMultiplier;
+            return this;
+        }
+
+        /**
+         * Sets the size after which the output of a compaction is continued in the next SSTable.
+         */
+        @NotNull
+        public Builder targetFileSizeBytes(final long targetFileSizeBytes) {
+            if (targetFileSizeBytes <= 0) {
+                throw new IllegalArgumentException("Target file size must be positive");
+            }
+            this.targetFileSizeBytes = targetFileSizeBytes;
+            return this;
+        }
+
+        /**
+         * Sets how SSTables are merged in background and by {@link MyDAO#compact()}.
+         */
+        @NotNull
+        public Builder compactionStyle(@NotNull final CompactionStyle compactionStyle) {
+            this.compactionStyle = compactionStyle;
+            return this;
+        }
+
+        /**
+         * Sets the number of tables of similar size after which they are merged by size-tiered compaction.
+         */
+        @NotNull
+        public Builder sizeTieredMinThreshold(final int sizeTieredMinThreshold) {
+            if (sizeTieredMinThreshold < 2) {
+                throw new IllegalArgumentException("Size-tiered min threshold must be at least 2");
+            }
+            this.sizeTieredMinThreshold = sizeTieredMinThreshold;
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of tables merged by a single size-tiered compaction.
+         */
+        @NotNull
+        public Builder sizeTieredMaxThreshold(final int sizeTieredMaxThreshold) {
+            if (sizeTieredMaxThreshold < 2) {
+                throw new IllegalArgumentException("Size-tiered max threshold must be at least 2");
+            }
+            this.sizeTieredMaxThreshold = sizeTieredMaxThreshold;
+            return this;
+        }
+
+        /**
+         * Sets the size below which tables are considered similar regardless of their sizes.
+         */
+        @NotNull
+        public Builder sizeTieredMinBytes(final long sizeTieredMinBytes) {
+            if (sizeTieredMinBytes < 0) {
+                throw new IllegalArgumentException("Size-tiered min size must not be negative");
+            }
+            this.sizeTieredMinBytes = sizeTieredMinBytes;
+            return this;
+        }
+
+        /**
+         * Sets the size after which the output of a size-tiered compaction is continued in the next SSTable.
+         * It bounds the memory taken by the filter of the table being written,
+         * tables of this size are not merged by background compactions anymore.
+         */
+        @NotNull
+        public Builder sizeTieredMaxFileBytes(final long sizeTieredMaxFileBytes) {
+            if (sizeTieredMaxFileBytes <= 0) {
+                throw new IllegalArgumentException("Size-tiered max file size must be positive");
+            }
+            this.sizeTieredMaxFileBytes = sizeTieredMaxFileBytes;
+            return this;
+        }
+
+        /**
+         * Sets the rate at which compactions may read rows, 0 means unlimited.
+         * Limiting it leaves the disk to flushes and reads while large tables are merged.
+         */
+        @NotNull
+        public Builder compactionRateBytesPerSecond(final long compactionRateBytesPerSecond) {
+            if (compactionRateBytesPerSecond < 0) {
+                throw new IllegalArgumentException("Compaction rate must not be negative");
+            }
+            this.compactionRateBytesPerSecond = compactionRateBytesPerSecond;
+            return this;
+        }
+
+        /**
+         * Sets the size of the segments in which SSTable files are mapped to memory.
+         */
+        @NotNull
+        public Builder mappedSegmentBytes(final int mappedSegmentBytes) {
+            if (mappedSegmentBytes <= 0) {
+                throw new IllegalArgumentException("Mapped segment size must be positive");
+            }
+            this.mappedSegmentBytes = mappedSegmentBytes;
+            return this;
+        }
+
+        /**
+         * Sets the cache of decompressed blocks instead of the one shared by all the DAOs of the process,
+         * null disables caching.
+         */
+        @NotNull
+        public Builder blockCache(@Nullable final BlockCache blockCache) {
+            this.blockCache = blockCache;
+            this.blockCacheSet = true;
+            return this;
+        }
+
+        /**
+         * Sets when the checksums of SSTable blocks are verified.
+         */
+        @NotNull
+        public Builder checksumVerification(@NotNull final ChecksumVerification checksumVerification) {
+            this.checksumVerification = checksumVerification;
+            return this;
+        }
+
+        /**
+         * Creates the config.
+         *
+         * @return the config
+         * @throws IllegalArgumentException if the parameters are inconsistent
+         */
+        @NotNull
+        public Config build() {
+            if (sizeTieredMinThreshold > sizeTieredMaxThreshold) {
+                throw new IllegalArgumentException("Size-tiered min threshold must not exceed the max one");
+            }
+            return new Config(this);
+        }
+    }
+}
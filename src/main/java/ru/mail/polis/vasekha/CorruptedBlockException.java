@@ -0,0 +1,30 @@
+package ru.mail.polis.vasekha;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.file.Path;
+
+/**
+ * Thrown when a block of an SSTable does not match its checksum or cannot be decoded.
+ */
+public final class CorruptedBlockException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    private final transient Path path;
+    private final long offset;
+
+    CorruptedBlockException(@NotNull final Path path, final long offset, @NotNull final String message) {
+        super("Corrupted block at offset " + offset + " of " + path + ": " + message);
+        this.path = path;
+        this.offset = offset;
+    }
+
+    @NotNull
+    public Path getPath() {
+        return path;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+}
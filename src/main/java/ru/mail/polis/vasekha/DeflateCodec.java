@@ -0,0 +1,81 @@
+package ru.mail.polis.vasekha;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Codec based on {@link Deflater} which compresses better than {@link LzCodec} but is several times slower.
+ */
+public final class DeflateCodec implements BlockCodec {
+    public static final int ID = 1;
+
+    private final int level;
+
+    public DeflateCodec() {
+        this(Deflater.BEST_SPEED);
+    }
+
+    /**
+     * Creates the codec with the compression level from 1 (fastest) to 9 (best compression).
+     */
+    public DeflateCodec(final int level) {
+        if (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Invalid compression level");
+        }
+        this.level = level;
+    }
+
+    @Override
+    public int getId() {
+        return ID;
+    }
+
+    @NotNull
+    @Override
+    public ByteBuffer compress(@NotNull final ByteBuffer src) {
+        final Deflater deflater = new Deflater(level);
+        try {
+            deflater.setInput(src.duplicate());
+            deflater.finish();
+            ByteBuffer result = ByteBuffer.allocate(src.remaining() / 2 + 64);
+            while (!deflater.finished()) {
+                if (!result.hasRemaining()) {
+                    result = ByteBuffer.allocate(result.capacity() * 2).put(result.flip());
+                }
+                deflater.deflate(result);
+            }
+            return result.flip();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    @NotNull
+    @Override
+    public ByteBuffer decompress(@NotNull final ByteBuffer src, final int rawSize) {
+        final Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(src.duplicate());
+            // One more byte to detect the blocks which are larger than expected
+            final ByteBuffer result = ByteBuffer.allocate(rawSize + 1);
+            while (!inflater.finished()) {
+                if (inflater.inflate(result) == 0 && !inflater.finished()
+                        && (inflater.needsInput() || inflater.needsDictionary() || !result.hasRemaining())) {
+                    throw new IllegalArgumentException("Truncated block");
+                }
+            }
+            if (result.position() != rawSize) {
+                throw new IllegalArgumentException("Invalid size of block");
+            }
+            return result.flip().slice();
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Malformed block", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
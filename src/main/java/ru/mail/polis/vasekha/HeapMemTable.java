@@ -0,0 +1,207 @@
+package ru.mail.polis.vasekha;
+
+import com.google.common.collect.AbstractIterator;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sorted in-heap table which may be updated and read concurrently.
+ * Keys and values are stored by reference, the callers must not modify them.
+ */
+public final class HeapMemTable implements MemTable {
+    // Replaced version of the key which was not in the table
+    private static final Row ABSENT = new Row(Value.EMPTY_BUFFER, new Value(0, true, Value.EMPTY_BUFFER));
+
+    private final ConcurrentNavigableMap<ByteBuffer, Row> table = new ConcurrentSkipListMap<>();
+    private final AtomicLong sizeBytes = new AtomicLong();
+    private final RangeTombstoneMap rangeTombstones = new RangeTombstoneMap();
+    private final PendingBatches pending = new PendingBatches();
+    // The versions replaced by the rows of the pending batches, rows are compared by identity
+    private final Map<Row, Row> replaced = new ConcurrentHashMap<>();
+
+    @NotNull
+    @Override
+    public Iterator<Row> iterator(@NotNull final ByteBuffer from) {
+        return new VisibleIterator(from);
+    }
+
+    @Nullable
+    @Override
+    public Row get(@NotNull final ByteBuffer key) {
+        final Row row = table.get(key);
+        if (row == null) {
+            return null;
+        }
+        final Row result = visible(row);
+        return result == ABSENT ? null : result;
+    }
+
+    /**
+     * Iterates the rows which readers may see. The iterator of the map reads the next row ahead,
+     * so once a batch is started it falls back to looking up each row after the previous one is resolved.
+     * Otherwise a row of a batch published in between would be seen along with the older row read ahead.
+     */
+    private final class VisibleIterator extends AbstractIterator<Row> {
+        private final long started;
+        private Iterator<Row> rows;
+        private ByteBuffer last;
+        private boolean inclusive = true;
+
+        VisibleIterator(@NotNull final ByteBuffer from) {
+            this.started = pending.idle();
+            this.last = from;
+            this.rows = started < 0 ? null : table.tailMap(from).values().iterator();
+        }
+
+        @Override
+        protected Row computeNext() {
+            if (rows != null) {
+                if (!rows.hasNext()) {
+                    return endOfData();
+                }
+                final Row row = rows.next();
+                if (pending.started() == started) {
+                    last = row.getKey();
+                    inclusive = false;
+                    return row;
+                }
+                rows = null;
+            }
+            while (true) {
+                final Map.Entry<ByteBuffer, Row> entry = inclusive ? table.ceilingEntry(last) : table.higherEntry(last);
+                if (entry == null) {
+                    return endOfData();
+                }
+                last = entry.getKey();
+                inclusive = false;
+                final Row row = visible(entry.getValue());
+                if (row != ABSENT) {
+                    return row;
+                }
+            }
+        }
+    }
+
+    /**
+     * Follows the versions replaced by the pending batches back to the row which readers may see.
+     */
+    @NotNull
+    private Row visible(@NotNull final Row row) {
+        Row result = row;
+        while (result != ABSENT && pending.contains(result.getValue().getTimestamp())) {
+            final Row previous = replaced.get(result);
+            if (previous == null) {
+                // The batch has been published
+                break;
+            }
+            result = previous;
+        }
+        return result;
+    }
+
+    @Override
+    public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) {
+        upsert(Row.of(key, value));
+    }
+
+    @Override
+    public void remove(@NotNull final ByteBuffer key) {
+        upsert(Row.remove(key));
+    }
+
+    @Override
+    public void upsert(@NotNull final Row row) {
+        put(row, false);
+    }
+
+    @Override
+    public void upsert(@NotNull final List<Row> rows) {
+        final long first = rows.get(0).getValue().getTimestamp();
+        pending.begin(first, rows.get(rows.size() - 1).getValue().getTimestamp());
+        try {
+            for (final Row row : rows) {
+                put(row, true);
+            }
+        } finally {
+            pending.end(first);
+            for (final Row row : rows) {
+                replaced.remove(row);
+            }
+        }
+    }
+
+    /**
+     * Puts the row, the version it replaces is recorded before the row is reachable if the row is hidden.
+     */
+    private void put(@NotNull final Row row, final boolean hidden) {
+        final ByteBuffer key = row.getKey();
+        while (true) {
+            final Row previous = table.get(key);
+            if (previous == null) {
+                if (hidden) {
+                    replaced.put(row, ABSENT);
+                }
+                if (table.putIfAbsent(key, row) == null) {
+                    sizeBytes.addAndGet(row.getSizeBytes());
+                    return;
+                }
+                continue;
+            }
+            if (previous.getValue().getTimestamp() > row.getValue().getTimestamp()) {
+                return;
+            }
+            if (hidden) {
+                replaced.put(row, previous);
+            }
+            if (table.replace(key, previous, row)) {
+                sizeBytes.addAndGet(row.getValue().getSizeBytes() - previous.getValue().getSizeBytes());
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void removeRange(@NotNull final RangeTombstone tombstone) {
+        rangeTombstones.add(tombstone);
+        sizeBytes.addAndGet(tombstone.getSizeBytes());
+    }
+
+    @NotNull
+    @Override
+    public RangeTombstones getRangeTombstones() {
+        return rangeTombstones.snapshot();
+    }
+
+    @Override
+    public long getRangeTombstoneTimestamp(@NotNull final ByteBuffer key) {
+        return rangeTombstones.getTimestamp(key);
+    }
+
+    @Override
+    public long getSizeBytes() {
+        return sizeBytes.get();
+    }
+
+    @Override
+    public void flush(@NotNull final Path path, @NotNull final Config config) throws IOException {
+        SSTable.writeToFile(
+                path,
+                table.values().iterator(),
+                rangeTombstones.snapshot(),
+                config,
+                0,
+                table.size(),
+                Long.MAX_VALUE);
+    }
+}
@@ -0,0 +1,108 @@
+package ru.mail.polis.vasekha;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Distribution of non-negative values, such as latencies in nanoseconds, recorded by many threads
+ * without locks and allocation.
+ * Values below 16 have a bucket of their own, the range of each greater power of two is split into 8 buckets,
+ * so a percentile is reported with the relative error below 12.5% by the upper bound of its bucket.
+ */
+final class Histogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int LINEAR_BITS = SUB_BUCKET_BITS + 1;
+    private static final int LINEAR_BUCKETS = 1 << LINEAR_BITS;
+    private static final int BUCKETS = LINEAR_BUCKETS + (Long.SIZE - 1 - LINEAR_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records the value, negative values are recorded as zero.
+     */
+    void record(final long value) {
+        final long v = Math.max(value, 0);
+        counts.incrementAndGet(index(v));
+        sum.add(v);
+        long current = max.get();
+        while (v > current && !max.compareAndSet(current, v)) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * Records the time passed since the start returned by {@link System#nanoTime()}.
+     */
+    void recordSince(final long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    static int index(final long value) {
+        if (value < LINEAR_BUCKETS) {
+            return (int) value;
+        }
+        final int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+        final int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return LINEAR_BUCKETS + (exponent - LINEAR_BITS) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * Returns the greatest value which falls into the bucket.
+     */
+    static long upperBound(final int index) {
+        if (index < LINEAR_BUCKETS) {
+            return index;
+        }
+        if (index == BUCKETS - 1) {
+            return Long.MAX_VALUE;
+        }
+        final int exponent = (index - LINEAR_BUCKETS) / SUB_BUCKETS + LINEAR_BITS;
+        final long subBucket = (index - LINEAR_BUCKETS) % SUB_BUCKETS;
+        return ((SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+    /**
+     * Copies the counters. The values recorded concurrently may be missing from some of them,
+     * the snapshot is consistent once the recording stops.
+     */
+    @NotNull
+    HistogramSnapshot snapshot() {
+        final long[] buckets = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = counts.get(i);
+            count += buckets[i];
+        }
+        final long maxValue = max.get();
+        return new HistogramSnapshot(
+                count,
+                count == 0 ? 0 : (double) sum.sum() / count,
+                maxValue,
+                percentile(buckets, count, maxValue, 0.5),
+                percentile(buckets, count, maxValue, 0.9),
+                percentile(buckets, count, maxValue, 0.99),
+                percentile(buckets, count, maxValue, 0.999));
+    }
+
+    private static long percentile(
+            @NotNull final long[] buckets,
+            final long count,
+            final long maxValue,
+            final double quantile) {
+        final long rank = (long) Math.ceil(count * quantile);
+        long seen = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i];
+            if (seen >= rank && seen > 0) {
+                return Math.min(upperBound(i), maxValue);
+            }
+        }
+        return 0;
+    }
+}
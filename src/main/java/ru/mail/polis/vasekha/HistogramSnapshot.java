@@ -0,0 +1,66 @@
+package ru.mail.polis.vasekha;
+
+/**
+ * Summary of the values recorded by a histogram of {@link MetricsSnapshot}.
+ * Latencies are in nanoseconds, percentiles are rounded up to the bucket bounds with the relative error below 12.5%.
+ */
+public final class HistogramSnapshot {
+    private final long count;
+    private final double mean;
+    private final long max;
+    private final long p50;
+    private final long p90;
+    private final long p99;
+    private final long p999;
+
+    HistogramSnapshot(
+            final long count,
+            final double mean,
+            final long max,
+            final long p50,
+            final long p90,
+            final long p99,
+            final long p999) {
+        this.count = count;
+        this.mean = mean;
+        this.max = max;
+        this.p50 = p50;
+        this.p90 = p90;
+        this.p99 = p99;
+        this.p999 = p999;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getMean() {
+        return mean;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public long getP50() {
+        return p50;
+    }
+
+    public long getP90() {
+        return p90;
+    }
+
+    public long getP99() {
+        return p99;
+    }
+
+    public long getP999() {
+        return p999;
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + count + ", mean=" + Math.round(mean) + ", p50=" + p50 + ", p90=" + p90
+                + ", p99=" + p99 + ", p999=" + p999 + ", max=" + max;
+    }
+}
@@ -0,0 +1,61 @@
+package ru.mail.polis.vasekha;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+
+final class Keys {
+    private static final int SIGN_BIT = 0x80;
+    private static final int BYTE_MASK = 0xFF;
+
+    private Keys() {
+    }
+
+    /**
+     * Compares the key stored in the region of the buffer with the remaining bytes of the given key
+     * in the same way as {@link ByteBuffer#compareTo} does, but without creating a slice.
+     *
+     * @param buffer the buffer containing the stored key
+     * @param offset the absolute offset of the stored key in the buffer
+     * @param size   the size of the stored key
+     * @param key    the key to compare with
+     * @return a negative integer, zero, or a positive integer as the stored key is less than,
+     *     equal to, or greater than the given one
+     */
+    static int compare(
+            @NotNull final ByteBuffer buffer,
+            final int offset,
+            final int size,
+            @NotNull final ByteBuffer key) {
+        final int length = Math.min(size, key.remaining());
+        final int keyOffset = key.position();
+        for (int i = 0; i < length; i++) {
+            final int cmp = Byte.compare(buffer.get(offset + i), key.get(keyOffset + i));
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return Integer.compare(size, key.remaining());
+    }
+
+    /**
+     * Returns the first 8 bytes of the key as a long which orders the keys like {@link #compare} does
+     * when compared with {@link Long#compareUnsigned}: the sign bits of the bytes are flipped and short keys
+     * are padded with zeros. Different prefixes give the order of the keys, equal prefixes tell nothing.
+     *
+     * @param buffer the buffer containing the key
+     * @param offset the absolute offset of the key in the buffer
+     * @param size   the size of the key
+     * @return the prefix
+     */
+    static long prefix(@NotNull final ByteBuffer buffer, final int offset, final int size) {
+        long result = 0;
+        for (int i = 0; i < Long.BYTES; i++) {
+            result <<= Byte.SIZE;
+            if (i < size) {
+                result |= (buffer.get(offset + i) ^ SIGN_BIT) & BYTE_MASK;
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,159 @@
+package ru.mail.polis.vasekha;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Level 0 keeps flushed memTables which may overlap each other, every next level keeps tables
+ * with disjoint key ranges and may be {@link Config#getLevelSizeMultiplier()} times larger than the previous one.
+ * A compaction merges a single table with the tables of the next level it overlaps,
+ * so it rewrites a bounded amount of data and a key is looked up in at most one table per level.
+ * Level 0 is compacted as a whole, since its tables overlap.
+ */
+final class LeveledCompactionStrategy implements CompactionStrategy {
+    static final int MAX_LEVEL = 6;
+
+    private final Config config;
+    /**
+     * The last keys of the latest compacted tables, so that the compactions go round the key space of the level.
+     */
+    private final ByteBuffer[] compactPointers = new ByteBuffer[MAX_LEVEL + 1];
+
+    LeveledCompactionStrategy(@NotNull final Config config) {
+        this.config = config;
+    }
+
+    @Nullable
+    @Override
+    public Compaction pick(@NotNull final List<SSTable> ssTables) {
+        final List<List<SSTable>> levels = levels(ssTables);
+        int bestLevel = -1;
+        double bestScore = 1.0;
+        for (int level = 0; level < MAX_LEVEL; level++) {
+            final double score = score(level, levels.get(level));
+            if (score >= bestScore) {
+                bestScore = score;
+                bestLevel = level;
+            }
+        }
+        if (bestLevel < 0) {
+            return null;
+        } else if (bestLevel == 0) {
+            return compaction(0, levels.get(0), levels);
+        } else {
+            final List<SSTable> input = new ArrayList<>();
+            input.add(pickTable(bestLevel, levels.get(bestLevel)));
+            return compaction(bestLevel, input, levels);
+        }
+    }
+
+    @Nullable
+    @Override
+    public Compaction pickManual(@NotNull final List<SSTable> ssTables) {
+        final List<List<SSTable>> levels = levels(ssTables);
+        if (levels.get(0).isEmpty()) {
+            return pick(ssTables);
+        }
+        return compaction(0, levels.get(0), levels);
+    }
+
+    private double score(final int level, @NotNull final List<SSTable> tables) {
+        if (level == 0) {
+            return (double) tables.size() / config.getLevelZeroCompactionTrigger();
+        }
+        long bytes = 0;
+        for (final SSTable table : tables) {
+            bytes += table.getSizeBytes();
+        }
+        return (double) bytes / maxBytes(level);
+    }
+
+    private double maxBytes(final int level) {
+        return config.getLevelBaseBytes() * Math.pow(config.getLevelSizeMultiplier(), level - 1);
+    }
+
+    @NotNull
+    private SSTable pickTable(final int level, @NotNull final List<SSTable> tables) {
+        final ByteBuffer pointer = compactPointers[level];
+        SSTable result = tables.get(0);
+        if (pointer != null) {
+            for (final SSTable table : tables) {
+                if (table.getFirstKey().compareTo(pointer) > 0) {
+                    result = table;
+                    break;
+                }
+            }
+        }
+        compactPointers[level] = result.getLastKey();
+        return result;
+    }
+
+    /**
+     * Adds the overlapping tables of the next level to the tables of the level.
+     */
+    @NotNull
+    private static Compaction compaction(
+            final int level,
+            @NotNull final Collection<SSTable> tables,
+            @NotNull final List<List<SSTable>> levels) {
+        final List<SSTable> inputs = new ArrayList<>(tables);
+        final ByteBuffer from = minFirstKey(tables);
+        final ByteBuffer to = maxLastKey(tables);
+        for (final SSTable next : levels.get(level + 1)) {
+            if (next.overlaps(from, to)) {
+                inputs.add(next);
+            }
+        }
+        boolean bottommost = true;
+        for (int deeper = level + 2; deeper <= MAX_LEVEL; deeper++) {
+            bottommost &= levels.get(deeper).isEmpty();
+        }
+        return new Compaction(inputs, level + 1, bottommost);
+    }
+
+    /**
+     * Groups the tables by level, tables of the levels above 0 are sorted by keys.
+     */
+    @NotNull
+    private static List<List<SSTable>> levels(@NotNull final List<SSTable> ssTables) {
+        final List<List<SSTable>> levels = new ArrayList<>();
+        for (int level = 0; level <= MAX_LEVEL; level++) {
+            levels.add(new ArrayList<>());
+        }
+        for (final SSTable ssTable : ssTables) {
+            levels.get(Math.min(ssTable.getLevel(), MAX_LEVEL)).add(ssTable);
+        }
+        for (int level = 1; level <= MAX_LEVEL; level++) {
+            levels.get(level).sort(Comparator.comparing(SSTable::getFirstKey));
+        }
+        return levels;
+    }
+
+    @NotNull
+    private static ByteBuffer minFirstKey(@NotNull final Collection<SSTable> tables) {
+        ByteBuffer result = null;
+        for (final SSTable table : tables) {
+            if (result == null || table.getFirstKey().compareTo(result) < 0) {
+                result = table.getFirstKey();
+            }
+        }
+        return result == null ? Value.EMPTY_BUFFER : result;
+    }
+
+    @NotNull
+    private static ByteBuffer maxLastKey(@NotNull final Collection<SSTable> tables) {
+        ByteBuffer result = null;
+        for (final SSTable table : tables) {
+            if (result == null || table.getLastKey().compareTo(result) > 0) {
+                result = table.getLastKey();
+            }
+        }
+        return result == null ? Value.EMPTY_BUFFER : result;
+    }
+}
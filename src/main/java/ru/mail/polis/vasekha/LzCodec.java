@@ -0,0 +1,173 @@
+package ru.mail.polis.vasekha;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Fast LZ77 codec in the spirit of LZ4: a greedy matcher over a hash table of 4-byte sequences
+ * without entropy coding.
+ * Compressed format: sequences of token | extra literals length | literals | match offset | extra match length
+ * where the token keeps 4 bits of the literals length and 4 bits of the match length,
+ * the last sequence has only literals.
+ */
+public final class LzCodec implements BlockCodec {
+    public static final int ID = 2;
+    private static final int MIN_MATCH = 4;
+    private static final int HASH_LOG = 12;
+    private static final int MAX_OFFSET = 0xFFFF;
+    private static final int LAST_LITERALS = 5;
+    private static final int MATCH_FIND_LIMIT = 12;
+    private static final int NIBBLE_MASK = 0x0F;
+    private static final int BYTE_MASK = 0xFF;
+
+    @Override
+    public int getId() {
+        return ID;
+    }
+
+    @NotNull
+    @Override
+    public ByteBuffer compress(@NotNull final ByteBuffer src) {
+        final byte[] in = toArray(src);
+        final int length = in.length;
+        final byte[] out = new byte[length + length / BYTE_MASK + 16];
+        final int[] table = new int[1 << HASH_LOG];
+        Arrays.fill(table, -1);
+        int anchor = 0;
+        int op = 0;
+        int ip = 0;
+        while (ip < length - MATCH_FIND_LIMIT) {
+            final int sequence = readInt(in, ip);
+            final int hash = (sequence * -1640531535) >>> (Integer.SIZE - HASH_LOG);
+            int ref = table[hash];
+            table[hash] = ip;
+            if (ref < 0 || ip - ref > MAX_OFFSET || readInt(in, ref) != sequence) {
+                ip++;
+                continue;
+            }
+            while (ip > anchor && ref > 0 && in[ip - 1] == in[ref - 1]) {
+                ip--;
+                ref--;
+            }
+            int matchLength = MIN_MATCH;
+            while (ip + matchLength < length - LAST_LITERALS && in[ip + matchLength] == in[ref + matchLength]) {
+                matchLength++;
+            }
+            op = writeSequence(in, anchor, ip - anchor, out, op, ip - ref, matchLength);
+            ip += matchLength;
+            anchor = ip;
+        }
+        op = writeSequence(in, anchor, length - anchor, out, op, 0, 0);
+        return ByteBuffer.wrap(out, 0, op);
+    }
+
+    private static int writeSequence(
+            @NotNull final byte[] in,
+            final int literalsOffset,
+            final int literalsLength,
+            @NotNull final byte[] out,
+            final int outOffset,
+            final int matchOffset,
+            final int matchLength) {
+        int op = outOffset;
+        final int token = op++;
+        out[token] = (byte) (Math.min(literalsLength, NIBBLE_MASK) << 4);
+        op = writeLength(out, op, literalsLength);
+        System.arraycopy(in, literalsOffset, out, op, literalsLength);
+        op += literalsLength;
+        if (matchLength == 0) {
+            return op;
+        }
+        out[op++] = (byte) matchOffset;
+        out[op++] = (byte) (matchOffset >>> Byte.SIZE);
+        out[token] |= (byte) Math.min(matchLength - MIN_MATCH, NIBBLE_MASK);
+        return writeLength(out, op, matchLength - MIN_MATCH);
+    }
+
+    private static int writeLength(@NotNull final byte[] out, final int offset, final int length) {
+        int op = offset;
+        if (length >= NIBBLE_MASK) {
+            int rest = length - NIBBLE_MASK;
+            while (rest >= BYTE_MASK) {
+                out[op++] = (byte) BYTE_MASK;
+                rest -= BYTE_MASK;
+            }
+            out[op++] = (byte) rest;
+        }
+        return op;
+    }
+
+    @NotNull
+    @Override
+    public ByteBuffer decompress(@NotNull final ByteBuffer src, final int rawSize) {
+        final byte[] in = toArray(src);
+        final byte[] out = new byte[rawSize];
+        int ip = 0;
+        int op = 0;
+        try {
+            while (ip < in.length) {
+                final int token = in[ip++] & BYTE_MASK;
+                int literalsLength = token >>> 4;
+                if (literalsLength == NIBBLE_MASK) {
+                    int b;
+                    do {
+                        b = in[ip++] & BYTE_MASK;
+                        literalsLength += b;
+                    } while (b == BYTE_MASK);
+                }
+                System.arraycopy(in, ip, out, op, literalsLength);
+                ip += literalsLength;
+                op += literalsLength;
+                if (ip == in.length) {
+                    break;
+                }
+                final int matchOffset = (in[ip] & BYTE_MASK) | (in[ip + 1] & BYTE_MASK) << Byte.SIZE;
+                ip += 2;
+                int matchLength = token & NIBBLE_MASK;
+                if (matchLength == NIBBLE_MASK) {
+                    int b;
+                    do {
+                        b = in[ip++] & BYTE_MASK;
+                        matchLength += b;
+                    } while (b == BYTE_MASK);
+                }
+                matchLength += MIN_MATCH;
+                final int ref = op - matchOffset;
+                if (matchOffset == 0 || ref < 0) {
+                    throw new IllegalArgumentException("Malformed block");
+                }
+                if (matchOffset >= matchLength) {
+                    System.arraycopy(out, ref, out, op, matchLength);
+                } else {
+                    // Overlapping match repeats the last bytes
+                    for (int i = 0; i < matchLength; i++) {
+                        out[op + i] = out[ref + i];
+                    }
+                }
+                op += matchLength;
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Malformed block", e);
+        }
+        if (op != rawSize) {
+            throw new IllegalArgumentException("Invalid size of block");
+        }
+        return ByteBuffer.wrap(out);
+    }
+
+    private static int readInt(@NotNull final byte[] array, final int offset) {
+        return (array[offset] & BYTE_MASK)
+                | (array[offset + 1] & BYTE_MASK) << 8
+                | (array[offset + 2] & BYTE_MASK) << 16
+                | (array[offset + 3] & BYTE_MASK) << 24;
+    }
+
+    @NotNull
+    private static byte[] toArray(@NotNull final ByteBuffer buffer) {
+        final byte[] result = new byte[buffer.remaining()];
+        buffer.duplicate().get(result);
+        return result;
+    }
+}
@@ -0,0 +1,227 @@
+package ru.mail.polis.vasekha;
+
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only log of the changes of the set of live SSTables.
+ * The DAO opens only the tables listed here, so the outputs of an interrupted flush or compaction
+ * and the inputs of a finished one, which were not deleted before a crash, are never read.
+ * Record format in file: payload size | crc32c of payload | payload
+ * Payload format: removed count | removed tables | added count | added tables
+ * Removed table format: name size | name
+ * Added table format: name size | name | level
+ * The key ranges and the other properties of tables are kept in their footers.
+ * The manifest is replayed up to the first torn record and rewritten as a single record
+ * on open and on close, so that it does not grow with the history of the tables.
+ */
+final class Manifest implements Closeable {
+    static final String FILE_NAME = "MANIFEST";
+    private static final Logger log = LoggerFactory.getLogger(Manifest.class);
+    private static final String TMP_FILE_NAME = "MANIFEST.tmp";
+    private static final int HEADER_BYTES = Integer.BYTES * 2;
+
+    private final Path folder;
+    private final Map<String, Integer> tables;
+    private final boolean created;
+    private FileChannel fileChannel;
+
+    private Manifest(@NotNull final Path folder, @NotNull final Map<String, Integer> tables, final boolean created) {
+        this.folder = folder;
+        this.tables = tables;
+        this.created = created;
+    }
+
+    /**
+     * Replays the manifest of the folder or creates an empty one if there is no manifest yet.
+     * Nothing is written until {@link #rewrite(Map)} is called.
+     *
+     * @param folder the folder of the DAO
+     * @return the manifest
+     * @throws IOException if an I/O error occurs
+     */
+    @NotNull
+    static Manifest open(@NotNull final Path folder) throws IOException {
+        final Path path = folder.resolve(FILE_NAME);
+        final boolean exists = Files.exists(path);
+        return new Manifest(folder, exists ? replay(path) : new LinkedHashMap<>(), !exists);
+    }
+
+    @NotNull
+    private static Map<String, Integer> replay(@NotNull final Path path) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+        final Map<String, Integer> tables = new LinkedHashMap<>();
+        final CRC32C crc = new CRC32C();
+        int records = 0;
+        while (buffer.remaining() >= HEADER_BYTES) {
+            final int size = buffer.getInt(buffer.position());
+            if (size < 0 || size > buffer.remaining() - HEADER_BYTES) {
+                break;
+            }
+            final ByteBuffer payload = buffer.duplicate()
+                    .position(buffer.position() + HEADER_BYTES)
+                    .limit(buffer.position() + HEADER_BYTES + size)
+                    .slice();
+            crc.reset();
+            crc.update(payload.duplicate());
+            if ((int) crc.getValue() != buffer.getInt(buffer.position() + Integer.BYTES)) {
+                break;
+            }
+            final int removedCount = payload.getInt();
+            for (int i = 0; i < removedCount; i++) {
+                tables.remove(readName(payload));
+            }
+            final int addedCount = payload.getInt();
+            for (int i = 0; i < addedCount; i++) {
+                final String name = readName(payload);
+                tables.put(name, payload.getInt());
+            }
+            buffer.position(buffer.position() + HEADER_BYTES + size);
+            records++;
+        }
+        if (buffer.hasRemaining()) {
+            log.warn("Ignoring {} bytes of torn tail of {}", buffer.remaining(), path);
+        }
+        log.info("Replayed {} records of {}, {} live tables", records, path, tables.size());
+        return tables;
+    }
+
+    @NotNull
+    private static String readName(@NotNull final ByteBuffer payload) {
+        final byte[] name = new byte[payload.getInt()];
+        payload.get(name);
+        return new String(name, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns true if the folder had no manifest, so the tables it has are to be found by listing it.
+     */
+    boolean isCreated() {
+        return created;
+    }
+
+    /**
+     * Returns the file names of the live tables with their levels in the order of addition.
+     */
+    @NotNull
+    synchronized Map<String, Integer> getTables() {
+        return new LinkedHashMap<>(tables);
+    }
+
+    /**
+     * Durably replaces the tables with the others in a single record.
+     *
+     * @param removed the tables which are not live anymore
+     * @param added   the new tables
+     * @throws IOException if an I/O error occurs
+     */
+    synchronized void apply(
+            @NotNull final Collection<SSTable> removed,
+            @NotNull final Collection<SSTable> added) throws IOException {
+        final Map<String, Integer> addedTables = new LinkedHashMap<>();
+        for (final SSTable ssTable : added) {
+            addedTables.put(ssTable.getPath().getFileName().toString(), ssTable.getLevel());
+        }
+        final List<String> removedNames = new ArrayList<>();
+        for (final SSTable ssTable : removed) {
+            removedNames.add(ssTable.getPath().getFileName().toString());
+        }
+        write(fileChannel, removedNames, addedTables);
+        tables.keySet().removeAll(removedNames);
+        tables.putAll(addedTables);
+    }
+
+    /**
+     * Replaces the manifest with a single record which adds the live tables.
+     */
+    synchronized void rewrite() throws IOException {
+        rewrite(new LinkedHashMap<>(tables));
+    }
+
+    /**
+     * Replaces the manifest with a single record which adds the given tables, they become the live ones.
+     *
+     * @param liveTables the file names of the live tables with their levels
+     * @throws IOException if an I/O error occurs
+     */
+    synchronized void rewrite(@NotNull final Map<String, Integer> liveTables) throws IOException {
+        final Path tmpPath = folder.resolve(TMP_FILE_NAME);
+        try (FileChannel tmpChannel = FileChannel.open(
+                tmpPath,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE)) {
+            write(tmpChannel, Collections.emptyList(), liveTables);
+        }
+        if (fileChannel != null) {
+            fileChannel.close();
+        }
+        final Path path = folder.resolve(FILE_NAME);
+        Files.move(tmpPath, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        fileChannel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        tables.clear();
+        tables.putAll(liveTables);
+    }
+
+    private static void write(
+            @NotNull final FileChannel channel,
+            @NotNull final Collection<String> removed,
+            @NotNull final Map<String, Integer> added) throws IOException {
+        int size = Integer.BYTES * 2;
+        for (final String name : removed) {
+            size += Integer.BYTES + name.getBytes(StandardCharsets.UTF_8).length;
+        }
+        for (final String name : added.keySet()) {
+            size += Integer.BYTES * 2 + name.getBytes(StandardCharsets.UTF_8).length;
+        }
+        final ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + size)
+                .putInt(size)
+                .putInt(0)
+                .putInt(removed.size());
+        for (final String name : removed) {
+            putName(record, name);
+        }
+        record.putInt(added.size());
+        for (final Map.Entry<String, Integer> table : added.entrySet()) {
+            putName(record, table.getKey());
+            record.putInt(table.getValue());
+        }
+        final CRC32C crc = new CRC32C();
+        crc.update(record.flip().position(HEADER_BYTES));
+        record.putInt(Integer.BYTES, (int) crc.getValue()).rewind();
+        while (record.hasRemaining()) {
+            channel.write(record);
+        }
+        channel.force(false);
+    }
+
+    private static void putName(@NotNull final ByteBuffer record, @NotNull final String name) {
+        final byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        record.putInt(bytes.length).put(bytes);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (fileChannel != null) {
+            fileChannel.close();
+        }
+    }
+}
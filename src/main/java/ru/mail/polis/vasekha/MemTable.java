@@ -1,63 +1,73 @@
 package ru.mail.polis.vasekha;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.file.Path;
 import java.util.Iterator;
-import java.util.NavigableMap;
-import java.util.TreeMap;
-
-public final class MemTable implements Table {
-    private NavigableMap<ByteBuffer, Row> table = new TreeMap<>();
-    private long sizeBytes;
+import java.util.List;
 
+/**
+ * Sorted in-memory table which may be updated and read concurrently.
+ */
+public interface MemTable extends Table {
     @NotNull
     @Override
-    public Iterator<Row> iterator(@NotNull final ByteBuffer from) {
-        return table.tailMap(from).values().iterator();
-    }
+    Iterator<Row> iterator(@NotNull ByteBuffer from);
 
-    @Override
-    public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) {
-        final Row current = Row.of(key, value);
-        final Row previous = table.put(key, current);
-        if (previous == null) {
-            sizeBytes += current.getSizeBytes();
-        } else {
-            sizeBytes += current.getValue().getSizeBytes() - previous.getValue().getSizeBytes();
-        }
-    }
+    /**
+     * Returns the row (possibly tombstone) with the key or null if the table does not contain it.
+     */
+    @Nullable
+    Row get(@NotNull ByteBuffer key);
 
-    @Override
-    public void remove(@NotNull final ByteBuffer key) {
-        final Row current = Row.remove(key);
-        final Row previous = table.put(key, current);
-        if (previous == null) {
-            sizeBytes += current.getSizeBytes();
-        } else {
-            sizeBytes += current.getValue().getSizeBytes() - previous.getValue().getSizeBytes();
-        }
-    }
-
-    public long getSizeBytes() {
-        return sizeBytes;
-    }
-
-    public void clear() {
-        table = new TreeMap<>();
-        sizeBytes = 0;
-    }
-
-    /**
-     * Performs flush of the table to the file.
+    /**
+     * Puts the row keeping its timestamp, e.g. when the row is replayed from the log.
+     * The row with the greater timestamp wins regardless of the order of concurrent calls.
+     *
+     * @param row the row to put
+     */
+    void upsert(@NotNull Row row);
+
+    /**
+     * Puts the rows of a batch, which have consecutive timestamps, so that readers see either all or none of them.
+     * Until the last row is put, readers see the versions which the rows of the batch replaced.
+     *
+     * @param rows the rows to put in the order of their timestamps
+     */
+    void upsert(@NotNull List<Row> rows);
+
+    /**
+     * Puts the range tombstone keeping its timestamp.
+     *
+     * @param tombstone the tombstone to put
+     */
+    void removeRange(@NotNull RangeTombstone tombstone);
+
+    /**
+     * Returns the range tombstones of the table, the rows they cover are not removed from the table.
+     */
+    @NotNull
+    RangeTombstones getRangeTombstones();
+
+    /**
+     * Returns the timestamp of the range tombstone covering the key or 0 if the key is not covered.
+     */
+    long getRangeTombstoneTimestamp(@NotNull ByteBuffer key);
+
+    /**
+     * Returns the memory occupied by the rows of the table.
+     */
+    long getSizeBytes();
+
+    /**
+     * Writes the table to the file, the table must not be updated anymore.
      *
-     * @param path the path of the file in which the table will be written
+     * @param path   the path of the file in which the table will be written
+     * @param config the parameters of the file
      * @throws IOException if an I/O error occurs
      */
-    public void flush(@NotNull final Path path) throws IOException {
-        SSTable.writeToFile(path, table.values().iterator());
-        clear();
-    }
+    void flush(@NotNull Path path, @NotNull Config config) throws IOException;
 }
@@ -0,0 +1,15 @@
+package ru.mail.polis.vasekha;
+
+/**
+ * Defines where {@link MemTable} keeps the rows.
+ */
+public enum MemTableMode {
+    /**
+     * Rows are kept in the heap by reference, see {@link HeapMemTable}.
+     */
+    HEAP,
+    /**
+     * Rows are copied to direct memory slabs, see {@link OffHeapMemTable}.
+     */
+    OFF_HEAP
+}
@@ -0,0 +1,224 @@
+package ru.mail.polis.vasekha;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Merges the sorted rows of several tables into the newest row of every key.
+ * The sources are given from the newest table to the oldest one and a table contains a key at most once,
+ * so that of the rows with equal keys the row of the newest source wins without comparing timestamps.
+ * The heads of the sources are kept in a tournament tree of losers: every inner node stores the source
+ * which lost the match played there, so that advancing the winner replays only the matches
+ * on the path from its leaf to the root, which is log(k) comparisons of keys and no allocations.
+ * The rows covered by the newer range tombstones are skipped, as well as the dead rows if requested.
+ */
+final class MergeCursor implements RowCursor {
+    private final RowCursor[] sources;
+    private final boolean[] valid;
+    private final ByteBuffer[] keys;
+    private final int[] tree;
+    private final RangeTombstones rangeTombstones;
+    private final boolean skipDead;
+    private final long nowMillis;
+    private byte[] key = new byte[0];
+    private ByteBuffer keyBuffer = ByteBuffer.wrap(key);
+    private ByteBuffer keyView = keyBuffer.asReadOnlyBuffer();
+    private int fragment;
+    private boolean started;
+
+    private MergeCursor(
+            @NotNull final List<RowCursor> sources,
+            @NotNull final RangeTombstones rangeTombstones,
+            final boolean skipDead,
+            final long nowMillis) {
+        this.sources = sources.toArray(new RowCursor[0]);
+        this.valid = new boolean[Math.max(1, sources.size())];
+        this.keys = new ByteBuffer[sources.size()];
+        this.tree = new int[Math.max(1, sources.size())];
+        this.rangeTombstones = rangeTombstones;
+        this.skipDead = skipDead;
+        this.nowMillis = nowMillis;
+        for (int i = 0; i < this.sources.length; i++) {
+            fetch(i);
+        }
+        build();
+    }
+
+    /**
+     * Returns the newest row of every key including tombstones and expired rows.
+     *
+     * @param sources         the cursors of the tables from the newest to the oldest
+     * @param rangeTombstones the range tombstones of the tables
+     */
+    @NotNull
+    static MergeCursor all(@NotNull final List<RowCursor> sources, @NotNull final RangeTombstones rangeTombstones) {
+        return new MergeCursor(sources, rangeTombstones, false, 0);
+    }
+
+    /**
+     * Returns the newest row of every key if it is neither removed nor expired at the time.
+     *
+     * @param sources         the cursors of the tables from the newest to the oldest
+     * @param rangeTombstones the range tombstones of the tables
+     * @param nowMillis       the time in milliseconds since the epoch to check the expiration at
+     */
+    @NotNull
+    static MergeCursor alive(
+            @NotNull final List<RowCursor> sources,
+            @NotNull final RangeTombstones rangeTombstones,
+            final long nowMillis) {
+        return new MergeCursor(sources, rangeTombstones, true, nowMillis);
+    }
+
+    @Override
+    public boolean advance() {
+        if (started) {
+            drop();
+        }
+        started = true;
+        while (valid[tree[0]]) {
+            copyKey(keys[tree[0]]);
+            if (isVisible(sources[tree[0]])) {
+                return true;
+            }
+            drop();
+        }
+        return false;
+    }
+
+    @NotNull
+    @Override
+    public ByteBuffer key() {
+        return keyView.clear().limit(keyBuffer.limit());
+    }
+
+    @NotNull
+    @Override
+    public ByteBuffer value() {
+        return sources[tree[0]].value();
+    }
+
+    @Override
+    public long timestamp() {
+        return sources[tree[0]].timestamp();
+    }
+
+    @Override
+    public boolean isRemoved() {
+        return sources[tree[0]].isRemoved();
+    }
+
+    @Override
+    public long expiresAt() {
+        return sources[tree[0]].expiresAt();
+    }
+
+    @NotNull
+    @Override
+    public Row row() {
+        return sources[tree[0]].row();
+    }
+
+    /**
+     * Keeps the key of the winner, since the view of the source is reused when the source advances.
+     */
+    private void copyKey(@NotNull final ByteBuffer source) {
+        final int size = source.remaining();
+        if (key.length < size) {
+            key = Arrays.copyOf(key, Math.max(size, key.length * 2));
+            keyBuffer = ByteBuffer.wrap(key);
+            keyView = keyBuffer.asReadOnlyBuffer();
+        }
+        for (int i = 0; i < size; i++) {
+            key[i] = source.get(source.position() + i);
+        }
+        keyBuffer.clear().limit(size);
+    }
+
+    private boolean isVisible(@NotNull final RowCursor winner) {
+        if (skipDead && !winner.isAlive(nowMillis)) {
+            return false;
+        }
+        if (rangeTombstones.isEmpty()) {
+            return true;
+        }
+        fragment = rangeTombstones.skipTo(fragment, keyBuffer);
+        return winner.timestamp() >= rangeTombstones.getTimestamp(fragment, keyBuffer);
+    }
+
+    /**
+     * Advances the winner and the older sources with the same key, which are the following winners.
+     */
+    private void drop() {
+        pop(tree[0]);
+        while (valid[tree[0]] && keys[tree[0]].equals(keyBuffer)) {
+            pop(tree[0]);
+        }
+    }
+
+    private void pop(final int source) {
+        fetch(source);
+        replay(source);
+    }
+
+    private void fetch(final int source) {
+        valid[source] = sources[source].advance();
+        keys[source] = valid[source] ? sources[source].key() : null;
+    }
+
+    /**
+     * Plays all the matches bottom-up. Leaves are the virtual nodes k..2k-1 and the node n has the children
+     * 2n and 2n+1, the root is the node 1 and the overall winner is stored in the node 0.
+     */
+    private void build() {
+        final int k = sources.length;
+        final int[] winners = new int[k * 2];
+        for (int i = 0; i < k; i++) {
+            winners[k + i] = i;
+        }
+        for (int node = k - 1; node > 0; node--) {
+            final int left = winners[node * 2];
+            final int right = winners[node * 2 + 1];
+            if (beats(left, right)) {
+                winners[node] = left;
+                tree[node] = right;
+            } else {
+                winners[node] = right;
+                tree[node] = left;
+            }
+        }
+        tree[0] = k <= 1 ? 0 : winners[1];
+    }
+
+    /**
+     * Replays the matches on the path from the leaf of the source which head was replaced to the root.
+     */
+    private void replay(final int source) {
+        int winner = source;
+        for (int node = (source + sources.length) >>> 1; node > 0; node >>>= 1) {
+            if (beats(tree[node], winner)) {
+                final int loser = winner;
+                winner = tree[node];
+                tree[node] = loser;
+            }
+        }
+        tree[0] = winner;
+    }
+
+    /**
+     * Exhausted sources lose, the smaller key wins and of the equal keys the newer source wins.
+     */
+    private boolean beats(final int source, final int other) {
+        if (!valid[source]) {
+            return false;
+        }
+        if (!valid[other]) {
+            return true;
+        }
+        final int cmp = keys[source].compareTo(keys[other]);
+        return cmp < 0 || cmp == 0 && source < other;
+    }
+}
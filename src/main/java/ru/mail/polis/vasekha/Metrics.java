@@ -0,0 +1,50 @@
+package ru.mail.polis.vasekha;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms of a DAO. They are updated by the operations without locks and allocation,
+ * gauges such as the number of SSTables are read from the tables when {@link #snapshot(TableSet)} is taken.
+ */
+final class Metrics {
+    final Histogram upsertLatency = new Histogram();
+    final Histogram removeLatency = new Histogram();
+    final Histogram getLatency = new Histogram();
+    final Histogram iteratorLatency = new Histogram();
+    final Histogram flushLatency = new Histogram();
+    final Histogram compactionLatency = new Histogram();
+    final Histogram tablesPerGet = new Histogram();
+    final LongAdder flushBytes = new LongAdder();
+    final LongAdder compactionBytesIn = new LongAdder();
+    final LongAdder compactionBytesOut = new LongAdder();
+
+    @NotNull
+    MetricsSnapshot snapshot(@NotNull final TableSet tables) {
+        long ssTableBytes = 0;
+        for (final SSTable ssTable : tables.getSSTables()) {
+            ssTableBytes += ssTable.getSizeBytes();
+        }
+        long flushingBytes = 0;
+        for (final MemTable memTable : tables.getFlushing()) {
+            flushingBytes += memTable.getSizeBytes();
+        }
+        return new MetricsSnapshot(
+                tables.getSSTables().size(),
+                ssTableBytes,
+                tables.getMemTable().getSizeBytes(),
+                tables.getFlushing().size(),
+                flushingBytes,
+                flushBytes.sum(),
+                compactionBytesIn.sum(),
+                compactionBytesOut.sum(),
+                upsertLatency.snapshot(),
+                removeLatency.snapshot(),
+                getLatency.snapshot(),
+                iteratorLatency.snapshot(),
+                flushLatency.snapshot(),
+                compactionLatency.snapshot(),
+                tablesPerGet.snapshot());
+    }
+}
@@ -0,0 +1,13 @@
+package ru.mail.polis.vasekha;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Management interface of {@link MyDAO}, registered in the platform MBean server under
+ * {@code ru.mail.polis.vasekha:type=MyDAO,folder=<quoted path>,id=<instance number>} while the DAO is open.
+ * JMX clients see the metrics as a composite attribute {@code Metrics}.
+ */
+public interface MetricsMXBean {
+    @NotNull
+    MetricsSnapshot getMetrics();
+}
@@ -0,0 +1,158 @@
+package ru.mail.polis.vasekha;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Metrics of {@link MyDAO} at the moment of {@link MyDAO#getMetrics()}.
+ * Counters and histograms accumulate since the DAO was opened, gauges describe the current tables.
+ * Latencies are in nanoseconds.
+ */
+public final class MetricsSnapshot {
+    private final int ssTableCount;
+    private final long ssTableBytes;
+    private final long memTableBytes;
+    private final int flushingMemTableCount;
+    private final long flushingMemTableBytes;
+    private final long flushBytes;
+    private final long compactionBytesIn;
+    private final long compactionBytesOut;
+    private final HistogramSnapshot upsertLatency;
+    private final HistogramSnapshot removeLatency;
+    private final HistogramSnapshot getLatency;
+    private final HistogramSnapshot iteratorLatency;
+    private final HistogramSnapshot flushLatency;
+    private final HistogramSnapshot compactionLatency;
+    private final HistogramSnapshot tablesPerGet;
+
+    MetricsSnapshot(
+            final int ssTableCount,
+            final long ssTableBytes,
+            final long memTableBytes,
+            final int flushingMemTableCount,
+            final long flushingMemTableBytes,
+            final long flushBytes,
+            final long compactionBytesIn,
+            final long compactionBytesOut,
+            @NotNull final HistogramSnapshot upsertLatency,
+            @NotNull final HistogramSnapshot removeLatency,
+            @NotNull final HistogramSnapshot getLatency,
+            @NotNull final HistogramSnapshot iteratorLatency,
+            @NotNull final HistogramSnapshot flushLatency,
+            @NotNull final HistogramSnapshot compactionLatency,
+            @NotNull final HistogramSnapshot tablesPerGet) {
+        this.ssTableCount = ssTableCount;
+        this.ssTableBytes = ssTableBytes;
+        this.memTableBytes = memTableBytes;
+        this.flushingMemTableCount = flushingMemTableCount;
+        this.flushingMemTableBytes = flushingMemTableBytes;
+        this.flushBytes = flushBytes;
+        this.compactionBytesIn = compactionBytesIn;
+        this.compactionBytesOut = compactionBytesOut;
+        this.upsertLatency = upsertLatency;
+        this.removeLatency = removeLatency;
+        this.getLatency = getLatency;
+        this.iteratorLatency = iteratorLatency;
+        this.flushLatency = flushLatency;
+        this.compactionLatency = compactionLatency;
+        this.tablesPerGet = tablesPerGet;
+    }
+
+    public int getSSTableCount() {
+        return ssTableCount;
+    }
+
+    public long getSSTableBytes() {
+        return ssTableBytes;
+    }
+
+    /**
+     * Returns the size of the memTable which takes the writes.
+     */
+    public long getMemTableBytes() {
+        return memTableBytes;
+    }
+
+    /**
+     * Returns the number of full memTables waiting for their flushes.
+     */
+    public int getFlushingMemTableCount() {
+        return flushingMemTableCount;
+    }
+
+    public long getFlushingMemTableBytes() {
+        return flushingMemTableBytes;
+    }
+
+    /**
+     * Returns the total size of the SSTables written by flushes, the number of flushes is the count of
+     * {@link #getFlushLatency()}.
+     */
+    public long getFlushBytes() {
+        return flushBytes;
+    }
+
+    public long getCompactionBytesIn() {
+        return compactionBytesIn;
+    }
+
+    public long getCompactionBytesOut() {
+        return compactionBytesOut;
+    }
+
+    @NotNull
+    public HistogramSnapshot getUpsertLatency() {
+        return upsertLatency;
+    }
+
+    @NotNull
+    public HistogramSnapshot getRemoveLatency() {
+        return removeLatency;
+    }
+
+    @NotNull
+    public HistogramSnapshot getGetLatency() {
+        return getLatency;
+    }
+
+    /**
+     * Returns the latency of creating iterators and cursors, which includes seeking all the tables to the first key.
+     */
+    @NotNull
+    public HistogramSnapshot getIteratorLatency() {
+        return iteratorLatency;
+    }
+
+    @NotNull
+    public HistogramSnapshot getFlushLatency() {
+        return flushLatency;
+    }
+
+    @NotNull
+    public HistogramSnapshot getCompactionLatency() {
+        return compactionLatency;
+    }
+
+    /**
+     * Returns the number of tables probed by a get, from the memTable down to the one containing the key.
+     */
+    @NotNull
+    public HistogramSnapshot getTablesPerGet() {
+        return tablesPerGet;
+    }
+
+    @Override
+    public String toString() {
+        return "ssTables=" + ssTableCount + " (" + ssTableBytes + " bytes)"
+                + ", memTable=" + memTableBytes + " bytes"
+                + ", flushing=" + flushingMemTableCount + " (" + flushingMemTableBytes + " bytes)"
+                + ", flushed=" + flushBytes + " bytes"
+                + ", compacted=" + compactionBytesIn + " -> " + compactionBytesOut + " bytes"
+                + ", upsert=[" + upsertLatency + "]"
+                + ", remove=[" + removeLatency + "]"
+                + ", get=[" + getLatency + "]"
+                + ", iterator=[" + iteratorLatency + "]"
+                + ", flush=[" + flushLatency + "]"
+                + ", compaction=[" + compactionLatency + "]"
+                + ", tablesPerGet=[" + tablesPerGet + "]";
+    }
+}
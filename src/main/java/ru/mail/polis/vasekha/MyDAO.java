@@ -2,7 +2,10 @@ package ru.mail.polis.vasekha;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
 import java.nio.file.FileVisitOption;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
@@ -12,26 +15,71 @@ import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.EnumSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
 
-import com.google.common.collect.Iterators;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import ru.mail.polis.DAO;
-import ru.mail.polis.Iters;
 import ru.mail.polis.Record;
 
-public final class MyDAO implements DAO {
+public final class MyDAO implements DAO, MetricsMXBean {
     private static final Logger log = LoggerFactory.getLogger(MyDAO.class);
+    private static final AtomicLong instances = new AtomicLong();
     private static final String SUFFIX = ".db";
     private static final String SUFFIX_TMP = ".tmp";
+    private static final String SUFFIX_LOG = ".wal";
+    private static final String SUFFIX_CORRUPTED = ".corrupted";
+    private static final Pattern GENERATED_NAME = Pattern.compile("\\d+(\\" + SUFFIX + "|\\" + SUFFIX_TMP + ")");
+    private static final int REPLAY_CHUNKS = 4;
     private final File folder;
-    private final long flushThresholdBytes;
-    private final MemTable memTable;
-    private final Collection<SSTable> ssTables;
+    private final Config config;
+    private final Manifest manifest;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Condition flushed = lock.writeLock().newCondition();
+    private final ExecutorService flushExecutor;
+    private final ScheduledExecutorService syncExecutor;
+    private final ExecutorService compactionExecutor;
+    private final CompactionStrategy compactionStrategy;
+    private final RateLimiter compactionRateLimiter;
+    private final Lock compactionLock = new ReentrantLock();
+    private final AtomicBoolean compactionScheduled = new AtomicBoolean();
+    private final CompletableFuture<Void> loading;
+    private final Metrics metrics = new Metrics();
+    private final ObjectName objectName;
+    private volatile boolean closed;
+    private volatile TableSet tables;
+    private volatile WriteAheadLog writeAheadLog;
+    private volatile IOException flushFailure;
 
     /**
      * Creates persistence DAO.
@@ -41,93 +89,841 @@ public final class MyDAO implements DAO {
      * @throws IOException if an I/O error is thrown by a visitor method
      */
     public MyDAO(@NotNull final File folder, final long flushThresholdBytes) throws IOException {
+        this(folder, Config.builder().flushThresholdBytes(flushThresholdBytes).build());
+    }
+
+    /**
+     * Creates persistence DAO, opens the tables listed in its manifest and replays write-ahead logs
+     * left after a crash.
+     * The tables and temporary files which are not listed are left by interrupted flushes and compactions
+     * and are deleted. A folder without the manifest is listed to find the tables.
+     * Only the footers of the tables are read here, in parallel. Their indexes and filters are read
+     * by the same threads in background or on the first access, whichever comes first,
+     * so that the DAO accepts writes and reads at once. Compactions start when all the tables are read.
+     *
+     * @param folder the folder in which files will be written and read
+     * @param config the parameters of the DAO
+     * @throws IOException if an I/O error is thrown by a visitor method or while replaying logs
+     */
+    public MyDAO(@NotNull final File folder, @NotNull final Config config) throws IOException {
         this.folder = folder;
-        this.flushThresholdBytes = flushThresholdBytes;
-        memTable = new MemTable();
-        ssTables = new ArrayList<>();
+        this.config = config;
+        this.manifest = Manifest.open(folder.toPath());
+        final Map<String, Integer> listed = manifest.getTables();
+        final Map<String, Integer> live = new LinkedHashMap<>();
+        final List<Path> tablePaths = new ArrayList<>();
+        final List<Path> logs = new ArrayList<>();
         Files.walkFileTree(folder.toPath(), EnumSet.noneOf(FileVisitOption.class), 1, new SimpleFileVisitor<>() {
             @Override
             public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) throws IOException {
-                if (file.toString().endsWith(SUFFIX)) {
-                    try {
-                        ssTables.add(new SSTable(file));
-                    } catch (IllegalArgumentException iae) {
-                        log.error("Cannot create SSTable from " + file.getFileName() + ": " + iae.getMessage());
-                    }
+                final String name = file.getFileName().toString();
+                final boolean generated = GENERATED_NAME.matcher(name).matches();
+                if (name.endsWith(SUFFIX) && (manifest.isCreated() || listed.containsKey(name))) {
+                    tablePaths.add(file);
+                } else if (name.endsWith(SUFFIX_LOG)) {
+                    logs.add(file);
+                } else if (generated) {
+                    log.info("Deleting {} left by an interrupted flush or compaction", name);
+                    Files.delete(file);
                 }
                 return FileVisitResult.CONTINUE;
             }
         });
+        final ExecutorService openExecutor = Executors.newFixedThreadPool(
+                config.getOpenThreads(),
+                new ThreadFactoryBuilder().setNameFormat("sstable-open-%d").setDaemon(true).build());
+        final List<SSTable> ssTables;
+        try {
+            ssTables = open(tablePaths, listed, live, openExecutor);
+        } catch (IOException e) {
+            openExecutor.shutdown();
+            throw e;
+        }
+        for (final String name : listed.keySet()) {
+            if (!live.containsKey(name)) {
+                log.error("SSTable {} listed in the manifest is missing", name);
+            }
+        }
+        manifest.rewrite(live);
+        ssTables.addAll(recover(logs));
+        tables = new TableSet(newMemTable(), Collections.emptyList(), ssTables);
+        writeAheadLog = new WriteAheadLog(newLogPath(), config.getSyncPolicy());
+        if (config.getCompactionStyle() == CompactionStyle.SIZE_TIERED) {
+            compactionStrategy = new SizeTieredCompactionStrategy(config);
+        } else {
+            compactionStrategy = new LeveledCompactionStrategy(config);
+        }
+        compactionRateLimiter = config.getCompactionRateBytesPerSecond() == 0
+                ? null
+                : RateLimiter.create(config.getCompactionRateBytesPerSecond());
+        compactionExecutor = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder().setNameFormat("sstable-compaction-%d").setDaemon(true).build());
+        flushExecutor = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder().setNameFormat("memtable-flush-%d").setDaemon(true).build());
+        if (config.getSyncPolicy() == SyncPolicy.INTERVAL) {
+            syncExecutor = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactoryBuilder().setNameFormat("wal-sync-%d").setDaemon(true).build());
+            syncExecutor.scheduleWithFixedDelay(
+                    this::syncLog,
+                    config.getSyncIntervalMillis(),
+                    config.getSyncIntervalMillis(),
+                    TimeUnit.MILLISECONDS);
+        } else {
+            syncExecutor = null;
+        }
+        loading = load(ssTables, openExecutor);
+        openExecutor.shutdown();
+        loading.thenRun(this::scheduleCompaction);
+        objectName = registerMBean();
+    }
+
+    /**
+     * Registers the metrics in the platform MBean server, see {@link MetricsMXBean}.
+     * The name is unique per instance, so that a DAO of the same folder which was not closed
+     * neither prevents the registration nor removes the bean of this one when it is closed later.
+     *
+     * @return the name of the bean or null if it cannot be registered
+     */
+    @Nullable
+    private ObjectName registerMBean() {
+        try {
+            final ObjectName name = new ObjectName(
+                    MyDAO.class.getPackageName() + ":type=MyDAO,folder=" + ObjectName.quote(folder.getAbsolutePath())
+                            + ",id=" + instances.incrementAndGet());
+            ManagementFactory.getPlatformMBeanServer()
+                    .registerMBean(new StandardMBean(this, MetricsMXBean.class, true), name);
+            return name;
+        } catch (JMException e) {
+            log.warn("Cannot register metrics of {}", folder, e);
+            return null;
+        }
+    }
+
+    private void unregisterMBean() {
+        if (objectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e) {
+            log.warn("Cannot unregister metrics of {}", folder, e);
+        }
+    }
+
+    /**
+     * Returns the counters and latency histograms accumulated since the DAO was opened along with
+     * the sizes of its tables. The operations update the metrics without locks and allocation.
+     */
+    @NotNull
+    @Override
+    public MetricsSnapshot getMetrics() {
+        return metrics.snapshot(tables);
+    }
+
+    /**
+     * Reads the footers of the tables in parallel.
+     * The tables which cannot be opened are logged and kept in the manifest for investigation
+     * unless they were found by listing the folder and have foreign names.
+     */
+    @NotNull
+    private List<SSTable> open(
+            @NotNull final List<Path> paths,
+            @NotNull final Map<String, Integer> listed,
+            @NotNull final Map<String, Integer> live,
+            @NotNull final ExecutorService executor) throws IOException {
+        final List<Future<SSTable>> futures = new ArrayList<>();
+        for (final Path path : paths) {
+            futures.add(executor.submit(() -> new SSTable(path, config)));
+        }
+        final List<SSTable> ssTables = new ArrayList<>();
+        for (int i = 0; i < paths.size(); i++) {
+            final String name = paths.get(i).getFileName().toString();
+            try {
+                final SSTable ssTable = futures.get(i).get();
+                ssTables.add(ssTable);
+                live.put(name, ssTable.getLevel());
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                if (!(e.getCause() instanceof IllegalArgumentException)) {
+                    throw new IOException("Cannot open SSTable " + name, e.getCause());
+                }
+                log.error("Cannot create SSTable from " + name + ": " + e.getCause().getMessage());
+                if (listed.containsKey(name) || GENERATED_NAME.matcher(name).matches()) {
+                    // Keep the file for investigation instead of taking it for a leftover
+                    live.put(name, listed.getOrDefault(name, 0));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while opening SSTables");
+            }
+        }
+        ssTables.sort(TableSet.ORDER);
+        return ssTables;
+    }
+
+    /**
+     * Reads the indexes and filters of the tables in background, then removes the corrupted tables
+     * from the set, so that compactions do not take them for empty ones.
+     * The corrupted tables stay in the manifest for investigation.
+     */
+    @NotNull
+    private CompletableFuture<Void> load(
+            @NotNull final List<SSTable> ssTables,
+            @NotNull final ExecutorService executor) {
+        final List<SSTable> unreadable = Collections.synchronizedList(new ArrayList<>());
+        final CompletableFuture<?>[] futures = new CompletableFuture<?>[ssTables.size()];
+        for (int i = 0; i < futures.length; i++) {
+            final SSTable ssTable = ssTables.get(i);
+            futures[i] = CompletableFuture.runAsync(() -> {
+                if (!ssTable.load()) {
+                    unreadable.add(ssTable);
+                }
+            }, executor);
+        }
+        return CompletableFuture.allOf(futures).thenRun(() -> {
+            if (!unreadable.isEmpty()) {
+                lock.writeLock().lock();
+                try {
+                    tables = tables.compacted(unreadable, Collections.emptyList());
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            }
+        });
+    }
+
+    /**
+     * Waits until the indexes and filters of the tables opened on startup are read.
+     */
+    private void awaitLoading() throws IOException {
+        try {
+            loading.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while loading SSTables");
+        } catch (ExecutionException e) {
+            throw new IOException("Cannot load SSTables", e.getCause());
+        }
+    }
+
+    /**
+     * Replays the logs into memTables which are flushed as soon as they reach the threshold,
+     * so that the memory taken by the recovery is bounded like the one taken by writes.
+     * Every log is written after the previous one is rolled, so the logs hold disjoint time ranges.
+     */
+    @NotNull
+    private Collection<SSTable> recover(@NotNull final List<Path> logs) throws IOException {
+        final Collection<SSTable> result = new ArrayList<>();
+        final WriteAheadLog.Target target = new WriteAheadLog.Target() {
+            private MemTable memTable = newMemTable();
+
+            @NotNull
+            @Override
+            public MemTable getMemTable() {
+                return memTable;
+            }
+
+            @Override
+            public void boundary() throws IOException {
+                if (memTable.getSizeBytes() >= config.getFlushThresholdBytes()) {
+                    result.add(writeSSTable(memTable));
+                    memTable = newMemTable();
+                }
+            }
+        };
+        // A memTable takes a few chunks, which are decoded to the heap one at a time
+        final long chunkBytes = Math.max(1, config.getFlushThresholdBytes() / REPLAY_CHUNKS);
+        logs.sort(Path::compareTo);
+        for (final Path logPath : logs) {
+            final int records = WriteAheadLog.replay(logPath, config.getReplayThreads(), chunkBytes, target);
+            log.info("Replayed {} records from {}", records, logPath.getFileName());
+        }
+        if (target.getMemTable().getSizeBytes() > 0) {
+            result.add(writeSSTable(target.getMemTable()));
+        }
+        for (final Path logPath : logs) {
+            Files.delete(logPath);
+        }
+        return result;
+    }
+
+    private void syncLog() {
+        try {
+            writeAheadLog.sync();
+        } catch (ClosedChannelException e) {
+            // The log has been rolled while syncing, it was forced when it was rolled
+        } catch (IOException e) {
+            log.error("Cannot sync write-ahead log", e);
+        }
+    }
+
+    @NotNull
+    private MemTable newMemTable() {
+        if (config.getMemTableMode() == MemTableMode.OFF_HEAP) {
+            return new OffHeapMemTable(config.getSlabSizeBytes());
+        }
+        return new HeapMemTable();
+    }
+
+    @NotNull
+    private Path newLogPath() {
+        return Path.of(folder.getAbsolutePath(), Time.getTimeNanos() + SUFFIX_LOG);
+    }
+
+    /**
+     * Returns the records of the current tables, the SSTables are not deleted by compactions
+     * until the iterator is exhausted or closed.
+     */
+    @NotNull
+    @Override
+    public CloseableIterator<Record> iterator(@NotNull final ByteBuffer from) {
+        return range(from, null);
+    }
+
+    @NotNull
+    @Override
+    public CloseableIterator<Record> range(@NotNull final ByteBuffer from, @Nullable final ByteBuffer to) {
+        return new RecordIterator(cursor(from, to));
     }
 
+    /**
+     * Returns the cursor over the records starting from the key (inclusive) until the other one (exclusive),
+     * which reads the records in place without creating objects per record.
+     * The SSTables are not deleted by compactions until the cursor is exhausted or closed.
+     */
     @NotNull
-    private Iterator<Row> aliveRowIterator(@NotNull final ByteBuffer from) {
-        final Collection<Iterator<Row>> iterators = new ArrayList<>();
-        iterators.add(memTable.iterator(from));
-        for (final SSTable ssTable : ssTables) {
-            iterators.add(ssTable.iterator(from));
+    public RecordCursor cursor(@NotNull final ByteBuffer from, @Nullable final ByteBuffer to) {
+        final long start = System.nanoTime();
+        final TableSet current;
+        lock.readLock().lock();
+        try {
+            current = tables;
+            // Tables are replaced under the write lock only, so all of them are alive
+            if (!current.retain()) {
+                throw new IllegalStateException("Live SSTable is deleted");
+            }
+        } finally {
+            lock.readLock().unlock();
         }
-        final Iterator<Row> mergeSorted = Iterators.mergeSorted(iterators, Row.COMPARATOR);
-        final Iterator<Row> collapsed = Iters.collapseEquals(mergeSorted, Row::getKey);
-        return Iterators.filter(collapsed, row -> !row.getValue().isRemoved());
+        final RecordCursor cursor = new RangeCursor(current, from, to, System.currentTimeMillis());
+        metrics.iteratorLatency.recordSince(start);
+        return cursor;
     }
 
     @NotNull
     @Override
-    public Iterator<Record> iterator(@NotNull final ByteBuffer from) {
-        final Iterator<Row> alive = aliveRowIterator(from);
-        return Iterators.transform(alive, row -> Record.of(row.getKey(), row.getValue().getData()));
+    public ByteBuffer get(@NotNull final ByteBuffer key) throws NoSuchElementException {
+        final long start = System.nanoTime();
+        final Row row = tables.get(key, metrics.tablesPerGet);
+        metrics.getLatency.recordSince(start);
+        if (row == null || !row.getValue().isAlive(System.currentTimeMillis())) {
+            throw new NoSuchElementException("Not found");
+        }
+        return row.getValue().getData();
+    }
+
+    /**
+     * Returns the read-only view of the rows written before the call.
+     * The memTable is moved to the flush queue, so that the view consists of the immutable tables only
+     * and the following writes go to the fresh one. Like a full memTable, it waits if the queue is full,
+     * so that snapshots do not pile up memTables. The view must be closed to let compactions delete its SSTables.
+     *
+     * @return the view
+     * @throws IOException if the memTable cannot be replaced
+     */
+    @NotNull
+    public Snapshot snapshot() throws IOException {
+        checkFlushFailure();
+        lock.writeLock().lock();
+        try {
+            while (tables.getMemTable().getSizeBytes() > 0
+                    && tables.getFlushing().size() >= config.getMaxFlushingMemTables()) {
+                checkFlushFailure();
+                flushed.await();
+            }
+            if (tables.getMemTable().getSizeBytes() > 0) {
+                swapMemTable();
+            }
+            // Tables are replaced under the write lock only, so all of them are alive
+            final TableSet frozen = tables.frozen();
+            if (!frozen.retain()) {
+                throw new IllegalStateException("Live SSTable is deleted");
+            }
+            return new Snapshot(frozen, Time.getTimeNanos(), System.currentTimeMillis());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for flush");
+        } finally {
+            lock.writeLock().unlock();
+        }
     }
 
     @Override
     public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) throws IOException {
-        memTable.upsert(key, value);
-        if (memTable.getSizeBytes() >= flushThresholdBytes) {
-            flushMemTable();
+        final long start = System.nanoTime();
+        apply(() -> Row.of(key, value));
+        metrics.upsertLatency.recordSince(start);
+    }
+
+    /**
+     * Inserts or updates the value which is treated as absent after the time to live passes.
+     * Expired values are dropped by compactions.
+     *
+     * @param key       the key
+     * @param value     the value
+     * @param ttlMillis the time to live in milliseconds, the values which would expire past
+     *                  {@link Long#MAX_VALUE} never expire
+     * @throws IOException if an I/O error occurs
+     */
+    public void upsert(
+            @NotNull final ByteBuffer key,
+            @NotNull final ByteBuffer value,
+            final long ttlMillis) throws IOException {
+        if (ttlMillis <= 0) {
+            throw new IllegalArgumentException("Time to live must be positive");
         }
+        final long start = System.nanoTime();
+        final long now = System.currentTimeMillis();
+        final long expiresAt = ttlMillis >= Long.MAX_VALUE - now ? Long.MAX_VALUE : now + ttlMillis;
+        apply(() -> new Row(key, Value.of(value, expiresAt)));
+        metrics.upsertLatency.recordSince(start);
     }
 
     @Override
     public void remove(@NotNull final ByteBuffer key) throws IOException {
-        memTable.remove(key);
-        if (memTable.getSizeBytes() >= flushThresholdBytes) {
-            flushMemTable();
+        final long start = System.nanoTime();
+        apply(() -> Row.remove(key));
+        metrics.removeLatency.recordSince(start);
+    }
+
+    /**
+     * Removes the keys from the first one (inclusive) to the last one (exclusive) with a single range tombstone,
+     * which hides the older rows from reads and makes compactions drop them.
+     *
+     * @param from the first key to remove
+     * @param to   the key after the last one to remove
+     * @throws IOException if an I/O error occurs while writing the log
+     */
+    public void removeRange(@NotNull final ByteBuffer from, @NotNull final ByteBuffer to) throws IOException {
+        final int order = from.compareTo(to);
+        if (order > 0) {
+            throw new IllegalArgumentException("Range start is greater than its end");
+        }
+        if (order == 0) {
+            return;
+        }
+        checkFlushFailure();
+        final MemTable memTable;
+        lock.readLock().lock();
+        try {
+            final RangeTombstone tombstone = new RangeTombstone(from, to, Time.getTimeNanos());
+            writeAheadLog.append(tombstone);
+            memTable = tables.getMemTable();
+            memTable.removeRange(tombstone);
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (memTable.getSizeBytes() >= config.getFlushThresholdBytes()) {
+            scheduleFlush(memTable);
+        }
+    }
+
+    /**
+     * Applies the operations of the batch with a single record of the log and a single check of the memTable size.
+     * The rows get consecutive timestamps, so the later operations on the same key win.
+     * The batch is replayed after a crash and seen by snapshots, iterators and gets either as a whole or not at all:
+     * the memTable hides its rows by the range of their timestamps until the last one is put.
+     * An iterator which has already passed some keys of the batch sees the rest of them once it is published.
+     *
+     * @param batch the operations to apply
+     * @throws IOException if an I/O error occurs while writing the log
+     */
+    public void write(@NotNull final WriteBatch batch) throws IOException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        checkFlushFailure();
+        final MemTable memTable;
+        lock.readLock().lock();
+        try {
+            final List<Row> rows = batch.toRows(Time.getTimeNanos(batch.size()));
+            writeAheadLog.append(rows);
+            memTable = tables.getMemTable();
+            memTable.upsert(rows);
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (memTable.getSizeBytes() >= config.getFlushThresholdBytes()) {
+            scheduleFlush(memTable);
+        }
+    }
+
+    /**
+     * Writes the row to the log and the memTable.
+     * The row is created (and gets its timestamp) under the lock, so that rows of newer memTables
+     * are always newer than rows of the older ones and tables may be probed by recency.
+     */
+    private void apply(@NotNull final Supplier<Row> rowSupplier) throws IOException {
+        checkFlushFailure();
+        final MemTable memTable;
+        lock.readLock().lock();
+        try {
+            final Row row = rowSupplier.get();
+            writeAheadLog.append(row);
+            memTable = tables.getMemTable();
+            memTable.upsert(row);
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (memTable.getSizeBytes() >= config.getFlushThresholdBytes()) {
+            scheduleFlush(memTable);
+        }
+    }
+
+    /**
+     * Moves the full memTable to the flush queue unless another writer has already done it.
+     * Waits if the queue is full, so that the memory used by memTables stays bounded.
+     */
+    private void scheduleFlush(@NotNull final MemTable full) throws IOException {
+        lock.writeLock().lock();
+        try {
+            while (tables.getMemTable() == full
+                    && tables.getFlushing().size() >= config.getMaxFlushingMemTables()) {
+                checkFlushFailure();
+                flushed.await();
+            }
+            if (tables.getMemTable() == full) {
+                swapMemTable();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for flush");
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Replaces the memTable and its log with empty ones and flushes the previous pair in background.
+     * Must be called under the write lock.
+     */
+    private void swapMemTable() throws IOException {
+        final MemTable memTable = tables.getMemTable();
+        final WriteAheadLog memTableLog = writeAheadLog;
+        if (config.getSyncPolicy() == SyncPolicy.INTERVAL) {
+            // The periodic sync forces only the current log, the records of the last interval would not be durable
+            // until the memTable is flushed
+            memTableLog.sync();
+        }
+        writeAheadLog = new WriteAheadLog(newLogPath(), config.getSyncPolicy());
+        tables = tables.swapMemTable(newMemTable());
+        flushExecutor.execute(() -> flush(memTable, memTableLog));
+    }
+
+    private void flush(@NotNull final MemTable memTable, @NotNull final WriteAheadLog memTableLog) {
+        final long start = System.nanoTime();
+        try {
+            final SSTable ssTable = writeSSTable(memTable);
+            lock.writeLock().lock();
+            try {
+                tables = tables.flushed(memTable, ssTable);
+                flushed.signalAll();
+            } finally {
+                lock.writeLock().unlock();
+            }
+            metrics.flushLatency.recordSince(start);
+            metrics.flushBytes.add(ssTable.getSizeBytes());
+            memTableLog.close();
+            Files.delete(memTableLog.getPath());
+            scheduleCompaction();
+        } catch (IOException e) {
+            log.error("Cannot flush memTable, its log is kept for recovery", e);
+            lock.writeLock().lock();
+            try {
+                flushFailure = e;
+                flushed.signalAll();
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    private void checkFlushFailure() throws IOException {
+        final IOException failure = flushFailure;
+        if (failure != null) {
+            throw new IOException("Background flush failed", failure);
+        }
+    }
+
+    /**
+     * Waits until all the memTables in the flush queue are written to SSTables.
+     * Must be called under the write lock.
+     */
+    private void awaitFlushes() throws IOException {
+        try {
+            while (!tables.getFlushing().isEmpty()) {
+                checkFlushFailure();
+                flushed.await();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for flush");
         }
     }
 
     @Override
     public void close() throws IOException {
-        if (memTable.getSizeBytes() > 0) {
-            flushMemTable();
+        unregisterMBean();
+        awaitLoading();
+        lock.writeLock().lock();
+        try {
+            if (tables.getMemTable().getSizeBytes() > 0) {
+                swapMemTable();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        flushExecutor.shutdown();
+        try {
+            if (!flushExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS)) {
+                throw new IOException("Cannot await flushes");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for flush");
         }
+        closed = true;
+        compactionExecutor.shutdown();
+        try {
+            if (!compactionExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS)) {
+                throw new IOException("Cannot await compaction");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for compaction");
+        }
+        if (syncExecutor != null) {
+            syncExecutor.shutdownNow();
+        }
+        writeAheadLog.close();
+        Files.delete(writeAheadLog.getPath());
+        manifest.rewrite();
+        manifest.close();
+        checkFlushFailure();
     }
 
-    private void flushMemTable() throws IOException {
+    @NotNull
+    private SSTable writeSSTable(@NotNull final MemTable memTable) throws IOException {
         final String tmpFileName = Time.getTimeNanos() + SUFFIX_TMP;
-        memTable.flush(Path.of(folder.getAbsolutePath(), tmpFileName));
+        memTable.flush(Path.of(folder.getAbsolutePath(), tmpFileName), config);
+        final SSTable ssTable = install(tmpFileName);
+        manifest.apply(Collections.emptyList(), Collections.singletonList(ssTable));
+        return ssTable;
+    }
+
+    @NotNull
+    private SSTable install(@NotNull final String tmpFileName) throws IOException {
         final String finalFileName = Time.getTimeNanos() + SUFFIX;
         Files.move(
                 Path.of(folder.getAbsolutePath(), tmpFileName),
                 Path.of(folder.getAbsolutePath(), finalFileName),
                 StandardCopyOption.ATOMIC_MOVE);
-        ssTables.add(new SSTable(Path.of(folder.getAbsolutePath(), finalFileName)));
+        return new SSTable(Path.of(folder.getAbsolutePath(), finalFileName), config);
     }
 
+    /**
+     * Flushes the memTable and runs the compactions picked by the strategy until the tables are in shape.
+     * Writes go to a fresh memTable meanwhile, the lock is taken only to replace the inputs with the outputs.
+     */
     @Override
     public void compact() throws IOException {
-        final Iterator<Row> alive = aliveRowIterator(Value.EMPTY_BUFFER);
-        final String tmpFileName = Time.getTimeNanos() + SUFFIX_TMP;
-        SSTable.writeToFile(Path.of(folder.getAbsolutePath(), tmpFileName), alive);
-        for (final SSTable ssTable : ssTables) {
-            Files.delete(ssTable.getPath());
+        awaitLoading();
+        lock.writeLock().lock();
+        try {
+            if (tables.getMemTable().getSizeBytes() > 0) {
+                swapMemTable();
+            }
+            awaitFlushes();
+        } finally {
+            lock.writeLock().unlock();
         }
-        ssTables.clear();
-        memTable.clear();
-        final String finalFileName = Time.getTimeNanos() + SUFFIX;
-        Files.move(
-                Path.of(folder.getAbsolutePath(), tmpFileName),
-                Path.of(folder.getAbsolutePath(), finalFileName),
-                StandardCopyOption.ATOMIC_MOVE);
-        ssTables.add(new SSTable(Path.of(folder.getAbsolutePath(), finalFileName)));
+        compactionLock.lock();
+        try {
+            Compaction compaction = compactionStrategy.pickManual(tables.getSSTables());
+            while (compaction != null) {
+                run(compaction);
+                compaction = compactionStrategy.pick(tables.getSSTables());
+            }
+        } finally {
+            compactionLock.unlock();
+        }
+    }
+
+    private void scheduleCompaction() {
+        if (!closed && compactionScheduled.compareAndSet(false, true)) {
+            compactionExecutor.execute(this::compactInBackground);
+        }
+    }
+
+    private void compactInBackground() {
+        compactionScheduled.set(false);
+        compactionLock.lock();
+        try {
+            awaitLoading();
+            Compaction compaction = compactionStrategy.pick(tables.getSSTables());
+            while (!closed && compaction != null) {
+                run(compaction);
+                compaction = compactionStrategy.pick(tables.getSSTables());
+            }
+        } catch (IOException | CorruptedBlockException e) {
+            log.error("Background compaction failed", e);
+        } finally {
+            compactionLock.unlock();
+        }
+    }
+
+    /**
+     * Writes the outputs of the compaction while reads and writes go on and replaces the inputs with them.
+     * An input with a corrupted block is quarantined, so that the following compactions do not fail on it again.
+     * Must be called under the compaction lock.
+     */
+    private void run(@NotNull final Compaction compaction) throws IOException {
+        final long start = System.nanoTime();
+        final List<SSTable> outputs;
+        try {
+            outputs = write(compaction);
+        } catch (CorruptedBlockException e) {
+            quarantine(compaction, e);
+            throw e;
+        }
+        manifest.apply(compaction.getInputs(), outputs);
+        lock.writeLock().lock();
+        try {
+            tables = tables.compacted(compaction.getInputs(), outputs);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        releaseInputs(compaction);
+        metrics.compactionLatency.recordSince(start);
+        metrics.compactionBytesIn.add(compaction.getInputBytes());
+        for (final SSTable output : outputs) {
+            metrics.compactionBytesOut.add(output.getSizeBytes());
+        }
+    }
+
+    /**
+     * Removes the corrupted input of the failed compaction from the manifest and the live tables
+     * and renames its file for investigation. The rows of the table are not read anymore.
+     * Must be called under the compaction lock.
+     */
+    private void quarantine(
+            @NotNull final Compaction compaction,
+            @NotNull final CorruptedBlockException e) throws IOException {
+        for (final SSTable input : compaction.getInputs()) {
+            if (!input.getPath().equals(e.getPath())) {
+                continue;
+            }
+            final List<SSTable> removed = Collections.singletonList(input);
+            manifest.apply(removed, Collections.emptyList());
+            lock.writeLock().lock();
+            try {
+                tables = tables.compacted(removed, Collections.emptyList());
+            } finally {
+                lock.writeLock().unlock();
+            }
+            final Path quarantined = input.getPath().resolveSibling(input.getPath().getFileName() + SUFFIX_CORRUPTED);
+            Files.move(input.getPath(), quarantined, StandardCopyOption.ATOMIC_MOVE);
+            log.error("Quarantined corrupted SSTable {} as {}", input.getPath(), quarantined);
+            // The scans which hold the table keep reading the moved file, nothing is deleted when they finish
+            input.release();
+            return;
+        }
+    }
+
+    /**
+     * Merges the inputs of the compaction into new SSTables.
+     * Outputs are split by the target size, or by the max size of size-tiered tables for level 0.
+     * The range tombstones which are kept go to the first output, so its key range may overlap the others.
+     * Every output sizes its filter for all the rows of the inputs, the unused part is folded away.
+     */
+    @NotNull
+    private List<SSTable> write(@NotNull final Compaction compaction) throws IOException {
+        log.info("Compacting {}", compaction);
+        final long limitBytes = compaction.getOutputLevel() == 0
+                ? config.getSizeTieredMaxFileBytes()
+                : config.getTargetFileSizeBytes();
+        final long expectedKeys = compaction.estimateRowsCount(config.getBloomBitsPerKey());
+        final Iterator<Row> rows = throttle(compaction.iterator());
+        RangeTombstones rangeTombstones = compaction.getRangeTombstones();
+        final List<SSTable> outputs = new ArrayList<>();
+        Path tmpPath = null;
+        try {
+            while (rows.hasNext() || !rangeTombstones.isEmpty()) {
+                final String tmpFileName = Time.getTimeNanos() + SUFFIX_TMP;
+                tmpPath = Path.of(folder.getAbsolutePath(), tmpFileName);
+                SSTable.writeToFile(
+                        tmpPath,
+                        rows,
+                        rangeTombstones,
+                        config,
+                        compaction.getOutputLevel(),
+                        expectedKeys,
+                        limitBytes);
+                rangeTombstones = RangeTombstones.EMPTY;
+                outputs.add(install(tmpFileName));
+            }
+        } catch (IOException | CorruptedBlockException e) {
+            // The partially written output, if any, the installed one is moved already
+            if (tmpPath != null) {
+                Files.deleteIfExists(tmpPath);
+            }
+            for (final SSTable output : outputs) {
+                Files.deleteIfExists(output.getPath());
+            }
+            throw e;
+        }
+        return outputs;
+    }
+
+    /**
+     * Releases the references of the set of live tables to the inputs, so that they are deleted
+     * when the iterators and snapshots reading them are closed.
+     */
+    private static void releaseInputs(@NotNull final Compaction compaction) {
+        for (final SSTable input : compaction.getInputs()) {
+            input.release();
+        }
+    }
+
+    /**
+     * Returns the rows at the rate of {@link Config#getCompactionRateBytesPerSecond()}.
+     * Permits are acquired for a block worth of rows at once to keep the limiter off the per-row path.
+     */
+    @NotNull
+    private Iterator<Row> throttle(@NotNull final Iterator<Row> rows) {
+        if (compactionRateLimiter == null) {
+            return rows;
+        }
+        return new Iterator<>() {
+            private long pendingBytes;
+
+            @Override
+            public boolean hasNext() {
+                return rows.hasNext();
+            }
+
+            @Override
+            public Row next() {
+                final Row row = rows.next();
+                pendingBytes += row.getSizeBytes();
+                if (pendingBytes >= config.getBlockSizeBytes()) {
+                    compactionRateLimiter.acquire((int) Math.min(pendingBytes, Integer.MAX_VALUE));
+                    pendingBytes = 0;
+                }
+                return row;
+            }
+        };
     }
 }
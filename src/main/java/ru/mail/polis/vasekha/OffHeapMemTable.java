@@ -0,0 +1,374 @@
+package ru.mail.polis.vasekha;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Sorted table which copies keys and values to direct memory slabs, so that its size
+ * is limited by -XX:MaxDirectMemorySize instead of the heap and the callers may reuse their buffers.
+ * The rows are linked into a skip list by addresses (slab index and offset) stored in the slabs too.
+ * Writers are serialized, readers never block: a node is fully written before
+ * it is published with a release store and readers follow the links with acquire loads.
+ * Node format in slab: value address | height | key size | next addresses | key
+ * Value format in slab: timestamp | expiration time | data size or -1 if value is tombstone | data
+ */
+public final class OffHeapMemTable implements MemTable {
+    private static final VarHandle LONGS =
+            MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+    private static final int MAX_HEIGHT = 16;
+    private static final int NODE_VALUE = 0;
+    private static final int NODE_HEIGHT = Long.BYTES;
+    private static final int NODE_KEY_SIZE = NODE_HEIGHT + Integer.BYTES;
+    private static final int NODE_NEXT = NODE_KEY_SIZE + Integer.BYTES;
+    private static final int VALUE_EXPIRES_AT = Long.BYTES;
+    private static final int VALUE_DATA_SIZE = VALUE_EXPIRES_AT + Long.BYTES;
+    private static final int VALUE_DATA = VALUE_DATA_SIZE + Integer.BYTES;
+    private static final int TOMBSTONE = -1;
+    private static final long NIL = 0;
+
+    private final int slabSizeBytes;
+    private final Object writeLock = new Object();
+    private final long head;
+    private volatile ByteBuffer[] slabs = new ByteBuffer[0];
+    private volatile long sizeBytes;
+    private volatile int rowsCount;
+    private final RangeTombstoneMap rangeTombstones = new RangeTombstoneMap();
+    private final PendingBatches pending = new PendingBatches();
+    // The value addresses replaced by the pending batch, NIL if the key was not in the table
+    private final Map<Long, Long> replaced = new ConcurrentHashMap<>();
+    private int slabOffset;
+
+    /**
+     * Creates an empty table.
+     *
+     * @param slabSizeBytes the size of direct buffers which are allocated on demand
+     */
+    public OffHeapMemTable(final int slabSizeBytes) {
+        this.slabSizeBytes = slabSizeBytes;
+        this.head = allocate(NODE_NEXT + Long.BYTES * MAX_HEIGHT);
+        slab(head).putInt(offset(head) + NODE_HEIGHT, MAX_HEIGHT);
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Row> iterator(@NotNull final ByteBuffer from) {
+        return new Iterator<>() {
+            private long node = seek(from);
+            private Row next = advance();
+
+            @Nullable
+            private Row advance() {
+                while (node != NIL) {
+                    final Row row = rowAt(node);
+                    node = nextAt(node, 0);
+                    if (row != null) {
+                        return row;
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Row next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                final Row row = next;
+                next = advance();
+                return row;
+            }
+        };
+    }
+
+    @Nullable
+    @Override
+    public Row get(@NotNull final ByteBuffer key) {
+        final long node = seek(key);
+        if (node != NIL && compareKey(node, key) == 0) {
+            return rowAt(node);
+        }
+        return null;
+    }
+
+    @Override
+    public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) {
+        upsert(Row.of(key, value));
+    }
+
+    @Override
+    public void remove(@NotNull final ByteBuffer key) {
+        upsert(Row.remove(key));
+    }
+
+    @Override
+    public void upsert(@NotNull final Row row) {
+        synchronized (writeLock) {
+            put(row, false);
+        }
+    }
+
+    @Override
+    public void upsert(@NotNull final List<Row> rows) {
+        final long first = rows.get(0).getValue().getTimestamp();
+        synchronized (writeLock) {
+            pending.begin(first, rows.get(rows.size() - 1).getValue().getTimestamp());
+            try {
+                for (final Row row : rows) {
+                    put(row, true);
+                }
+            } finally {
+                pending.end(first);
+                replaced.clear();
+            }
+        }
+    }
+
+    /**
+     * Puts the row, the version it replaces is recorded before the row is reachable if the row is hidden.
+     * Must be called under the write lock.
+     */
+    private void put(@NotNull final Row row, final boolean hidden) {
+        final ByteBuffer key = row.getKey();
+        final long[] preds = new long[MAX_HEIGHT];
+        long node = head;
+        for (int level = MAX_HEIGHT - 1; level >= 0; level--) {
+            long next = nextAt(node, level);
+            while (next != NIL && compareKey(next, key) < 0) {
+                node = next;
+                next = nextAt(node, level);
+            }
+            preds[level] = node;
+        }
+        final long found = nextAt(preds[0], 0);
+        if (found != NIL && compareKey(found, key) == 0) {
+            final long current = (long) LONGS.getAcquire(slab(found), offset(found) + NODE_VALUE);
+            if (slab(current).getLong(offset(current)) <= row.getValue().getTimestamp()) {
+                final long value = allocateValue(row.getValue());
+                if (hidden) {
+                    replaced.put(value, current);
+                }
+                LONGS.setRelease(slab(found), offset(found) + NODE_VALUE, value);
+            }
+            return;
+        }
+        final long value = allocateValue(row.getValue());
+        if (hidden) {
+            replaced.put(value, NIL);
+        }
+        insert(preds, key, value);
+    }
+
+    /**
+     * Copies the tombstone to the heap instead of the slabs, since range deletes are rare.
+     */
+    @Override
+    public void removeRange(@NotNull final RangeTombstone tombstone) {
+        final RangeTombstone copy = new RangeTombstone(
+                copy(tombstone.getFrom()),
+                copy(tombstone.getTo()),
+                tombstone.getTimestamp());
+        synchronized (writeLock) {
+            rangeTombstones.add(copy);
+            sizeBytes += copy.getSizeBytes();
+        }
+    }
+
+    @NotNull
+    private static ByteBuffer copy(@NotNull final ByteBuffer buffer) {
+        return ByteBuffer.allocate(buffer.remaining()).put(buffer.duplicate()).flip();
+    }
+
+    @NotNull
+    @Override
+    public RangeTombstones getRangeTombstones() {
+        return rangeTombstones.snapshot();
+    }
+
+    @Override
+    public long getRangeTombstoneTimestamp(@NotNull final ByteBuffer key) {
+        return rangeTombstones.getTimestamp(key);
+    }
+
+    private void insert(@NotNull final long[] preds, @NotNull final ByteBuffer key, final long value) {
+        final int height = randomHeight();
+        final long node = allocate(NODE_NEXT + Long.BYTES * height + key.remaining());
+        final ByteBuffer slab = slab(node);
+        final int offset = offset(node);
+        slab.putLong(offset + NODE_VALUE, value)
+                .putInt(offset + NODE_HEIGHT, height)
+                .putInt(offset + NODE_KEY_SIZE, key.remaining());
+        slab.duplicate()
+                .position(offset + NODE_NEXT + Long.BYTES * height)
+                .put(key.duplicate());
+        for (int level = 0; level < height; level++) {
+            slab.putLong(offset + NODE_NEXT + Long.BYTES * level, nextAt(preds[level], level));
+        }
+        for (int level = 0; level < height; level++) {
+            LONGS.setRelease(slab(preds[level]), offset(preds[level]) + NODE_NEXT + Long.BYTES * level, node);
+        }
+        rowsCount++;
+    }
+
+    private long allocateValue(@NotNull final Value value) {
+        final ByteBuffer data = value.getData();
+        final long address = allocate(VALUE_DATA + data.remaining());
+        final ByteBuffer slab = slab(address);
+        final int offset = offset(address);
+        slab.putLong(offset, value.getTimestamp())
+                .putLong(offset + VALUE_EXPIRES_AT, value.getExpiresAt())
+                .putInt(offset + VALUE_DATA_SIZE, value.isRemoved() ? TOMBSTONE : data.remaining());
+        slab.duplicate()
+                .position(offset + VALUE_DATA)
+                .put(data);
+        return address;
+    }
+
+    /**
+     * Reserves 8-byte aligned space in the current slab or in a new one.
+     * Must be called under the write lock.
+     */
+    private long allocate(final int size) {
+        final int aligned = (size + Long.BYTES - 1) & -Long.BYTES;
+        ByteBuffer[] current = slabs;
+        if (current.length == 0 || slabOffset + aligned > current[current.length - 1].capacity()) {
+            current = Arrays.copyOf(current, current.length + 1);
+            current[current.length - 1] = ByteBuffer.allocateDirect(Math.max(slabSizeBytes, aligned))
+                    .order(ByteOrder.nativeOrder());
+            slabs = current;
+            slabOffset = 0;
+        }
+        final long address = ((long) (current.length - 1) << Integer.SIZE) | slabOffset;
+        slabOffset += aligned;
+        sizeBytes += aligned;
+        return address;
+    }
+
+    private static int randomHeight() {
+        int height = 1;
+        while (height < MAX_HEIGHT && ThreadLocalRandom.current().nextInt(4) == 0) {
+            height++;
+        }
+        return height;
+    }
+
+    /**
+     * Returns the first node with the key which is greater than or equal to the given one.
+     */
+    private long seek(@NotNull final ByteBuffer key) {
+        long node = head;
+        for (int level = MAX_HEIGHT - 1; level >= 0; level--) {
+            long next = nextAt(node, level);
+            while (next != NIL && compareKey(next, key) < 0) {
+                node = next;
+                next = nextAt(node, level);
+            }
+        }
+        return nextAt(node, 0);
+    }
+
+    private long nextAt(final long node, final int level) {
+        return (long) LONGS.getAcquire(slab(node), offset(node) + NODE_NEXT + Long.BYTES * level);
+    }
+
+    @NotNull
+    private ByteBuffer slab(final long address) {
+        return slabs[(int) (address >>> Integer.SIZE)];
+    }
+
+    private static int offset(final long address) {
+        return (int) address;
+    }
+
+    private int compareKey(final long node, @NotNull final ByteBuffer key) {
+        final ByteBuffer slab = slab(node);
+        final int offset = offset(node);
+        final int keyOffset = offset + NODE_NEXT + Long.BYTES * slab.getInt(offset + NODE_HEIGHT);
+        return Keys.compare(slab, keyOffset, slab.getInt(offset + NODE_KEY_SIZE), key);
+    }
+
+    /**
+     * Returns the row of the node which readers may see or null if the key is put by the pending batch.
+     */
+    @Nullable
+    private Row rowAt(final long node) {
+        final ByteBuffer slab = slab(node);
+        final int offset = offset(node);
+        final long value = visible((long) LONGS.getAcquire(slab, offset + NODE_VALUE));
+        if (value == NIL) {
+            return null;
+        }
+        final int keySize = slab.getInt(offset + NODE_KEY_SIZE);
+        final int keyOffset = offset + NODE_NEXT + Long.BYTES * slab.getInt(offset + NODE_HEIGHT);
+        final ByteBuffer key = slice(slab, keyOffset, keySize);
+        final ByteBuffer valueSlab = slab(value);
+        final int valueOffset = offset(value);
+        final long timestamp = valueSlab.getLong(valueOffset);
+        final int dataSize = valueSlab.getInt(valueOffset + VALUE_DATA_SIZE);
+        if (dataSize == TOMBSTONE) {
+            return new Row(key, new Value(timestamp, true, Value.EMPTY_BUFFER));
+        }
+        final ByteBuffer data = slice(valueSlab, valueOffset + VALUE_DATA, dataSize);
+        return new Row(key, new Value(timestamp, false, data, valueSlab.getLong(valueOffset + VALUE_EXPIRES_AT)));
+    }
+
+    /**
+     * Follows the values replaced by the pending batch back to the value which readers may see.
+     */
+    private long visible(final long value) {
+        long result = value;
+        while (result != NIL && pending.contains(slab(result).getLong(offset(result)))) {
+            final Long previous = replaced.get(result);
+            if (previous == null) {
+                // The batch has been published
+                break;
+            }
+            result = previous;
+        }
+        return result;
+    }
+
+    @NotNull
+    private static ByteBuffer slice(@NotNull final ByteBuffer slab, final int offset, final int size) {
+        return slab.duplicate()
+                .position(offset)
+                .limit(offset + size)
+                .slice()
+                .asReadOnlyBuffer();
+    }
+
+    @Override
+    public long getSizeBytes() {
+        return sizeBytes - (NODE_NEXT + Long.BYTES * MAX_HEIGHT);
+    }
+
+    @Override
+    public void flush(@NotNull final Path path, @NotNull final Config config) throws IOException {
+        SSTable.writeToFile(
+                path,
+                iterator(Value.EMPTY_BUFFER),
+                rangeTombstones.snapshot(),
+                config,
+                0,
+                rowsCount,
+                Long.MAX_VALUE);
+    }
+}
@@ -0,0 +1,52 @@
+package ru.mail.polis.vasekha;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Timestamp ranges of the batches which are being put into a memTable.
+ * Timestamps are unique, so a row belongs to a pending batch if its timestamp falls into one of the ranges,
+ * and the readers are to see the previous version of its key instead.
+ */
+final class PendingBatches {
+    private final ConcurrentNavigableMap<Long, Long> ranges = new ConcurrentSkipListMap<>();
+    private final AtomicLong started = new AtomicLong();
+
+    /**
+     * Hides the rows with the timestamps from first to last inclusive.
+     */
+    void begin(final long first, final long last) {
+        ranges.put(first, last);
+        started.incrementAndGet();
+    }
+
+    /**
+     * Publishes the rows of the batch started with the timestamp.
+     */
+    void end(final long first) {
+        ranges.remove(first);
+    }
+
+    /**
+     * Returns the number of the batches started so far or -1 if some of them are pending.
+     * Readers which got the same number later have not met rows of any batch in between.
+     */
+    long idle() {
+        final long result = started.get();
+        return ranges.isEmpty() ? result : -1;
+    }
+
+    long started() {
+        return started.get();
+    }
+
+    boolean contains(final long timestamp) {
+        if (ranges.isEmpty()) {
+            return false;
+        }
+        final Map.Entry<Long, Long> range = ranges.floorEntry(timestamp);
+        return range != null && timestamp <= range.getValue();
+    }
+}
@@ -0,0 +1,95 @@
+package ru.mail.polis.vasekha;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.mail.polis.Record;
+
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+
+/**
+ * Records of the tables which are retained until the cursor is exhausted or closed,
+ * so that compactions do not delete the files of the tables under the scan.
+ * The cursors which are abandoned, like the iterators returned through {@link ru.mail.polis.DAO},
+ * which cannot be closed, release the tables when they are collected.
+ */
+final class RangeCursor implements RecordCursor {
+    private static final Cleaner cleaner = Cleaner.create();
+
+    private final RowCursor rows;
+    private final ByteBuffer to;
+    private final Cleaner.Cleanable release;
+    private boolean closed;
+
+    /**
+     * Creates the cursor over the retained tables, they are released if the tables cannot be read.
+     *
+     * @param tables    the tables, see {@link TableSet#retain()}
+     * @param from      the first key (inclusive)
+     * @param to        the last key (exclusive) or null if the rows are not limited
+     * @param nowMillis the wall-clock time the rows are checked for expiration at
+     */
+    RangeCursor(
+            @NotNull final TableSet tables,
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to,
+            final long nowMillis) {
+        try {
+            this.rows = tables.cursor(from, nowMillis);
+        } catch (RuntimeException | Error e) {
+            tables.release();
+            throw e;
+        }
+        this.to = to;
+        // The action must not refer to the cursor, otherwise it is never collected
+        this.release = cleaner.register(this, tables::release);
+    }
+
+    @Override
+    public boolean advance() {
+        if (closed) {
+            return false;
+        }
+        if (rows.advance() && (to == null || rows.key().compareTo(to) < 0)) {
+            return true;
+        }
+        close();
+        return false;
+    }
+
+    @NotNull
+    @Override
+    public ByteBuffer key() {
+        checkOpen();
+        return rows.key();
+    }
+
+    @NotNull
+    @Override
+    public ByteBuffer value() {
+        checkOpen();
+        return rows.value();
+    }
+
+    @NotNull
+    @Override
+    public Record record() {
+        checkOpen();
+        final Row row = rows.row();
+        return Record.of(row.getKey(), row.getValue().getData());
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("Cursor is closed");
+        }
+    }
+
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            release.clean();
+        }
+    }
+}
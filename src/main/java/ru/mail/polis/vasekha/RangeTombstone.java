@@ -0,0 +1,56 @@
+package ru.mail.polis.vasekha;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Deletion of the rows with the keys from the first one (inclusive) to the last one (exclusive)
+ * which are older than the tombstone.
+ */
+final class RangeTombstone {
+    private final ByteBuffer from;
+    private final ByteBuffer to;
+    private final long timestamp;
+
+    RangeTombstone(@NotNull final ByteBuffer from, @NotNull final ByteBuffer to, final long timestamp) {
+        this.from = from;
+        this.to = to;
+        this.timestamp = timestamp;
+    }
+
+    @NotNull
+    ByteBuffer getFrom() {
+        return from.asReadOnlyBuffer();
+    }
+
+    @NotNull
+    ByteBuffer getTo() {
+        return to.asReadOnlyBuffer();
+    }
+
+    long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Returns true if the tombstone ends at or before the key, the key is compared without creating views.
+     */
+    boolean endsBefore(@NotNull final ByteBuffer key) {
+        return to.compareTo(key) <= 0;
+    }
+
+    /**
+     * Returns true if the key is in the range of the tombstone.
+     */
+    boolean covers(@NotNull final ByteBuffer key) {
+        return from.compareTo(key) <= 0 && to.compareTo(key) > 0;
+    }
+
+    /**
+     * Returns the size in bytes that the tombstone will occupy in the file.
+     */
+    int getSizeBytes() {
+        return Integer.BYTES * 2 + from.remaining() + to.remaining() + Long.BYTES;
+    }
+}
@@ -0,0 +1,87 @@
+package ru.mail.polis.vasekha;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Range tombstones of a memTable kept as disjoint fragments sorted by keys, like {@link RangeTombstones},
+ * but split as they are added, so that a tombstone touches only the fragments it overlaps.
+ * Writers are serialized, readers never block: a fragment is split by putting its right part first
+ * and shrinking the left one then, so that the keys stay covered while the fragments overlap.
+ * The immutable set for scans and flushes is copied from the fragments once per change.
+ */
+final class RangeTombstoneMap {
+    private final ConcurrentNavigableMap<ByteBuffer, RangeTombstone> fragments = new ConcurrentSkipListMap<>();
+    private volatile RangeTombstones snapshot = RangeTombstones.EMPTY;
+
+    /**
+     * Adds the tombstone, the newest one wins where they overlap.
+     */
+    synchronized void add(@NotNull final RangeTombstone tombstone) {
+        final ByteBuffer from = tombstone.getFrom();
+        final ByteBuffer to = tombstone.getTo();
+        final long timestamp = tombstone.getTimestamp();
+        split(from);
+        split(to);
+        final List<RangeTombstone> overlapped = new ArrayList<>(fragments.subMap(from, to).values());
+        ByteBuffer gap = from;
+        for (final RangeTombstone fragment : overlapped) {
+            if (gap.compareTo(fragment.getFrom()) < 0) {
+                fragments.put(gap, new RangeTombstone(gap, fragment.getFrom(), timestamp));
+            }
+            if (fragment.getTimestamp() < timestamp) {
+                fragments.put(fragment.getFrom(), new RangeTombstone(fragment.getFrom(), fragment.getTo(), timestamp));
+            }
+            gap = fragment.getTo();
+        }
+        if (gap.compareTo(to) < 0) {
+            fragments.put(gap, new RangeTombstone(gap, to, timestamp));
+        }
+        snapshot = null;
+    }
+
+    /**
+     * Splits the fragment which covers the key but does not start with it.
+     */
+    private void split(@NotNull final ByteBuffer key) {
+        final Map.Entry<ByteBuffer, RangeTombstone> entry = fragments.lowerEntry(key);
+        if (entry == null || entry.getValue().endsBefore(key)) {
+            return;
+        }
+        final RangeTombstone fragment = entry.getValue();
+        fragments.put(key, new RangeTombstone(key, fragment.getTo(), fragment.getTimestamp()));
+        fragments.put(entry.getKey(), new RangeTombstone(fragment.getFrom(), key, fragment.getTimestamp()));
+    }
+
+    /**
+     * Returns the timestamp of the tombstone covering the key or 0 if the key is not covered.
+     */
+    long getTimestamp(@NotNull final ByteBuffer key) {
+        final Map.Entry<ByteBuffer, RangeTombstone> entry = fragments.floorEntry(key);
+        return entry == null || entry.getValue().endsBefore(key) ? 0 : entry.getValue().getTimestamp();
+    }
+
+    /**
+     * Returns the immutable set of the tombstones added so far.
+     */
+    @NotNull
+    RangeTombstones snapshot() {
+        RangeTombstones result = snapshot;
+        if (result == null) {
+            synchronized (this) {
+                result = snapshot;
+                if (result == null) {
+                    result = RangeTombstones.ofFragments(fragments.values());
+                    snapshot = result;
+                }
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,255 @@
+package ru.mail.polis.vasekha;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Immutable set of range tombstones split into disjoint fragments sorted by keys,
+ * every fragment has the newest timestamp of the tombstones covering it,
+ * so that the tombstone of a key is found by the binary search.
+ * Format in file: fragments count | fragments
+ * Fragment format: from size | from | to size | to | timestamp
+ */
+final class RangeTombstones {
+    static final RangeTombstones EMPTY = new RangeTombstones(new ArrayList<>());
+
+    private final List<RangeTombstone> fragments;
+
+    private RangeTombstones(@NotNull final List<RangeTombstone> fragments) {
+        this.fragments = fragments;
+    }
+
+    /**
+     * Splits the possibly overlapping tombstones into fragments.
+     */
+    @NotNull
+    static RangeTombstones of(@NotNull final Collection<RangeTombstone> tombstones) {
+        if (tombstones.isEmpty()) {
+            return EMPTY;
+        }
+        final List<ByteBuffer> bounds = new ArrayList<>(tombstones.size() * 2);
+        final List<RangeTombstone> byFrom = new ArrayList<>(tombstones);
+        for (final RangeTombstone tombstone : tombstones) {
+            bounds.add(tombstone.getFrom());
+            bounds.add(tombstone.getTo());
+        }
+        bounds.sort(Comparator.naturalOrder());
+        byFrom.sort(Comparator.comparing(RangeTombstone::getFrom));
+        final PriorityQueue<RangeTombstone> active =
+                new PriorityQueue<>(Comparator.comparingLong(RangeTombstone::getTimestamp).reversed());
+        final List<RangeTombstone> fragments = new ArrayList<>();
+        int next = 0;
+        for (int i = 0; i + 1 < bounds.size(); i++) {
+            final ByteBuffer from = bounds.get(i);
+            final ByteBuffer to = bounds.get(i + 1);
+            if (from.equals(to)) {
+                continue;
+            }
+            while (next < byFrom.size() && byFrom.get(next).getFrom().compareTo(from) <= 0) {
+                active.add(byFrom.get(next++));
+            }
+            // The ended tombstones are removed lazily, only the newest active one matters
+            while (!active.isEmpty() && active.peek().getTo().compareTo(from) <= 0) {
+                active.poll();
+            }
+            if (active.isEmpty()) {
+                continue;
+            }
+            final long timestamp = active.peek().getTimestamp();
+            final int last = fragments.size() - 1;
+            if (last >= 0 && fragments.get(last).getTimestamp() == timestamp
+                    && fragments.get(last).getTo().equals(from)) {
+                fragments.set(last, new RangeTombstone(fragments.get(last).getFrom(), to, timestamp));
+            } else {
+                fragments.add(new RangeTombstone(from, to, timestamp));
+            }
+        }
+        return new RangeTombstones(fragments);
+    }
+
+    /**
+     * Returns the set of the disjoint fragments sorted by keys.
+     * The adjacent fragments of the same timestamp are joined.
+     */
+    @NotNull
+    static RangeTombstones ofFragments(@NotNull final Collection<RangeTombstone> sorted) {
+        if (sorted.isEmpty()) {
+            return EMPTY;
+        }
+        final List<RangeTombstone> fragments = new ArrayList<>(sorted.size());
+        for (final RangeTombstone fragment : sorted) {
+            final int last = fragments.size() - 1;
+            if (last >= 0 && fragments.get(last).getTimestamp() == fragment.getTimestamp()
+                    && fragments.get(last).getTo().equals(fragment.getFrom())) {
+                fragments.set(last, new RangeTombstone(fragments.get(last).getFrom(), fragment.getTo(),
+                        fragment.getTimestamp()));
+            } else {
+                fragments.add(fragment);
+            }
+        }
+        return new RangeTombstones(fragments);
+    }
+
+    /**
+     * Returns the union of the sets, the newest tombstone wins where they overlap.
+     */
+    @NotNull
+    static RangeTombstones merge(@NotNull final Collection<RangeTombstones> sets) {
+        final List<RangeTombstone> tombstones = new ArrayList<>();
+        RangeTombstones single = EMPTY;
+        for (final RangeTombstones set : sets) {
+            if (!set.isEmpty()) {
+                tombstones.addAll(set.fragments);
+                single = set;
+            }
+        }
+        return tombstones.size() == single.fragments.size() ? single : of(tombstones);
+    }
+
+    /**
+     * Reads the set which starts at the position of the buffer, the keys are copied to the heap.
+     *
+     * @param buffer the buffer which contains the set
+     * @return the set
+     * @throws IllegalArgumentException if the set is malformed
+     */
+    @NotNull
+    static RangeTombstones read(@NotNull final ByteBuffer buffer) {
+        final ByteBuffer input = buffer.duplicate();
+        final int count = input.getInt();
+        if (count < 0 || count > input.remaining() / (Integer.BYTES * 2 + Long.BYTES)) {
+            throw new IllegalArgumentException("Invalid range tombstones");
+        }
+        final List<RangeTombstone> fragments = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final ByteBuffer from = readKey(input);
+            final ByteBuffer to = readKey(input);
+            fragments.add(new RangeTombstone(from, to, input.getLong()));
+        }
+        return count == 0 ? EMPTY : new RangeTombstones(fragments);
+    }
+
+    @NotNull
+    private static ByteBuffer readKey(@NotNull final ByteBuffer input) {
+        final int size = input.getInt();
+        if (size < 0 || size > input.remaining()) {
+            throw new IllegalArgumentException("Invalid range tombstones");
+        }
+        final ByteBuffer key = ByteBuffer.allocate(size);
+        key.put(input.duplicate().limit(input.position() + size)).rewind();
+        input.position(input.position() + size);
+        return key;
+    }
+
+    /**
+     * Returns the set in the file format.
+     */
+    @NotNull
+    ByteBuffer build() {
+        final ByteBuffer result = ByteBuffer.allocate(getSizeBytes()).putInt(fragments.size());
+        for (final RangeTombstone fragment : fragments) {
+            final ByteBuffer from = fragment.getFrom();
+            final ByteBuffer to = fragment.getTo();
+            result.putInt(from.remaining())
+                    .put(from)
+                    .putInt(to.remaining())
+                    .put(to)
+                    .putLong(fragment.getTimestamp());
+        }
+        return result.flip();
+    }
+
+    /**
+     * Returns the size of the set in the file.
+     */
+    int getSizeBytes() {
+        int result = Integer.BYTES;
+        for (final RangeTombstone fragment : fragments) {
+            result += fragment.getSizeBytes();
+        }
+        return result;
+    }
+
+    boolean isEmpty() {
+        return fragments.isEmpty();
+    }
+
+    /**
+     * Returns the start of the first fragment, the set must not be empty.
+     */
+    @NotNull
+    ByteBuffer getFirstKey() {
+        return fragments.get(0).getFrom();
+    }
+
+    /**
+     * Returns the end of the last fragment, the set must not be empty.
+     */
+    @NotNull
+    ByteBuffer getLastKey() {
+        return fragments.get(fragments.size() - 1).getTo();
+    }
+
+    long getMaxTimestamp() {
+        long result = 0;
+        for (final RangeTombstone fragment : fragments) {
+            result = Math.max(result, fragment.getTimestamp());
+        }
+        return result;
+    }
+
+    /**
+     * Returns the timestamp of the tombstone covering the key or 0 if the key is not covered.
+     */
+    long getTimestamp(@NotNull final ByteBuffer key) {
+        int low = 0;
+        int high = fragments.size() - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final RangeTombstone fragment = fragments.get(mid);
+            if (fragment.getFrom().compareTo(key) > 0) {
+                high = mid - 1;
+            } else if (fragment.getTo().compareTo(key) <= 0) {
+                low = mid + 1;
+            } else {
+                return fragment.getTimestamp();
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the index of the first fragment which ends after the key starting from the given one,
+     * so that the sorted keys are checked moving forward through the fragments instead of searching them.
+     *
+     * @param fragment the index returned for the previous key or 0
+     * @param key      the key which is not less than the previous one
+     * @return the index of the fragment, which is the fragments count if all of them end before the key
+     */
+    int skipTo(final int fragment, @NotNull final ByteBuffer key) {
+        int result = fragment;
+        while (result < fragments.size() && fragments.get(result).endsBefore(key)) {
+            result++;
+        }
+        return result;
+    }
+
+    /**
+     * Returns the timestamp of the fragment if it covers the key or 0.
+     *
+     * @param fragment the index returned by {@link #skipTo(int, ByteBuffer)} for the key
+     * @param key      the key
+     */
+    long getTimestamp(final int fragment, @NotNull final ByteBuffer key) {
+        if (fragment == fragments.size() || !fragments.get(fragment).covers(key)) {
+            return 0;
+        }
+        return fragments.get(fragment).getTimestamp();
+    }
+}
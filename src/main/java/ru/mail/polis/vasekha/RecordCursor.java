@@ -0,0 +1,42 @@
+package ru.mail.polis.vasekha;
+
+import org.jetbrains.annotations.NotNull;
+import ru.mail.polis.Record;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+
+/**
+ * Position in the records of a range which exposes the current record through views reused for the following
+ * records, so that a scan does not allocate objects per record unless they are requested with {@link #record()}.
+ * The cursor starts before the first record and holds the tables until it is exhausted or closed.
+ */
+public interface RecordCursor extends Closeable {
+    /**
+     * Moves to the next record.
+     *
+     * @return false if there are no more records
+     */
+    boolean advance();
+
+    /**
+     * Returns the read-only view of the key of the current record, which is valid until the cursor advances.
+     */
+    @NotNull
+    ByteBuffer key();
+
+    /**
+     * Returns the read-only view of the value of the current record, which is valid until the cursor advances.
+     */
+    @NotNull
+    ByteBuffer value();
+
+    /**
+     * Returns the current record which does not depend on the cursor.
+     */
+    @NotNull
+    Record record();
+
+    @Override
+    void close();
+}
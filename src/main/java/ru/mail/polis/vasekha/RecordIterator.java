@@ -0,0 +1,45 @@
+package ru.mail.polis.vasekha;
+
+import org.jetbrains.annotations.NotNull;
+import ru.mail.polis.Record;
+
+import java.util.NoSuchElementException;
+
+/**
+ * Records of the cursor which are materialized one by one,
+ * the tables are released when the iterator is exhausted or closed.
+ */
+final class RecordIterator implements CloseableIterator<Record> {
+    private final RecordCursor cursor;
+    private boolean ready;
+    private boolean exhausted;
+
+    RecordIterator(@NotNull final RecordCursor cursor) {
+        this.cursor = cursor;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (!ready && !exhausted) {
+            ready = cursor.advance();
+            exhausted = !ready;
+        }
+        return ready;
+    }
+
+    @Override
+    public Record next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        ready = false;
+        return cursor.record();
+    }
+
+    @Override
+    public void close() {
+        ready = false;
+        exhausted = true;
+        cursor.close();
+    }
+}
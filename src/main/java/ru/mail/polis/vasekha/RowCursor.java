@@ -0,0 +1,52 @@
+package ru.mail.polis.vasekha;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Position in the sorted rows of a table which exposes the current row through views reused for the following rows,
+ * so that a scan does not allocate objects per row. The cursor starts before the first row.
+ * The views are read-only, valid until the cursor advances and must not be modified, their position included.
+ */
+interface RowCursor {
+    /**
+     * Moves to the next row.
+     *
+     * @return false if there are no more rows
+     */
+    boolean advance();
+
+    @NotNull
+    ByteBuffer key();
+
+    /**
+     * Returns the data of the current row, which is empty if the row is a tombstone.
+     */
+    @NotNull
+    ByteBuffer value();
+
+    long timestamp();
+
+    boolean isRemoved();
+
+    /**
+     * Returns the expiration time of the current row, see {@link Value#getExpiresAt()}.
+     */
+    long expiresAt();
+
+    /**
+     * Returns true if the current row is neither removed nor expired at the time.
+     *
+     * @param nowMillis the time in milliseconds since the epoch
+     */
+    default boolean isAlive(final long nowMillis) {
+        return !isRemoved() && (expiresAt() == Value.NEVER || expiresAt() > nowMillis);
+    }
+
+    /**
+     * Returns the current row which does not depend on the cursor.
+     */
+    @NotNull
+    Row row();
+}
@@ -0,0 +1,101 @@
+package ru.mail.polis.vasekha;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+final class RowCursors {
+    private RowCursors() {
+    }
+
+    /**
+     * Returns the cursor over the rows which are already on the heap, e.g. the rows of a memTable.
+     */
+    @NotNull
+    static RowCursor of(@NotNull final Iterator<Row> rows) {
+        return new RowCursor() {
+            private Row row;
+            private ByteBuffer key;
+
+            @Override
+            public boolean advance() {
+                if (!rows.hasNext()) {
+                    row = null;
+                    key = null;
+                    return false;
+                }
+                row = rows.next();
+                key = row.getKey();
+                return true;
+            }
+
+            @NotNull
+            @Override
+            public ByteBuffer key() {
+                return key;
+            }
+
+            @NotNull
+            @Override
+            public ByteBuffer value() {
+                return row.getValue().getData();
+            }
+
+            @Override
+            public long timestamp() {
+                return row.getValue().getTimestamp();
+            }
+
+            @Override
+            public boolean isRemoved() {
+                return row.getValue().isRemoved();
+            }
+
+            @Override
+            public long expiresAt() {
+                return row.getValue().getExpiresAt();
+            }
+
+            @NotNull
+            @Override
+            public Row row() {
+                return row;
+            }
+        };
+    }
+
+    /**
+     * Returns the iterator which materializes every row of the cursor.
+     */
+    @NotNull
+    static Iterator<Row> rows(@NotNull final RowCursor cursor) {
+        return new Iterator<>() {
+            private Row next;
+            private boolean done;
+
+            @Override
+            public boolean hasNext() {
+                if (next == null && !done) {
+                    if (cursor.advance()) {
+                        next = cursor.row();
+                    } else {
+                        done = true;
+                    }
+                }
+                return next != null;
+            }
+
+            @Override
+            public Row next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                final Row result = next;
+                next = null;
+                return result;
+            }
+        };
+    }
+}
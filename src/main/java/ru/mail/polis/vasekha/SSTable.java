@@ -1,52 +1,241 @@
 package ru.mail.polis.vasekha;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.nio.IntBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
-import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Iterator;
-import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32C;
 
+/**
+ * Immutable sorted table stored in the file.
+ * Format v2: data blocks (see {@link Block}) | index | bloom filter | range tombstones | last key | footer
+ * Index is a block with a row per data block: first key of the block | block handle as value,
+ * every row of the index is a restart point.
+ * Block handle format: offset | stored size | size before compression or 0 if the block is stored raw
+ * | crc32c of stored block
+ * Footer format: index offset | index size | filter offset | filter size or 0
+ * | range tombstones offset | range tombstones size | codec id or 0 | level | max timestamp of rows and tombstones
+ * | last key size | version | crc32c of everything from the index to the version | magic
+ * Range tombstones are written as {@link RangeTombstones}, the key range of the table includes them.
+ * The checksum of the footer is verified on open, the checksums of blocks as {@link Config#getChecksumVerification()}
+ * says, a mismatch is reported as {@link CorruptedBlockException}.
+ * Files of version 1 belong to level 0 and consist of a single block
+ * optionally followed by the bloom filter and filter magic.
+ * Offsets in the file are 64-bit: it is mapped as segments of {@link Config#getMappedSegmentBytes()}
+ * and only the parts which cross the borders of segments are copied to the heap when read.
+ * Blocks which are decompressed or copied are kept in {@link Config#getBlockCache()}.
+ * Only the footer is read when the table is opened, the index, the filter, the range tombstones
+ * and the key range are read and verified on the first access.
+ */
 public final class SSTable implements Table {
+    private static final long FILTER_MAGIC = 0x426c6f6f6d763031L;
+    private static final long MAGIC = 0x4c534d5353546232L;
+    private static final int VERSION = 2;
+    private static final int FOOTER_BYTES = (Long.BYTES + Integer.BYTES) * 3 + Integer.BYTES * 5 + Long.BYTES * 2;
+    private static final int CHECKSUM_BYTES = Integer.BYTES + Long.BYTES;
+    private static final int FOOTER_RANGE_TOMBSTONES_SIZE = (Long.BYTES + Integer.BYTES) * 3 - Integer.BYTES;
+    private static final int FOOTER_CODEC = FOOTER_RANGE_TOMBSTONES_SIZE + Integer.BYTES;
+    private static final int FOOTER_LEVEL = FOOTER_CODEC + Integer.BYTES;
+    private static final int FOOTER_MAX_TIMESTAMP = FOOTER_LEVEL + Integer.BYTES;
+    private static final int FOOTER_LAST_KEY_SIZE = FOOTER_MAX_TIMESTAMP + Long.BYTES;
+    private static final int FOOTER_VERSION = FOOTER_LAST_KEY_SIZE + Integer.BYTES;
+    private static final int FOOTER_CHECKSUM = FOOTER_VERSION + Integer.BYTES;
+    private static final int HANDLE_OFFSET = 0;
+    private static final int HANDLE_SIZE = Long.BYTES;
+    private static final int HANDLE_RAW_SIZE = HANDLE_SIZE + Integer.BYTES;
+    private static final int HANDLE_CRC = HANDLE_RAW_SIZE + Integer.BYTES;
+    private static final int HANDLE_BYTES = HANDLE_CRC + Integer.BYTES;
+    private static final int NO_CODEC = 0;
+    // A tombstone of the key equal to the previous one: prefix and suffix sizes and the timestamp
+    private static final int MIN_ROW_BYTES = 2 + Long.BYTES;
+    private static final Block EMPTY_BLOCK = new Block(ByteBuffer.allocate(Integer.BYTES), false);
+    private static final AtomicLong ids = new AtomicLong();
+    private static final Logger log = LoggerFactory.getLogger(SSTable.class);
+    private static final Meta UNREADABLE =
+            new Meta(EMPTY_BLOCK, null, null, RangeTombstones.EMPTY, Value.EMPTY_BUFFER, Value.EMPTY_BUFFER);
+
+    private final long id = ids.incrementAndGet();
+    private final AtomicInteger refs = new AtomicInteger(1);
     private final Path path;
-    private final int rowsCount;
-    private final IntBuffer offsetsBuffer;
-    private final ByteBuffer rowsBuffer;
+    private final ByteBuffer[] segments;
+    private final long segmentSizeBytes;
+    private final ByteBuffer footer;
+    private final BlockCodec codec;
+    private final BlockCache cache;
+    private final boolean verifyReads;
+    private final int level;
+    private final long maxTimestamp;
+    private final boolean rangeTombstones;
+    private final long sizeBytes;
+    private volatile Meta meta;
 
-    SSTable(@NotNull final Path path) throws IOException {
+    SSTable(@NotNull final Path path, @NotNull final Config config) throws IOException {
         this.path = path;
+        this.cache = config.getBlockCache();
+        this.verifyReads = config.getChecksumVerification() == ChecksumVerification.ALWAYS;
+        final boolean versioned;
         try (FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ)) {
-            final File file = path.toFile();
-            if (file.length() == 0 || file.length() > Integer.MAX_VALUE) {
+            this.sizeBytes = fileChannel.size();
+            if (sizeBytes == 0) {
                 throw new IllegalArgumentException("Invalid file");
             }
-            final ByteBuffer mappedBuffer = fileChannel.map(
-                    FileChannel.MapMode.READ_ONLY,
-                    0,
-                    fileChannel.size()).order(ByteOrder.BIG_ENDIAN);
-            this.rowsCount = mappedBuffer.getInt(mappedBuffer.limit() - Integer.BYTES);
-            final int position = mappedBuffer.limit() - Integer.BYTES * this.rowsCount - Integer.BYTES;
-            if (position < 0 || position > mappedBuffer.limit()) {
+            versioned = sizeBytes >= FOOTER_BYTES && readLong(fileChannel, sizeBytes - Long.BYTES) == MAGIC;
+            if (!versioned && sizeBytes > Integer.MAX_VALUE) {
                 throw new IllegalArgumentException("Invalid file");
             }
-            final ByteBuffer offsetsTmpBuffer = mappedBuffer.duplicate()
-                    .position(position)
-                    .limit(mappedBuffer.limit() - Integer.BYTES);
-            this.offsetsBuffer = offsetsTmpBuffer.slice()
-                    .asIntBuffer()
-                    .asReadOnlyBuffer();
-            this.rowsBuffer = mappedBuffer.duplicate()
-                    .limit(offsetsTmpBuffer.position())
-                    .slice()
-                    .asReadOnlyBuffer();
+            // Version 1 files are read as a single block, they are under 2 GB, so they fit a single segment
+            this.segmentSizeBytes = versioned ? config.getMappedSegmentBytes() : sizeBytes;
+            this.segments = new ByteBuffer[(int) ((sizeBytes + segmentSizeBytes - 1) / segmentSizeBytes)];
+            for (int i = 0; i < segments.length; i++) {
+                final long offset = i * segmentSizeBytes;
+                segments[i] = fileChannel.map(
+                        FileChannel.MapMode.READ_ONLY,
+                        offset,
+                        Math.min(segmentSizeBytes, sizeBytes - offset)).asReadOnlyBuffer();
+            }
+        }
+        if (versioned) {
+            this.footer = region(sizeBytes - FOOTER_BYTES, FOOTER_BYTES);
+            final int version = footer.getInt(FOOTER_VERSION);
+            if (version != VERSION) {
+                throw new IllegalArgumentException("Unsupported version " + version);
+            }
+            this.codec = codec(footer.getInt(FOOTER_CODEC), config);
+            this.level = footer.getInt(FOOTER_LEVEL);
+            this.maxTimestamp = footer.getLong(FOOTER_MAX_TIMESTAMP);
+            this.rangeTombstones = footer.getInt(FOOTER_RANGE_TOMBSTONES_SIZE) != RangeTombstones.EMPTY.getSizeBytes();
+        } else {
+            this.footer = null;
+            this.codec = null;
+            this.level = 0;
+            this.maxTimestamp = 0;
+            this.rangeTombstones = false;
+        }
+    }
+
+    private static long readLong(@NotNull final FileChannel fileChannel, final long offset) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES);
+        while (buffer.hasRemaining()) {
+            if (fileChannel.read(buffer, offset + buffer.position()) < 0) {
+                throw new IllegalArgumentException("Invalid file");
+            }
+        }
+        return buffer.getLong(0);
+    }
+
+    /**
+     * Reads the index, the filter and the key range of the table unless they are read already.
+     * A table which fails to be read or verified is logged and read as empty from then on.
+     *
+     * @return false if the table is corrupted
+     */
+    boolean load() {
+        return meta() != UNREADABLE;
+    }
+
+    @NotNull
+    private Meta meta() {
+        Meta result = meta;
+        if (result == null) {
+            synchronized (this) {
+                result = meta;
+                if (result == null) {
+                    try {
+                        result = footer == null ? readVersion1() : read();
+                    } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+                        log.error("Cannot read SSTable {}: {}", path, e.getMessage());
+                        result = UNREADABLE;
+                    }
+                    meta = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    @NotNull
+    private Meta read() {
+        final ByteBuffer fields = footer.duplicate();
+        final long indexOffset = fields.getLong();
+        final int indexSize = fields.getInt();
+        final long filterOffset = fields.getLong();
+        final int filterSize = fields.getInt();
+        final long rangeTombstonesOffset = fields.getLong();
+        final int rangeTombstonesSize = fields.getInt();
+        final int lastKeySize = footer.getInt(FOOTER_LAST_KEY_SIZE);
+        final int checksum = footer.getInt(FOOTER_CHECKSUM);
+        if (indexOffset < 0 || indexOffset > sizeBytes - CHECKSUM_BYTES
+                || checksum(region(indexOffset, (int) (sizeBytes - CHECKSUM_BYTES - indexOffset))) != checksum) {
+            throw new IllegalArgumentException("Checksum mismatch");
+        }
+        final Block index = new Block(region(indexOffset, indexSize), false).withFences();
+        BloomFilter filter = null;
+        if (filterSize != 0) {
+            filter = BloomFilter.read(region(filterOffset, filterSize));
+            if (filter.getSizeBytes() != filterSize) {
+                throw new IllegalArgumentException("Invalid filter");
+            }
+        }
+        final RangeTombstones rangeTombstones =
+                RangeTombstones.read(region(rangeTombstonesOffset, rangeTombstonesSize));
+        ByteBuffer firstKey = index.getRestartsCount() == 0 ? null : index.getRestartKey(0);
+        if (!rangeTombstones.isEmpty() && (firstKey == null || rangeTombstones.getFirstKey().compareTo(firstKey) < 0)) {
+            firstKey = rangeTombstones.getFirstKey();
+        }
+        return new Meta(
+                index,
+                null,
+                filter,
+                rangeTombstones,
+                firstKey == null ? Value.EMPTY_BUFFER : firstKey,
+                region(sizeBytes - FOOTER_BYTES - lastKeySize, lastKeySize));
+    }
+
+    @NotNull
+    private Meta readVersion1() {
+        final int limit = (int) sizeBytes;
+        final ByteBuffer file = region(0, limit);
+        ByteBuffer body = file;
+        BloomFilter filter = null;
+        if (limit >= Long.BYTES + BloomFilter.TRAILER_BYTES && file.getLong(limit - Long.BYTES) == FILTER_MAGIC) {
+            filter = BloomFilter.read(file.duplicate().limit(limit - Long.BYTES));
+            body = file.duplicate().limit(limit - Long.BYTES - filter.getSizeBytes()).slice();
+        }
+        final Block block = new Block(body, true).withFences();
+        final int rowsCount = block.getRestartsCount();
+        return new Meta(
+                null,
+                block,
+                filter,
+                RangeTombstones.EMPTY,
+                rowsCount == 0 ? Value.EMPTY_BUFFER : block.getRestartKey(0),
+                rowsCount == 0 ? Value.EMPTY_BUFFER : block.getRestartKey(rowsCount - 1));
+    }
+
+    @Nullable
+    private static BlockCodec codec(final int id, @NotNull final Config config) {
+        final BlockCodec configured = config.getBlockCodec();
+        if (id == NO_CODEC) {
+            return null;
+        } else if (configured != null && configured.getId() == id) {
+            return configured;
+        } else if (id == DeflateCodec.ID) {
+            return new DeflateCodec();
+        } else if (id == LzCodec.ID) {
+            return new LzCodec();
+        } else {
+            throw new IllegalArgumentException("Unknown codec " + id);
         }
     }
 
@@ -55,75 +244,279 @@ public final class SSTable implements Table {
     }
 
     /**
-     * Writes the values to the file.
-     * File storage format:
-     * Row format in file: key size | key | timestamp | value size | value
-     * if value is tombstone
-     * key size | key | -timestamp
-     * array of offsets that contains positions of rows
-     * rows count
+     * Takes a reference to the table, so that its file is not deleted until the reference is released.
+     * The table is created with the single reference held by the set of live tables.
+     *
+     * @return false if the last reference is released already and the file is deleted
+     */
+    boolean retain() {
+        while (true) {
+            final int count = refs.get();
+            if (count == 0) {
+                return false;
+            }
+            if (refs.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Releases the reference to the table and deletes its file if the reference was the last one.
+     */
+    void release() {
+        if (refs.decrementAndGet() == 0) {
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                log.error("Cannot delete SSTable {}", path, e);
+            }
+        }
+    }
+
+    /**
+     * Returns the level of the table, 0 for flushed memTables and older files.
+     */
+    int getLevel() {
+        return level;
+    }
+
+    /**
+     * Returns the timestamp of the newest row or 0 for version 1 files.
+     * The tables of level 0 hold disjoint time ranges, since memTables get newer timestamps
+     * than the previous ones and only adjacent tables are merged, so this orders them by recency.
+     */
+    long getMaxTimestamp() {
+        return maxTimestamp;
+    }
+
+    long getSizeBytes() {
+        return sizeBytes;
+    }
+
+    @NotNull
+    ByteBuffer getFirstKey() {
+        return meta().firstKey.asReadOnlyBuffer();
+    }
+
+    @NotNull
+    ByteBuffer getLastKey() {
+        return meta().lastKey.asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns the range tombstones of the table. The footer tells if there are any,
+     * so that the rest of the table is not read for the tables without them.
+     */
+    @NotNull
+    RangeTombstones getRangeTombstones() {
+        return rangeTombstones ? meta().rangeTombstones : RangeTombstones.EMPTY;
+    }
+
+    /**
+     * Returns true if the keys of the table may intersect the range.
+     */
+    boolean overlaps(@NotNull final ByteBuffer from, @NotNull final ByteBuffer to) {
+        final Meta current = meta();
+        return current.lastKey.compareTo(from) >= 0 && current.firstKey.compareTo(to) <= 0;
+    }
+
+    /**
+     * Returns false if the table definitely does not contain the key.
+     * Tables written without the filter always might contain it.
+     */
+    boolean mightContain(@NotNull final ByteBuffer key) {
+        final BloomFilter filter = meta().filter;
+        return filter == null || filter.mightContain(key);
+    }
+
+    /**
+     * Returns the upper bound of the number of rows, estimated by the size of the filter if it was written
+     * with the same bits per key, otherwise by the size of the file.
+     */
+    long estimateRowsCount(final int bitsPerKey) {
+        final Meta current = meta();
+        if (current.singleBlock != null) {
+            return current.singleBlock.getRestartsCount();
+        }
+        if (current.filter != null && bitsPerKey > 0) {
+            return current.filter.getBitsCount() / bitsPerKey;
+        }
+        return sizeBytes / MIN_ROW_BYTES;
+    }
+
+    /**
+     * Writes the rows to the file in the current format.
+     * A block is written as soon as its size reaches {@link Config#getBlockSizeBytes()},
+     * so a row larger than that gets a block of its own.
+     * Blocks are compressed with {@link Config#getBlockCodec()} unless that saves less than 1/8 of the size.
+     * No more rows are taken from the iterator once the blocks reach the limit, the rest is left for the next file.
      *
-     * @param path the path of the file in which the values will be written
+     * @param path            the path of the file in which the values will be written
+     * @param iterator        the rows to write in ascending order of keys
+     * @param rangeTombstones the range tombstones to write
+     * @param config          the parameters of the file
+     * @param level           the level of the table in the LSM tree
+     * @param expectedKeys    the estimated upper bound of the number of rows which sizes the bloom filter
+     * @param limitBytes      the size of the blocks after which the file is finished
      * @throws IOException if an I/O error occurs
      */
-    public static void writeToFile(@NotNull final Path path, @NotNull final Iterator<Row> iterator) throws IOException {
+    public static void writeToFile(
+            @NotNull final Path path,
+            @NotNull final Iterator<Row> iterator,
+            @NotNull final RangeTombstones rangeTombstones,
+            @NotNull final Config config,
+            final int level,
+            final long expectedKeys,
+            final long limitBytes) throws IOException {
+        final int bitsPerKey = config.getBloomBitsPerKey();
+        final BlockCodec codec = config.getBlockCodec();
         try (FileChannel fileChannel = FileChannel.open(
                 path,
                 StandardOpenOption.CREATE_NEW,
                 StandardOpenOption.WRITE)) {
-            final Collection<Integer> offsets = new ArrayList<>();
-            int offset = 0;
-            while (iterator.hasNext()) {
+            final Block.Builder block = new Block.Builder(config.getBlockRestartInterval());
+            final Block.Builder index = new Block.Builder(1);
+            final BloomFilter.Builder filter =
+                    bitsPerKey > 0 ? new BloomFilter.Builder(expectedKeys, bitsPerKey) : null;
+            int rowsCount = 0;
+            long maxTimestamp = 0;
+            long offset = 0;
+            ByteBuffer lastKey = Value.EMPTY_BUFFER;
+            while (offset < limitBytes && iterator.hasNext()) {
                 final Row row = iterator.next();
-                offsets.add(offset);
-                final ByteBuffer rowBuffer = ByteBuffer.allocate(row.getSizeBytes());
-                final ByteBuffer key = row.getKey();
-                final Value value = row.getValue();
-                rowBuffer.putInt(key.remaining())
-                        .put(key);
-                if (value.isRemoved()) {
-                    rowBuffer.putLong(-value.getTimestamp());
-                } else {
-                    rowBuffer.putLong(value.getTimestamp())
-                            .putInt(value.getData().remaining())
-                            .put(value.getData());
+                lastKey = row.getKey();
+                if (filter != null) {
+                    filter.add(row.getKey());
                 }
-                rowBuffer.rewind();
-                fileChannel.write(rowBuffer);
-                offset += row.getSizeBytes();
-            }
-            final ByteBuffer offsetsBuffer = ByteBuffer.allocate(Integer.BYTES * offsets.size());
-            for (final Integer value : offsets) {
-                offsetsBuffer.putInt(value);
-            }
-            offsetsBuffer.rewind();
-            fileChannel.write(offsetsBuffer);
-            final ByteBuffer sizeBuffer = ByteBuffer.allocate(Integer.BYTES)
-                    .putInt(offsets.size())
+                rowsCount++;
+                maxTimestamp = Math.max(maxTimestamp, row.getValue().getTimestamp());
+                block.add(row);
+                if (block.getSizeBytes() >= config.getBlockSizeBytes()) {
+                    offset += writeBlock(fileChannel, offset, block, index, codec);
+                }
+            }
+            if (!block.isEmpty()) {
+                offset += writeBlock(fileChannel, offset, block, index, codec);
+            }
+            // Everything after the data blocks is covered by the checksum in the footer
+            final CRC32C checksum = new CRC32C();
+            final ByteBuffer indexBuffer = index.build();
+            final long indexOffset = offset;
+            final int indexSize = indexBuffer.remaining();
+            checksum.update(indexBuffer.duplicate());
+            offset += fileChannel.write(indexBuffer);
+            final long filterOffset = offset;
+            int filterSize = 0;
+            if (filter != null) {
+                final ByteBuffer filterBuffer = filter.build();
+                checksum.update(filterBuffer.duplicate());
+                filterSize = fileChannel.write(filterBuffer);
+            }
+            final long rangeTombstonesOffset = filterOffset + filterSize;
+            final ByteBuffer rangeTombstonesBuffer = rangeTombstones.build();
+            checksum.update(rangeTombstonesBuffer.duplicate());
+            final int rangeTombstonesSize = fileChannel.write(rangeTombstonesBuffer);
+            if (!rangeTombstones.isEmpty()) {
+                maxTimestamp = Math.max(maxTimestamp, rangeTombstones.getMaxTimestamp());
+                if (rowsCount == 0 || rangeTombstones.getLastKey().compareTo(lastKey) > 0) {
+                    lastKey = rangeTombstones.getLastKey();
+                }
+            }
+            checksum.update(lastKey.duplicate());
+            final int lastKeySize = fileChannel.write(lastKey.duplicate());
+            final ByteBuffer footer = ByteBuffer.allocate(FOOTER_BYTES)
+                    .putLong(indexOffset)
+                    .putInt(indexSize)
+                    .putLong(filterOffset)
+                    .putInt(filterSize)
+                    .putLong(rangeTombstonesOffset)
+                    .putInt(rangeTombstonesSize)
+                    .putInt(codec == null ? NO_CODEC : codec.getId())
+                    .putInt(level)
+                    .putLong(maxTimestamp)
+                    .putInt(lastKeySize)
+                    .putInt(VERSION);
+            checksum.update(footer.duplicate().flip());
+            footer.putInt((int) checksum.getValue())
+                    .putLong(MAGIC)
                     .rewind();
-            fileChannel.write(sizeBuffer);
+            fileChannel.write(footer);
+            fileChannel.force(false);
         }
     }
 
+    private static int writeBlock(
+            @NotNull final FileChannel fileChannel,
+            final long offset,
+            @NotNull final Block.Builder block,
+            @NotNull final Block.Builder index,
+            @Nullable final BlockCodec codec) throws IOException {
+        final ByteBuffer raw = block.build();
+        final int rawSize = raw.remaining();
+        ByteBuffer stored = raw;
+        if (codec != null) {
+            final ByteBuffer compressed = codec.compress(raw);
+            if (compressed.remaining() <= rawSize - rawSize / 8) {
+                stored = compressed;
+            }
+        }
+        final int checksum = checksum(stored);
+        final int size = fileChannel.write(stored);
+        final ByteBuffer handle = ByteBuffer.allocate(HANDLE_BYTES)
+                .putLong(HANDLE_OFFSET, offset)
+                .putInt(HANDLE_SIZE, size)
+                .putInt(HANDLE_RAW_SIZE, stored == raw ? 0 : rawSize)
+                .putInt(HANDLE_CRC, checksum);
+        index.add(new Row(block.getFirstKey(), new Value(0, false, handle)));
+        block.reset();
+        return size;
+    }
+
     @NotNull
     @Override
     public Iterator<Row> iterator(@NotNull final ByteBuffer from) {
-        return new Iterator<>() {
-            private int position = position(from);
+        return iterator(from, false);
+    }
 
-            @Override
-            public boolean hasNext() {
-                return position < rowsCount;
-            }
+    /**
+     * Returns the rows with the keys which are greater than or equal to the given one.
+     *
+     * @param from       the key to start from
+     * @param compaction whether the rows are read by a compaction, which always verifies the blocks
+     *                   and does not put them into the block cache, since it would only evict the hot ones
+     * @return the rows
+     */
+    @NotNull
+    Iterator<Row> iterator(@NotNull final ByteBuffer from, final boolean compaction) {
+        return RowCursors.rows(cursor(from, compaction));
+    }
 
-            @Override
-            public Row next() {
-                if (!hasNext()) {
-                    throw new NoSuchElementException();
-                }
-                return rowAt(position++);
-            }
-        };
+    /**
+     * Returns the cursor over the rows with the keys which are greater than or equal to the given one,
+     * the rows are read from the blocks in place.
+     *
+     * @param from       the key to start from
+     * @param compaction whether the rows are read by a compaction, see {@link #iterator(ByteBuffer, boolean)}
+     * @return the cursor
+     */
+    @NotNull
+    RowCursor cursor(@NotNull final ByteBuffer from, final boolean compaction) {
+        final int first = blockIndex(from);
+        return new BlocksCursor(first, blockAt(first, compaction).cursor(from), compaction);
+    }
+
+    /**
+     * Returns the row (possibly tombstone) with the key or null if the table does not contain it.
+     * Only the block which may contain the key is read.
+     */
+    @Nullable
+    Row get(@NotNull final ByteBuffer key) {
+        final Meta current = meta();
+        if (current.firstKey.compareTo(key) > 0 || current.lastKey.compareTo(key) < 0 || !mightContain(key)) {
+            return null;
+        }
+        return blockAt(blockIndex(key), false).get(key);
     }
 
     @Override
@@ -136,62 +529,212 @@ public final class SSTable implements Table {
         throw new UnsupportedOperationException();
     }
 
-    private int position(@NotNull final ByteBuffer key) {
-        int left = 0;
-        int right = rowsCount - 1;
-        while (left <= right) {
-            final int mid = left + (right - left) / 2;
-            final int cmp = keyAt(mid).compareTo(key);
-            if (cmp < 0) {
-                left = mid + 1;
-            } else if (cmp > 0) {
-                right = mid - 1;
-            } else {
-                return mid;
+    private int getBlocksCount() {
+        final Block index = meta().index;
+        return index == null ? 1 : index.getRestartsCount();
+    }
+
+    /**
+     * Returns the index of the last block which first key is less than or equal to the given key
+     * or the first block if there is no such one.
+     */
+    private int blockIndex(@NotNull final ByteBuffer key) {
+        final Block index = meta().index;
+        if (index == null) {
+            return 0;
+        }
+        return index.findRestart(key);
+    }
+
+    @NotNull
+    private Block blockAt(final int blockIndex, final boolean compaction) {
+        final Meta current = meta();
+        final Block index = current.index;
+        if (index == null) {
+            return current.singleBlock;
+        }
+        if (index.getRestartsCount() == 0) {
+            return EMPTY_BLOCK;
+        }
+        final long offset = index.getLong(blockIndex, HANDLE_OFFSET);
+        final int size = index.getInt(blockIndex, HANDLE_SIZE);
+        final int rawSize = index.getInt(blockIndex, HANDLE_RAW_SIZE);
+        final int checksum = index.getInt(blockIndex, HANDLE_CRC);
+        final boolean verify = verifyReads || compaction;
+        if (rawSize == 0 && isMapped(offset, size)) {
+            return readBlock(offset, size, rawSize, verify, checksum);
+        }
+        if (cache != null) {
+            final Block cached = cache.get(id, offset);
+            if (cached != null) {
+                return cached;
             }
         }
-        return left;
+        final Block block = readBlock(offset, size, rawSize, verify, checksum);
+        if (cache != null && !compaction) {
+            cache.put(id, offset, block, rawSize == 0 ? size : rawSize);
+        }
+        return block;
     }
 
+    /**
+     * Reads the block checking its checksum if requested.
+     *
+     * @throws CorruptedBlockException if the block does not match the checksum or cannot be decoded
+     */
     @NotNull
-    private ByteBuffer keyAt(final int position) {
-        if (position < 0 || position > rowsCount) {
-            throw new IllegalArgumentException("Invalid position of key");
+    private Block readBlock(
+            final long offset,
+            final int size,
+            final int rawSize,
+            final boolean verify,
+            final int checksum) {
+        try {
+            final ByteBuffer stored = region(offset, size);
+            if (verify && checksum(stored) != checksum) {
+                throw new CorruptedBlockException(path, offset, "Checksum mismatch");
+            }
+            if (rawSize == 0) {
+                return new Block(stored, false);
+            }
+            if (codec == null) {
+                throw new CorruptedBlockException(path, offset, "Compressed block without codec");
+            }
+            return new Block(codec.decompress(stored, rawSize), false);
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            throw new CorruptedBlockException(path, offset, String.valueOf(e.getMessage()));
         }
-        final int offset = offsetsBuffer.get(position);
-        final int keySize = rowsBuffer.getInt(offset);
-        return rowsBuffer.duplicate()
-                .position(offset + Integer.BYTES)
-                .limit(offset + Integer.BYTES + keySize)
-                .slice()
-                .asReadOnlyBuffer();
     }
 
+    private static int checksum(@NotNull final ByteBuffer buffer) {
+        final CRC32C crc = new CRC32C();
+        crc.update(buffer.duplicate());
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Returns true if the part of the file lies within a single segment and may be read without copying.
+     */
+    private boolean isMapped(final long offset, final int size) {
+        return offset % segmentSizeBytes + size <= segmentSizeBytes;
+    }
+
+    /**
+     * Returns the part of the file, which is a slice of the mapped segment
+     * or a copy if the part crosses the border of segments.
+     */
     @NotNull
-    private Row rowAt(final int position) {
-        if (position < 0 || position > rowsCount) {
-            throw new IllegalArgumentException("Invalid position of row");
-        }
-        int offset = offsetsBuffer.get(position);
-        final int keySize = rowsBuffer.getInt(offset);
-        final ByteBuffer key = rowsBuffer.duplicate()
-                .position(offset + Integer.BYTES)
-                .limit(offset + Integer.BYTES + keySize)
-                .slice()
-                .asReadOnlyBuffer();
-        offset += Integer.BYTES + keySize;
-
-        final long timestamp = rowsBuffer.position(offset).getLong();
-        if (timestamp < 0) {
-            return new Row(key, new Value(-timestamp, true, Value.EMPTY_BUFFER));
-        }
-        final int dataSize = rowsBuffer.getInt(offset + Long.BYTES);
-        offset += Long.BYTES + Integer.BYTES;
-        final ByteBuffer data = rowsBuffer.duplicate()
-                .position(offset)
-                .limit(offset + dataSize)
-                .slice()
-                .asReadOnlyBuffer();
-        return new Row(key, new Value(timestamp, false, data));
+    private ByteBuffer region(final long offset, final int size) {
+        if (offset < 0 || size < 0 || offset + size > sizeBytes) {
+            throw new IllegalArgumentException("Invalid region of file");
+        }
+        if (size == 0) {
+            return Value.EMPTY_BUFFER;
+        }
+        final ByteBuffer segment = segments[(int) (offset / segmentSizeBytes)];
+        final int position = (int) (offset % segmentSizeBytes);
+        if (position + size <= segment.limit()) {
+            return segment.duplicate()
+                    .position(position)
+                    .limit(position + size)
+                    .slice();
+        }
+        final ByteBuffer copy = ByteBuffer.allocate(size);
+        long current = offset;
+        while (copy.hasRemaining()) {
+            final ByteBuffer part = segments[(int) (current / segmentSizeBytes)];
+            final int from = (int) (current % segmentSizeBytes);
+            final int length = Math.min(copy.remaining(), part.limit() - from);
+            copy.put(part.duplicate().position(from).limit(from + length));
+            current += length;
+        }
+        return copy.flip().asReadOnlyBuffer();
+    }
+
+    /**
+     * Cursor which moves through the blocks of the table, a block is read when the previous one is exhausted.
+     */
+    private final class BlocksCursor implements RowCursor {
+        private final boolean compaction;
+        private int blockIndex;
+        private RowCursor block;
+
+        BlocksCursor(final int blockIndex, @NotNull final RowCursor block, final boolean compaction) {
+            this.blockIndex = blockIndex;
+            this.block = block;
+            this.compaction = compaction;
+        }
+
+        @Override
+        public boolean advance() {
+            while (!block.advance()) {
+                if (blockIndex + 1 >= getBlocksCount()) {
+                    return false;
+                }
+                block = blockAt(++blockIndex, compaction).cursor(Value.EMPTY_BUFFER);
+            }
+            return true;
+        }
+
+        @NotNull
+        @Override
+        public ByteBuffer key() {
+            return block.key();
+        }
+
+        @NotNull
+        @Override
+        public ByteBuffer value() {
+            return block.value();
+        }
+
+        @Override
+        public long timestamp() {
+            return block.timestamp();
+        }
+
+        @Override
+        public boolean isRemoved() {
+            return block.isRemoved();
+        }
+
+        @Override
+        public long expiresAt() {
+            return block.expiresAt();
+        }
+
+        @NotNull
+        @Override
+        public Row row() {
+            return block.row();
+        }
+    }
+
+    /**
+     * The parts of the table which are read on the first access.
+     * Version 1 tables have the single block instead of the index.
+     */
+    private static final class Meta {
+        private final Block index;
+        private final Block singleBlock;
+        private final BloomFilter filter;
+        private final RangeTombstones rangeTombstones;
+        private final ByteBuffer firstKey;
+        private final ByteBuffer lastKey;
+
+        Meta(
+                @Nullable final Block index,
+                @Nullable final Block singleBlock,
+                @Nullable final BloomFilter filter,
+                @NotNull final RangeTombstones rangeTombstones,
+                @NotNull final ByteBuffer firstKey,
+                @NotNull final ByteBuffer lastKey) {
+            this.index = index;
+            this.singleBlock = singleBlock;
+            this.filter = filter;
+            this.rangeTombstones = rangeTombstones;
+            this.firstKey = firstKey;
+            this.lastKey = lastKey;
+        }
     }
 }
@@ -0,0 +1,103 @@
+package ru.mail.polis.vasekha;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Merges runs of tables of similar size into a table of level 0, so that a row is rewritten
+ * about once per tier of sizes.
+ * Only runs of tables adjacent by recency are merged: the merged table takes their place in the order,
+ * which lets reads stop at the newest table containing the key.
+ * The output is split into tables of {@link Config#getSizeTieredMaxFileBytes()} with disjoint keys,
+ * they keep the place of the run too since the tables of level 0 hold disjoint time ranges.
+ * Tables of that size are not merged again, otherwise they would be rewritten into the same tables forever.
+ * Tables of the other levels, left by {@link LeveledCompactionStrategy}, are not touched.
+ */
+final class SizeTieredCompactionStrategy implements CompactionStrategy {
+    private static final double BUCKET_LOW = 0.5;
+    private static final double BUCKET_HIGH = 1.5;
+
+    private final Config config;
+
+    SizeTieredCompactionStrategy(@NotNull final Config config) {
+        this.config = config;
+    }
+
+    /**
+     * Returns the run of at least {@link Config#getSizeTieredMinThreshold()} similar tables
+     * with the smallest average size, so that small fresh tables are merged first.
+     * Full tables split the runs.
+     */
+    @Nullable
+    @Override
+    public Compaction pick(@NotNull final List<SSTable> ssTables) {
+        final List<SSTable> tables = levelZero(ssTables);
+        List<SSTable> best = null;
+        double bestAverage = Double.MAX_VALUE;
+        int start = 0;
+        while (start < tables.size()) {
+            if (full(tables.get(start))) {
+                start++;
+                continue;
+            }
+            long total = tables.get(start).getSizeBytes();
+            int end = start + 1;
+            while (end < tables.size()
+                    && end - start < config.getSizeTieredMaxThreshold()
+                    && !full(tables.get(end))
+                    && similar((double) total / (end - start), tables.get(end).getSizeBytes())) {
+                total += tables.get(end).getSizeBytes();
+                end++;
+            }
+            final double average = (double) total / (end - start);
+            if (end - start >= config.getSizeTieredMinThreshold() && average < bestAverage) {
+                best = tables.subList(start, end);
+                bestAverage = average;
+            }
+            start = end;
+        }
+        return best == null ? null : compaction(best, ssTables);
+    }
+
+    /**
+     * Merges all the tables of level 0.
+     */
+    @Nullable
+    @Override
+    public Compaction pickManual(@NotNull final List<SSTable> ssTables) {
+        final List<SSTable> tables = levelZero(ssTables);
+        return tables.isEmpty() ? null : compaction(tables, ssTables);
+    }
+
+    private boolean full(@NotNull final SSTable ssTable) {
+        return ssTable.getSizeBytes() >= config.getSizeTieredMaxFileBytes();
+    }
+
+    private boolean similar(final double average, final long size) {
+        final long minBytes = config.getSizeTieredMinBytes();
+        return average < minBytes && size < minBytes
+                || size >= average * BUCKET_LOW && size <= average * BUCKET_HIGH;
+    }
+
+    /**
+     * Tombstones may be dropped only if the run includes the oldest table.
+     */
+    @NotNull
+    private static Compaction compaction(@NotNull final List<SSTable> run, @NotNull final List<SSTable> ssTables) {
+        return new Compaction(run, 0, run.get(0) == ssTables.get(0));
+    }
+
+    @NotNull
+    private static List<SSTable> levelZero(@NotNull final List<SSTable> ssTables) {
+        final List<SSTable> result = new ArrayList<>();
+        for (final SSTable ssTable : ssTables) {
+            if (ssTable.getLevel() == 0) {
+                result.add(ssTable);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,103 @@
+package ru.mail.polis.vasekha;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.mail.polis.Record;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Read-only view of the rows written to the DAO before {@link MyDAO#snapshot()},
+ * which is not affected by the following writes, flushes and compactions.
+ * The view consists of immutable tables only, so it needs no filtering by timestamp.
+ * Values with time to live are checked for expiration at the time the view was taken,
+ * so that the repeated reads of the view agree.
+ * The view holds its SSTables from being deleted and its memTables from being collected until it is closed.
+ */
+public final class Snapshot implements Closeable {
+    private final TableSet tables;
+    private final long timestamp;
+    private final long nowMillis;
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    /**
+     * Creates the view of the tables.
+     *
+     * @param tables    the read-only tables, see {@link TableSet#retain()}
+     * @param timestamp the timestamp which is greater than the timestamps of all the rows of the tables
+     * @param nowMillis the wall-clock time the values are checked for expiration at
+     */
+    Snapshot(@NotNull final TableSet tables, final long timestamp, final long nowMillis) {
+        this.tables = tables;
+        this.timestamp = timestamp;
+        this.nowMillis = nowMillis;
+    }
+
+    /**
+     * Returns the timestamp taken when the view was created, which is greater than the timestamps of all its rows.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Returns the records starting from the key, the iterator may outlive the view.
+     */
+    @NotNull
+    public CloseableIterator<Record> iterator(@NotNull final ByteBuffer from) {
+        return range(from, null);
+    }
+
+    /**
+     * Returns the records starting from the key (inclusive) until the other one (exclusive),
+     * the iterator may outlive the view.
+     */
+    @NotNull
+    public CloseableIterator<Record> range(@NotNull final ByteBuffer from, @Nullable final ByteBuffer to) {
+        return new RecordIterator(cursor(from, to));
+    }
+
+    /**
+     * Returns the cursor over the records starting from the key (inclusive) until the other one (exclusive),
+     * which reads the records in place without creating objects per record. The cursor may outlive the view.
+     */
+    @NotNull
+    public RecordCursor cursor(@NotNull final ByteBuffer from, @Nullable final ByteBuffer to) {
+        checkOpen();
+        if (!tables.retain()) {
+            throw new IllegalStateException("Snapshot is closed");
+        }
+        return new RangeCursor(tables, from, to, nowMillis);
+    }
+
+    /**
+     * Returns the value of the key.
+     *
+     * @throws NoSuchElementException if the view does not contain the key
+     */
+    @NotNull
+    public ByteBuffer get(@NotNull final ByteBuffer key) {
+        checkOpen();
+        final Row row = tables.get(key, null);
+        if (row == null || !row.getValue().isAlive(nowMillis)) {
+            throw new NoSuchElementException("Not found");
+        }
+        return row.getValue().getData();
+    }
+
+    private void checkOpen() {
+        if (closed.get()) {
+            throw new IllegalStateException("Snapshot is closed");
+        }
+    }
+
+    @Override
+    public void close() {
+        if (closed.compareAndSet(false, true)) {
+            tables.release();
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package ru.mail.polis.vasekha;
+
+/**
+ * Defines when the write-ahead log is forced to the storage device.
+ */
+public enum SyncPolicy {
+    /**
+     * Every group of mutations is forced before the callers return.
+     */
+    ALWAYS,
+    /**
+     * Mutations are written to the file immediately and forced periodically.
+     */
+    INTERVAL,
+    /**
+     * Mutations are written to the file and never forced explicitly.
+     */
+    NONE
+}
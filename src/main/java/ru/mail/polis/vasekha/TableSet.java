@@ -0,0 +1,263 @@
+package ru.mail.polis.vasekha;
+
+import com.google.common.collect.ImmutableList;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Immutable state of the tables of the DAO which is replaced as a whole on every change.
+ * Readers take the current instance and are not affected by concurrent flushes.
+ */
+final class TableSet {
+    /**
+     * Orders SSTables from the oldest to the newest: deeper levels go first,
+     * tables of level 0 are ordered by their newest rows and tables of the other levels do not overlap.
+     */
+    static final Comparator<SSTable> ORDER = Comparator.comparingInt(SSTable::getLevel)
+            .reversed()
+            .thenComparingLong(SSTable::getMaxTimestamp)
+            .thenComparing(SSTable::getPath);
+
+    private final MemTable memTable;
+    private final ImmutableList<MemTable> flushing;
+    private final ImmutableList<SSTable> ssTables;
+    private volatile RangeTombstones ssTableRangeTombstones;
+    private volatile RangeTombstones frozenRangeTombstones;
+    private volatile MergedRangeTombstones mergedRangeTombstones;
+
+    TableSet(
+            @NotNull final MemTable memTable,
+            @NotNull final Collection<MemTable> flushing,
+            @NotNull final Collection<SSTable> ssTables) {
+        this.memTable = memTable;
+        this.flushing = ImmutableList.copyOf(flushing);
+        this.ssTables = ImmutableList.copyOf(ssTables);
+    }
+
+    /**
+     * Returns the table which accepts writes.
+     */
+    @NotNull
+    MemTable getMemTable() {
+        return memTable;
+    }
+
+    /**
+     * Returns read-only tables waiting to be flushed, the oldest first.
+     */
+    @NotNull
+    ImmutableList<MemTable> getFlushing() {
+        return flushing;
+    }
+
+    /**
+     * Returns SSTables from the oldest to the newest, see {@link #ORDER}.
+     */
+    @NotNull
+    ImmutableList<SSTable> getSSTables() {
+        return ssTables;
+    }
+
+    /**
+     * Returns the range tombstones of the SSTables, which are merged once per set.
+     * The tables without range tombstones are skipped without being read, see {@link SSTable#getRangeTombstones()}.
+     */
+    @NotNull
+    private RangeTombstones getSSTableRangeTombstones() {
+        RangeTombstones result = ssTableRangeTombstones;
+        if (result == null) {
+            final List<RangeTombstones> sets = new ArrayList<>(ssTables.size());
+            for (final SSTable ssTable : ssTables) {
+                sets.add(ssTable.getRangeTombstones());
+            }
+            result = RangeTombstones.merge(sets);
+            ssTableRangeTombstones = result;
+        }
+        return result;
+    }
+
+    /**
+     * Returns the range tombstones of all the tables.
+     * The tombstones of the read-only tables are merged once per set, they are merged with the ones
+     * of the memTable again only after the memTable gets new ones.
+     */
+    @NotNull
+    RangeTombstones getRangeTombstones() {
+        RangeTombstones frozen = frozenRangeTombstones;
+        if (frozen == null) {
+            final List<RangeTombstones> sets = new ArrayList<>(flushing.size() + 1);
+            sets.add(getSSTableRangeTombstones());
+            for (final MemTable table : flushing) {
+                sets.add(table.getRangeTombstones());
+            }
+            frozen = RangeTombstones.merge(sets);
+            frozenRangeTombstones = frozen;
+        }
+        final RangeTombstones live = memTable.getRangeTombstones();
+        if (live.isEmpty()) {
+            return frozen;
+        }
+        MergedRangeTombstones merged = mergedRangeTombstones;
+        if (merged == null || merged.live != live) {
+            merged = new MergedRangeTombstones(live, RangeTombstones.merge(Arrays.asList(frozen, live)));
+            mergedRangeTombstones = merged;
+        }
+        return merged.result;
+    }
+
+    /**
+     * Returns the newest row of every key starting from the given one, without tombstones, expired rows
+     * and the rows covered by the range tombstones.
+     *
+     * @param from      the first key
+     * @param nowMillis the wall-clock time the rows are checked for expiration at
+     */
+    @NotNull
+    RowCursor cursor(@NotNull final ByteBuffer from, final long nowMillis) {
+        final List<RowCursor> cursors = new ArrayList<>(1 + flushing.size() + ssTables.size());
+        cursors.add(RowCursors.of(memTable.iterator(from)));
+        for (final MemTable table : flushing.reverse()) {
+            cursors.add(RowCursors.of(table.iterator(from)));
+        }
+        for (final SSTable ssTable : ssTables.reverse()) {
+            cursors.add(ssTable.cursor(from, false));
+        }
+        return MergeCursor.alive(cursors, getRangeTombstones(), nowMillis);
+    }
+
+    /**
+     * Probes the tables from the newest to the oldest and stops at the first one containing the key,
+     * so that the bloom filters of SSTables are checked and nothing is allocated until the key is found.
+     *
+     * The row covered by a newer range tombstone is returned as the tombstone.
+     *
+     * @param key          the key
+     * @param tablesProbed the histogram recording the number of the probed tables or null
+     * @return the newest row (possibly tombstone) with the key or null if the tables do not contain it
+     */
+    @Nullable
+    Row get(@NotNull final ByteBuffer key, @Nullable final Histogram tablesProbed) {
+        Row row = memTable.get(key);
+        int probed = 1;
+        for (int i = flushing.size() - 1; row == null && i >= 0; i--) {
+            row = flushing.get(i).get(key);
+            probed++;
+        }
+        for (int i = ssTables.size() - 1; row == null && i >= 0; i--) {
+            row = ssTables.get(i).get(key);
+            probed++;
+        }
+        if (tablesProbed != null) {
+            tablesProbed.record(probed);
+        }
+        if (row == null) {
+            return null;
+        }
+        long removed = getSSTableRangeTombstones().getTimestamp(key);
+        for (final MemTable table : flushing) {
+            removed = Math.max(removed, table.getRangeTombstoneTimestamp(key));
+        }
+        removed = Math.max(removed, memTable.getRangeTombstoneTimestamp(key));
+        if (row.getValue().getTimestamp() < removed) {
+            return new Row(key, new Value(removed, true, Value.EMPTY_BUFFER));
+        }
+        return row;
+    }
+
+    /**
+     * Returns the set of the read-only tables only, which is not affected by the following writes.
+     */
+    @NotNull
+    TableSet frozen() {
+        return new TableSet(new HeapMemTable(), flushing, ssTables);
+    }
+
+    /**
+     * Takes references to the SSTables, so that they are not deleted while they are read.
+     *
+     * @return false if some of the tables are deleted already, no references are taken then
+     */
+    boolean retain() {
+        for (int i = 0; i < ssTables.size(); i++) {
+            if (!ssTables.get(i).retain()) {
+                for (int j = 0; j < i; j++) {
+                    ssTables.get(j).release();
+                }
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Releases the references taken by {@link #retain()}.
+     */
+    void release() {
+        for (final SSTable ssTable : ssTables) {
+            ssTable.release();
+        }
+    }
+
+    /**
+     * Moves the current memTable to the flush queue and replaces it with the empty one.
+     */
+    @NotNull
+    TableSet swapMemTable(@NotNull final MemTable fresh) {
+        return new TableSet(
+                fresh,
+                ImmutableList.<MemTable>builder().addAll(flushing).add(memTable).build(),
+                ssTables);
+    }
+
+    /**
+     * Replaces the flushed memTable with the SSTable it was written to.
+     */
+    @NotNull
+    TableSet flushed(@NotNull final MemTable flushed, @NotNull final SSTable ssTable) {
+        final ImmutableList.Builder<MemTable> rest = ImmutableList.builder();
+        for (final MemTable table : flushing) {
+            if (table != flushed) {
+                rest.add(table);
+            }
+        }
+        return new TableSet(
+                memTable,
+                rest.build(),
+                ImmutableList.<SSTable>builder().addAll(ssTables).add(ssTable).build());
+    }
+
+    /**
+     * Replaces the inputs of a compaction with its outputs.
+     */
+    @NotNull
+    TableSet compacted(@NotNull final Collection<SSTable> inputs, @NotNull final Collection<SSTable> outputs) {
+        final List<SSTable> result = new ArrayList<>(outputs);
+        for (final SSTable table : ssTables) {
+            if (!inputs.contains(table)) {
+                result.add(table);
+            }
+        }
+        result.sort(ORDER);
+        return new TableSet(memTable, flushing, result);
+    }
+
+    /**
+     * The range tombstones of all the tables and the ones of the memTable they were merged with.
+     */
+    private static final class MergedRangeTombstones {
+        private final RangeTombstones live;
+        private final RangeTombstones result;
+
+        MergedRangeTombstones(@NotNull final RangeTombstones live, @NotNull final RangeTombstones result) {
+            this.live = live;
+            this.result = result;
+        }
+    }
+}
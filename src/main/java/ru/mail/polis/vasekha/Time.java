@@ -1,21 +1,32 @@
 package ru.mail.polis.vasekha;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 public final class Time {
-    private static long lastTime;
-    private static int additionalTime;
+    private static final AtomicLong lastTime = new AtomicLong();
 
     private Time() {
     }
 
     /**
-     * Returns time in nanos.
+     * Returns time in nanos, unique and increasing across all threads.
      */
     public static long getTimeNanos() {
-        final long currentTime = System.currentTimeMillis();
-        if (currentTime != lastTime) {
-            additionalTime = 0;
-            lastTime = currentTime;
-        }
-        return currentTime * 1_000_000 + ++additionalTime;
+        final long currentTime = System.currentTimeMillis() * 1_000_000;
+        return lastTime.accumulateAndGet(currentTime, (last, current) -> current > last ? current : last + 1);
+    }
+
+    /**
+     * Reserves the range of consecutive timestamps which are unique and increasing across all threads.
+     *
+     * @param count the number of timestamps
+     * @return the first timestamp of the range
+     */
+    public static long getTimeNanos(final int count) {
+        final long currentTime = System.currentTimeMillis() * 1_000_000;
+        final long last = lastTime.accumulateAndGet(
+                currentTime,
+                (previous, current) -> Math.max(current + count - 1, previous + count));
+        return last - count + 1;
     }
 }
@@ -6,14 +6,29 @@ import java.nio.ByteBuffer;
 
 public final class Value implements Comparable<Value> {
     static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0);
+    static final long NEVER = 0;
     private final long timestamp;
     private final boolean isTombstone;
     private final ByteBuffer data;
+    private final long expiresAt;
 
     Value(final long timestamp, final boolean isTombstone, @NotNull final ByteBuffer data) {
+        this(timestamp, isTombstone, data, NEVER);
+    }
+
+    /**
+     * Creates the value.
+     *
+     * @param timestamp   the timestamp of the value
+     * @param isTombstone whether the value is a tombstone
+     * @param data        the data of the value, empty for tombstones
+     * @param expiresAt   the time in milliseconds since the epoch after which the value is absent or {@link #NEVER}
+     */
+    Value(final long timestamp, final boolean isTombstone, @NotNull final ByteBuffer data, final long expiresAt) {
         this.timestamp = timestamp;
         this.isTombstone = isTombstone;
         this.data = data;
+        this.expiresAt = expiresAt;
     }
 
     @NotNull
@@ -21,6 +36,11 @@ public final class Value implements Comparable<Value> {
         return new Value(Time.getTimeNanos(), false, data);
     }
 
+    @NotNull
+    public static Value of(@NotNull final ByteBuffer data, final long expiresAt) {
+        return new Value(Time.getTimeNanos(), false, data, expiresAt);
+    }
+
     @NotNull
     public static Value remove() {
         return new Value(Time.getTimeNanos(), true, EMPTY_BUFFER);
@@ -30,14 +50,32 @@ public final class Value implements Comparable<Value> {
         return isTombstone;
     }
 
+    /**
+     * Returns the time in milliseconds since the epoch after which the value is absent or {@link #NEVER}.
+     */
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    /**
+     * Returns true if the value is neither removed nor expired at the time.
+     *
+     * @param nowMillis the time in milliseconds since the epoch
+     */
+    public boolean isAlive(final long nowMillis) {
+        return !isTombstone && (expiresAt == NEVER || expiresAt > nowMillis);
+    }
+
     /**
      * Returns the size in bytes that the value will occupy in the file.
      */
     public int getSizeBytes() {
         if (isTombstone) {
             return Long.BYTES;
-        } else {
+        } else if (expiresAt == NEVER) {
             return Long.BYTES + Integer.BYTES + data.remaining();
+        } else {
+            return Long.BYTES * 2 + Integer.BYTES + data.remaining();
         }
     }
 
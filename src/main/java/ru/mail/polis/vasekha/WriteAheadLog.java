@@ -0,0 +1,658 @@
+package ru.mail.polis.vasekha;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only log of mutations which are not flushed to SSTables yet.
+ * Record format in file: payload size | crc32c of payload | payload
+ * Payload is a row, or the batch layout: -rows count | rows
+ * Row format: key size | key | timestamp | value size | value
+ * if value expires
+ * key size | key | timestamp | ~value size | expiration time | value
+ * if value is tombstone
+ * key size | key | -timestamp
+ * Row format in batch: row size | row
+ * Range tombstone payload format: minimal int | from size | from | to size | to | timestamp
+ * A batch is a single record, so that it is replayed either as a whole or not at all.
+ * Concurrent appends are grouped: the first caller writes the whole pending group
+ * with a single write (and force) while the others wait for it.
+ */
+final class WriteAheadLog implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(WriteAheadLog.class);
+    private static final int HEADER_BYTES = Integer.BYTES * 2;
+    private static final int MIN_CHUNK_RECORDS = 1024;
+    private static final int RANGE_TOMBSTONE = Integer.MIN_VALUE;
+
+    private final Path path;
+    private final FileChannel fileChannel;
+    private final SyncPolicy syncPolicy;
+    private final Object lock = new Object();
+    private List<ByteBuffer> pending = new ArrayList<>();
+    private long enqueued;
+    private long written;
+    private boolean writing;
+    private IOException failure;
+    private volatile boolean dirty;
+
+    WriteAheadLog(@NotNull final Path path, @NotNull final SyncPolicy syncPolicy) throws IOException {
+        this.path = path;
+        this.syncPolicy = syncPolicy;
+        this.fileChannel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+    }
+
+    @NotNull
+    Path getPath() {
+        return path;
+    }
+
+    /**
+     * Appends the row to the log and returns when it is written according to the sync policy.
+     *
+     * @param row the row to append
+     * @throws IOException if an I/O error occurs while writing the group containing the row
+     */
+    void append(@NotNull final Row row) throws IOException {
+        appendRecord(encode(row));
+    }
+
+    /**
+     * Appends the rows to the log as a single record and returns when it is written according to the sync policy.
+     *
+     * @param rows the rows to append
+     * @throws IOException if an I/O error occurs while writing the group containing the rows
+     */
+    void append(@NotNull final List<Row> rows) throws IOException {
+        appendRecord(rows.size() == 1 ? encode(rows.get(0)) : encode(rows));
+    }
+
+    /**
+     * Appends the range tombstone to the log and returns when it is written according to the sync policy.
+     *
+     * @param tombstone the tombstone to append
+     * @throws IOException if an I/O error occurs while writing the group containing the tombstone
+     */
+    void append(@NotNull final RangeTombstone tombstone) throws IOException {
+        final ByteBuffer from = tombstone.getFrom();
+        final ByteBuffer to = tombstone.getTo();
+        final ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + Integer.BYTES + tombstone.getSizeBytes());
+        record.position(HEADER_BYTES);
+        record.putInt(RANGE_TOMBSTONE)
+                .putInt(from.remaining())
+                .put(from)
+                .putInt(to.remaining())
+                .put(to)
+                .putLong(tombstone.getTimestamp());
+        appendRecord(seal(record));
+    }
+
+    private void appendRecord(@NotNull final ByteBuffer record) throws IOException {
+        final List<ByteBuffer> group;
+        final long groupEnd;
+        synchronized (lock) {
+            pending.add(record);
+            final long ticket = ++enqueued;
+            try {
+                while (writing && written < ticket) {
+                    lock.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the log group");
+            }
+            if (failure != null) {
+                throw new IOException("Write-ahead log " + path + " is broken", failure);
+            }
+            if (written >= ticket) {
+                return;
+            }
+            writing = true;
+            group = pending;
+            groupEnd = enqueued;
+            pending = new ArrayList<>();
+        }
+        IOException error = null;
+        try {
+            writeGroup(group);
+        } catch (IOException e) {
+            error = e;
+        }
+        synchronized (lock) {
+            writing = false;
+            written = groupEnd;
+            if (error != null) {
+                failure = error;
+            }
+            lock.notifyAll();
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    private void writeGroup(@NotNull final List<ByteBuffer> group) throws IOException {
+        final ByteBuffer[] buffers = group.toArray(new ByteBuffer[0]);
+        long remaining = 0;
+        for (final ByteBuffer buffer : buffers) {
+            remaining += buffer.remaining();
+        }
+        while (remaining > 0) {
+            remaining -= fileChannel.write(buffers);
+        }
+        if (syncPolicy == SyncPolicy.ALWAYS) {
+            fileChannel.force(false);
+        } else {
+            dirty = true;
+        }
+    }
+
+    /**
+     * Forces written records to the storage device if there are any.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    void sync() throws IOException {
+        if (dirty) {
+            dirty = false;
+            fileChannel.force(false);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            try {
+                while (writing) {
+                    lock.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while closing the log");
+            }
+            fileChannel.close();
+        }
+    }
+
+    @NotNull
+    private static ByteBuffer encode(@NotNull final Row row) {
+        final ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + row.getSizeBytes());
+        record.position(HEADER_BYTES);
+        putRow(record, row);
+        return seal(record);
+    }
+
+    @NotNull
+    private static ByteBuffer encode(@NotNull final List<Row> rows) {
+        int payloadSize = Integer.BYTES;
+        for (final Row row : rows) {
+            payloadSize += Integer.BYTES + row.getSizeBytes();
+        }
+        final ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + payloadSize);
+        record.position(HEADER_BYTES);
+        record.putInt(-rows.size());
+        for (final Row row : rows) {
+            record.putInt(row.getSizeBytes());
+            putRow(record, row);
+        }
+        return seal(record);
+    }
+
+    private static void putRow(@NotNull final ByteBuffer record, @NotNull final Row row) {
+        final ByteBuffer key = row.getKey();
+        final Value value = row.getValue();
+        record.putInt(key.remaining())
+                .put(key);
+        if (value.isRemoved()) {
+            record.putLong(-value.getTimestamp());
+        } else if (value.getExpiresAt() == Value.NEVER) {
+            final ByteBuffer data = value.getData();
+            record.putLong(value.getTimestamp())
+                    .putInt(data.remaining())
+                    .put(data);
+        } else {
+            final ByteBuffer data = value.getData();
+            record.putLong(value.getTimestamp())
+                    .putInt(~data.remaining())
+                    .putLong(value.getExpiresAt())
+                    .put(data);
+        }
+    }
+
+    /**
+     * Writes the header of the record which payload is put.
+     */
+    @NotNull
+    private static ByteBuffer seal(@NotNull final ByteBuffer record) {
+        final int payloadSize = record.position() - HEADER_BYTES;
+        final CRC32C crc = new CRC32C();
+        crc.update(record.flip().position(HEADER_BYTES));
+        return record.putInt(0, payloadSize)
+                .putInt(Integer.BYTES, (int) crc.getValue())
+                .rewind();
+    }
+
+    /**
+     * Reads the rows and the range tombstones of the log and puts them to the memTables of the target.
+     * The log is replayed in chunks of records, so that only a chunk is decoded at a time.
+     * Records of a chunk are decoded and put in parallel, the memTable resolves them by timestamps.
+     * Concurrent appends may reorder the timestamps of adjacent records, so the target is offered to replace
+     * the memTable only between the chunks which all the following records are newer than.
+     * The log is truncated at the first incomplete or corrupted record which is the result
+     * of a crash in the middle of a write.
+     *
+     * @param path       the path of the log
+     * @param threads    the number of threads replaying records
+     * @param chunkBytes the size of the records replayed at once
+     * @param target     the receiver of the records
+     * @return the number of replayed records, counting the rows of batches
+     * @throws IOException if an I/O error occurs or the target fails to replace the memTable
+     */
+    static int replay(
+            @NotNull final Path path,
+            final int threads,
+            final long chunkBytes,
+            @NotNull final Target target) throws IOException {
+        final ByteBuffer buffer;
+        try (FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (fileChannel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Write-ahead log " + path + " is too large");
+            }
+            buffer = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size());
+        }
+        final int[] offsets = recordOffsets(buffer);
+        final int[] chunkStarts = chunkStarts(offsets, chunkBytes);
+        final int chunks = chunkStarts.length - 1;
+        final long[] minTimestamps = new long[chunks];
+        final long[] maxTimestamps = new long[chunks];
+        final AtomicInteger firstCorrupted = new AtomicInteger(offsets.length);
+        forEachChunk(chunks, Math.min(threads, chunks), (from, to) -> {
+            for (int chunk = from; chunk < to; chunk++) {
+                verify(buffer.duplicate(), offsets, chunkStarts[chunk], chunkStarts[chunk + 1],
+                        minTimestamps, maxTimestamps, chunk, firstCorrupted);
+            }
+        });
+        int valid = firstCorrupted.get();
+        // The oldest timestamp of the records following each chunk
+        final long[] followingTimestamps = new long[chunks];
+        long following = Long.MAX_VALUE;
+        for (int chunk = chunks - 1; chunk >= 0; chunk--) {
+            followingTimestamps[chunk] = following;
+            if (chunkStarts[chunk] < valid) {
+                following = Math.min(following, minTimestamps[chunk]);
+            }
+        }
+        int replayed = 0;
+        long replayedTimestamp = 0;
+        for (int chunk = 0; chunk < chunks && chunkStarts[chunk] < valid; chunk++) {
+            final int start = chunkStarts[chunk];
+            final int end = Math.min(chunkStarts[chunk + 1], valid);
+            replayed += replayChunk(buffer, offsets, start, end, threads, target.getMemTable(), firstCorrupted);
+            valid = firstCorrupted.get();
+            replayedTimestamp = Math.max(replayedTimestamp, maxTimestamps[chunk]);
+            if (replayedTimestamp < followingTimestamps[chunk]) {
+                target.boundary();
+            }
+        }
+        if (valid < offsets.length || endOf(buffer, offsets) < buffer.limit()) {
+            log.warn("Write-ahead log {} is truncated after {} records", path.getFileName(), valid);
+        }
+        return replayed;
+    }
+
+    /**
+     * Receives the records of the logs being replayed.
+     */
+    interface Target {
+        /**
+         * Returns the memTable which the following records are put to.
+         */
+        @NotNull
+        MemTable getMemTable();
+
+        /**
+         * Called when all the records put so far are older than the following ones,
+         * so that the memTable may be flushed and replaced without reordering the versions of a key.
+         *
+         * @throws IOException if an I/O error occurs while flushing the memTable
+         */
+        void boundary() throws IOException;
+    }
+
+    private interface Chunk {
+        void process(int from, int to);
+    }
+
+    private static void forEachChunk(final int count, final int chunks, @NotNull final Chunk chunk) throws IOException {
+        if (chunks <= 1) {
+            chunk.process(0, count);
+            return;
+        }
+        final ExecutorService executor = Executors.newFixedThreadPool(chunks);
+        try {
+            final List<Future<?>> futures = new ArrayList<>(chunks);
+            final int chunkSize = (count + chunks - 1) / chunks;
+            for (int from = 0; from < count; from += chunkSize) {
+                final int start = from;
+                final int end = Math.min(count, from + chunkSize);
+                futures.add(executor.submit(() -> chunk.process(start, end)));
+            }
+            for (final Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while replaying the log");
+        } catch (ExecutionException e) {
+            throw new IOException("Cannot replay the log", e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static int endOf(@NotNull final ByteBuffer buffer, @NotNull final int[] offsets) {
+        if (offsets.length == 0) {
+            return 0;
+        }
+        final int last = offsets[offsets.length - 1];
+        return last + HEADER_BYTES + buffer.getInt(last);
+    }
+
+    @NotNull
+    private static int[] recordOffsets(@NotNull final ByteBuffer buffer) {
+        int[] offsets = new int[1024];
+        int count = 0;
+        int offset = 0;
+        while (buffer.limit() - offset >= HEADER_BYTES) {
+            final int payloadSize = buffer.getInt(offset);
+            if (payloadSize <= 0 || payloadSize > buffer.limit() - offset - HEADER_BYTES) {
+                break;
+            }
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, count * 2);
+            }
+            offsets[count++] = offset;
+            offset += HEADER_BYTES + payloadSize;
+        }
+        return Arrays.copyOf(offsets, count);
+    }
+
+    /**
+     * Splits the records into chunks of about the given size and returns the indexes of their first records
+     * followed by the number of records.
+     */
+    @NotNull
+    private static int[] chunkStarts(@NotNull final int[] offsets, final long chunkBytes) {
+        int[] starts = new int[16];
+        int count = 0;
+        for (int i = 0; i < offsets.length; i++) {
+            if (count == 0 || offsets[i] - offsets[starts[count - 1]] >= chunkBytes) {
+                if (count == starts.length) {
+                    starts = Arrays.copyOf(starts, count * 2);
+                }
+                starts[count++] = i;
+            }
+        }
+        starts = Arrays.copyOf(starts, count + 1);
+        starts[count] = offsets.length;
+        return starts;
+    }
+
+    /**
+     * Verifies the checksums of the records of the chunk and finds the bounds of their timestamps
+     * without decoding them.
+     */
+    private static void verify(
+            @NotNull final ByteBuffer buffer,
+            @NotNull final int[] offsets,
+            final int from,
+            final int to,
+            @NotNull final long[] minTimestamps,
+            @NotNull final long[] maxTimestamps,
+            final int chunk,
+            @NotNull final AtomicInteger firstCorrupted) {
+        final CRC32C crc = new CRC32C();
+        final long[] bounds = {Long.MAX_VALUE, 0};
+        for (int i = from; i < to && i < firstCorrupted.get(); i++) {
+            final ByteBuffer payload = payload(buffer, offsets[i]);
+            crc.reset();
+            crc.update(payload.duplicate());
+            if ((int) crc.getValue() != buffer.getInt(offsets[i] + Integer.BYTES) || !timestamps(payload, bounds)) {
+                firstCorrupted.accumulateAndGet(i, Math::min);
+                break;
+            }
+        }
+        minTimestamps[chunk] = bounds[0];
+        maxTimestamps[chunk] = bounds[1];
+    }
+
+    @NotNull
+    private static ByteBuffer payload(@NotNull final ByteBuffer buffer, final int offset) {
+        return buffer.duplicate()
+                .position(offset + HEADER_BYTES)
+                .limit(offset + HEADER_BYTES + buffer.getInt(offset))
+                .slice();
+    }
+
+    /**
+     * Extends the bounds (min, max) by the timestamps of the record.
+     *
+     * @return false if the record is too short to hold them
+     */
+    private static boolean timestamps(@NotNull final ByteBuffer payload, @NotNull final long[] bounds) {
+        if (payload.limit() < Integer.BYTES) {
+            return false;
+        }
+        final int first = payload.getInt(0);
+        if (first == RANGE_TOMBSTONE) {
+            return payload.limit() >= Integer.BYTES * 3 + Long.BYTES
+                    && bound(payload.getLong(payload.limit() - Long.BYTES), bounds);
+        }
+        if (first >= 0) {
+            return bound(rowTimestamp(payload, 0, payload.limit()), bounds);
+        }
+        int offset = Integer.BYTES;
+        for (int i = 0; i < -first; i++) {
+            final int rowSize = offset <= payload.limit() - Integer.BYTES ? payload.getInt(offset) : -1;
+            if (rowSize < 0 || rowSize > payload.limit() - offset - Integer.BYTES
+                    || !bound(rowTimestamp(payload, offset + Integer.BYTES, rowSize), bounds)) {
+                return false;
+            }
+            offset += Integer.BYTES + rowSize;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the timestamp of the row or -1 if the row is too short to hold it.
+     */
+    private static long rowTimestamp(@NotNull final ByteBuffer payload, final int offset, final int size) {
+        if (size < Integer.BYTES + Long.BYTES) {
+            return -1;
+        }
+        final int keySize = payload.getInt(offset);
+        if (keySize < 0 || keySize > size - Integer.BYTES - Long.BYTES) {
+            return -1;
+        }
+        final long stored = payload.getLong(offset + Integer.BYTES + keySize);
+        // Tombstones store negated timestamps
+        return stored < 0 ? -stored : stored;
+    }
+
+    private static boolean bound(final long timestamp, @NotNull final long[] bounds) {
+        if (timestamp < 0) {
+            return false;
+        }
+        bounds[0] = Math.min(bounds[0], timestamp);
+        bounds[1] = Math.max(bounds[1], timestamp);
+        return true;
+    }
+
+    /**
+     * Decodes the verified records and puts them to the memTable.
+     *
+     * @return the number of the records put, counting the rows of batches
+     */
+    private static int replayChunk(
+            @NotNull final ByteBuffer buffer,
+            @NotNull final int[] offsets,
+            final int start,
+            final int end,
+            final int threads,
+            @NotNull final MemTable memTable,
+            @NotNull final AtomicInteger firstCorrupted) throws IOException {
+        final int count = end - start;
+        final Row[] rows = new Row[count];
+        final Row[][] batches = new Row[count][];
+        final RangeTombstone[] rangeTombstones = new RangeTombstone[count];
+        final int chunks = Math.max(1, Math.min(threads, count / MIN_CHUNK_RECORDS));
+        forEachChunk(count, chunks,
+                (from, to) -> decode(buffer.duplicate(), offsets, start, rows, batches, rangeTombstones, from, to,
+                        firstCorrupted));
+        final int valid = Math.min(count, firstCorrupted.get() - start);
+        forEachChunk(valid, chunks, (from, to) -> {
+            for (int i = from; i < to; i++) {
+                if (rows[i] != null) {
+                    memTable.upsert(rows[i]);
+                } else if (batches[i] != null) {
+                    for (final Row row : batches[i]) {
+                        memTable.upsert(row);
+                    }
+                } else {
+                    memTable.removeRange(rangeTombstones[i]);
+                }
+            }
+        });
+        int replayed = valid;
+        for (int i = 0; i < valid; i++) {
+            if (batches[i] != null) {
+                replayed += batches[i].length - 1;
+            }
+        }
+        return replayed;
+    }
+
+    /**
+     * Decodes the records from the index start + from to start + to, which is the index in the arrays plus start.
+     * The keys and the values are the slices of the log, they are copied by the memTables as needed.
+     */
+    private static void decode(
+            @NotNull final ByteBuffer buffer,
+            @NotNull final int[] offsets,
+            final int start,
+            @NotNull final Row[] rows,
+            @NotNull final Row[][] batches,
+            @NotNull final RangeTombstone[] rangeTombstones,
+            final int from,
+            final int to,
+            @NotNull final AtomicInteger firstCorrupted) {
+        for (int i = from; i < to && start + i < firstCorrupted.get(); i++) {
+            final ByteBuffer payload = payload(buffer, offsets[start + i]);
+            if (payload.getInt(0) == RANGE_TOMBSTONE) {
+                rangeTombstones[i] = decodeRangeTombstone(payload);
+            } else if (payload.getInt(0) < 0) {
+                batches[i] = decodeBatch(payload);
+            } else {
+                rows[i] = decodeRow(payload);
+            }
+            if (rows[i] == null && batches[i] == null && rangeTombstones[i] == null) {
+                firstCorrupted.accumulateAndGet(start + i, Math::min);
+                return;
+            }
+        }
+    }
+
+    @Nullable
+    private static RangeTombstone decodeRangeTombstone(@NotNull final ByteBuffer payload) {
+        payload.getInt();
+        final int fromSize = payload.getInt();
+        if (fromSize < 0 || fromSize > payload.remaining() - Integer.BYTES - Long.BYTES) {
+            return null;
+        }
+        final ByteBuffer from = slice(payload, fromSize);
+        final int toSize = payload.getInt();
+        if (toSize < 0 || toSize != payload.remaining() - Long.BYTES) {
+            return null;
+        }
+        final ByteBuffer to = slice(payload, toSize);
+        return new RangeTombstone(from, to, payload.getLong());
+    }
+
+    @Nullable
+    private static Row[] decodeBatch(@NotNull final ByteBuffer payload) {
+        final int count = -payload.getInt();
+        if (count > payload.remaining() / (Integer.BYTES * 2 + Long.BYTES)) {
+            return null;
+        }
+        final Row[] batch = new Row[count];
+        for (int i = 0; i < count; i++) {
+            final int rowSize = payload.remaining() >= Integer.BYTES ? payload.getInt() : -1;
+            if (rowSize < 0 || rowSize > payload.remaining()) {
+                return null;
+            }
+            batch[i] = decodeRow(payload.duplicate().limit(payload.position() + rowSize).slice());
+            if (batch[i] == null) {
+                return null;
+            }
+            payload.position(payload.position() + rowSize);
+        }
+        return payload.hasRemaining() ? null : batch;
+    }
+
+    @Nullable
+    private static Row decodeRow(@NotNull final ByteBuffer payload) {
+        final int keySize = payload.getInt();
+        if (keySize < 0 || keySize > payload.remaining() - Long.BYTES) {
+            return null;
+        }
+        final ByteBuffer key = slice(payload, keySize);
+        final long timestamp = payload.getLong();
+        if (timestamp < 0) {
+            return new Row(key, new Value(-timestamp, true, Value.EMPTY_BUFFER));
+        }
+        if (payload.remaining() < Integer.BYTES) {
+            return null;
+        }
+        final int storedSize = payload.getInt();
+        long expiresAt = Value.NEVER;
+        if (storedSize < 0) {
+            if (payload.remaining() < Long.BYTES) {
+                return null;
+            }
+            expiresAt = payload.getLong();
+        }
+        final int dataSize = storedSize < 0 ? ~storedSize : storedSize;
+        if (dataSize != payload.remaining()) {
+            return null;
+        }
+        return new Row(key, new Value(timestamp, false, slice(payload, dataSize), expiresAt));
+    }
+
+    @NotNull
+    private static ByteBuffer slice(@NotNull final ByteBuffer buffer, final int size) {
+        final ByteBuffer result = buffer.duplicate()
+                .limit(buffer.position() + size)
+                .slice()
+                .asReadOnlyBuffer();
+        buffer.position(buffer.position() + size);
+        return result;
+    }
+}
@@ -0,0 +1,70 @@
+package ru.mail.polis.vasekha;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Puts and removes which are applied by {@link MyDAO#write(WriteBatch)} all at once.
+ * Keys and values are stored by reference, the callers must not modify them until the batch is written.
+ * The batch is not thread-safe and may be reused after {@link #clear()}.
+ */
+public final class WriteBatch {
+    private final List<ByteBuffer> keys = new ArrayList<>();
+    private final List<ByteBuffer> values = new ArrayList<>();
+
+    /**
+     * Adds the put of the value, it overrides the previous operations of the batch with the same key.
+     */
+    @NotNull
+    public WriteBatch upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) {
+        keys.add(key);
+        values.add(value);
+        return this;
+    }
+
+    /**
+     * Adds the remove of the key, it overrides the previous operations of the batch with the same key.
+     */
+    @NotNull
+    public WriteBatch remove(@NotNull final ByteBuffer key) {
+        keys.add(key);
+        values.add(null);
+        return this;
+    }
+
+    public int size() {
+        return keys.size();
+    }
+
+    public boolean isEmpty() {
+        return keys.isEmpty();
+    }
+
+    public void clear() {
+        keys.clear();
+        values.clear();
+    }
+
+    /**
+     * Returns the rows of the operations with the consecutive timestamps in the order of addition.
+     *
+     * @param firstTimestamp the timestamp of the first operation
+     * @return the rows
+     */
+    @NotNull
+    List<Row> toRows(final long firstTimestamp) {
+        final List<Row> rows = new ArrayList<>(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            final ByteBuffer value = values.get(i);
+            rows.add(new Row(
+                    keys.get(i),
+                    value == null
+                            ? new Value(firstTimestamp + i, true, Value.EMPTY_BUFFER)
+                            : new Value(firstTimestamp + i, false, value)));
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,69 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.vasekha.BlockCache;
+import ru.mail.polis.vasekha.Config;
+import ru.mail.polis.vasekha.MyDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that compressed blocks are read through the shared {@link BlockCache}.
+ */
+class BlockCacheTest extends TestBase {
+    @Test
+    void sharedBudget(@TempDir File data) throws IOException {
+        final BlockCache cache = new BlockCache(64 * 1024);
+        final Config config = Config.builder()
+                .blockCache(cache)
+                .build();
+        final List<ByteBuffer> keys = new ArrayList<>();
+        try (DAO dao = new MyDAO(data, config)) {
+            for (int i = 0; i < 20_000; i++) {
+                final ByteBuffer key = ByteBuffer.wrap(String.format("key%08d", i).getBytes(UTF_8));
+                keys.add(key);
+                dao.upsert(key, value(i));
+            }
+        }
+
+        try (DAO dao = new MyDAO(data, config)) {
+            // Hot keys stay cached
+            for (int round = 0; round < 10; round++) {
+                for (int i = 0; i < 100; i++) {
+                    assertEquals(value(i), dao.get(keys.get(i)));
+                }
+            }
+            assertTrue(cache.getHitCount() > cache.getMissCount());
+
+            // Scans of all the blocks do not exceed the budget
+            for (int i = 0; i < keys.size(); i++) {
+                assertEquals(value(i), dao.get(keys.get(i)));
+            }
+            assertTrue(cache.getSizeBytes() <= cache.getCapacityBytes());
+        }
+    }
+
+    @Test
+    void sharedByDefault() {
+        final BlockCache shared = Config.builder().build().getBlockCache();
+        assertNotNull(shared);
+        assertSame(shared, Config.builder().flushThresholdBytes(1024).build().getBlockCache());
+        assertNull(Config.builder().blockCache(null).build().getBlockCache());
+    }
+
+    private static ByteBuffer value(final int i) {
+        return ByteBuffer.wrap(String.format("value of the key %08d", i).getBytes(UTF_8));
+    }
+}
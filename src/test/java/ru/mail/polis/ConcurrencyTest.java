@@ -0,0 +1,163 @@
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.vasekha.Config;
+import ru.mail.polis.vasekha.MemTableMode;
+import ru.mail.polis.vasekha.MyDAO;
+import ru.mail.polis.vasekha.WriteBatch;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that {@link DAO} may be used by several threads while memTables are flushed in background.
+ */
+class ConcurrencyTest extends TestBase {
+    private static final int THREADS = 4;
+    private static final int KEYS_PER_THREAD = 20_000;
+    private static final int BATCH_KEYS = 16;
+    private static final int BATCHES = 20_000;
+
+    @NotNull
+    private static ByteBuffer key(final int thread, final int i) {
+        return ByteBuffer.allocate(Integer.BYTES * 2)
+                .putInt(thread)
+                .putInt(i)
+                .rewind();
+    }
+
+    @Test
+    void concurrentWrites(@TempDir File data) throws Exception {
+        final ByteBuffer value = randomBuffer(256);
+        try (DAO dao = DAOFactory.create(data)) {
+            final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+            final Collection<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                final int thread = t;
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < KEYS_PER_THREAD; i++) {
+                        dao.upsert(key(thread, i), value);
+                        assertEquals(value, dao.get(key(thread, i)));
+                    }
+                    return null;
+                }));
+            }
+            await(futures);
+            executor.shutdown();
+
+            checkAll(dao, value);
+        }
+
+        try (DAO dao = DAOFactory.create(data)) {
+            checkAll(dao, value);
+        }
+    }
+
+    @Test
+    void batchesOnHeap(@TempDir File data) throws Exception {
+        batches(data, MemTableMode.HEAP);
+    }
+
+    @Test
+    void batchesOffHeap(@TempDir File data) throws Exception {
+        batches(data, MemTableMode.OFF_HEAP);
+    }
+
+    /**
+     * Rewrites all the keys with each batch in the order of the keys, so that the readers going in the same order
+     * would see a later value before an earlier one if they saw a part of a batch.
+     */
+    private static void batches(
+            @NotNull final File data,
+            @NotNull final MemTableMode memTableMode) throws Exception {
+        final Config config = Config.builder()
+                .flushThresholdBytes(64 * 1024)
+                .memTableMode(memTableMode)
+                .build();
+        try (MyDAO dao = new MyDAO(data, config)) {
+            write(dao, 0);
+            final AtomicBoolean done = new AtomicBoolean();
+            final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+            final Collection<Future<?>> futures = new ArrayList<>();
+            futures.add(executor.submit(() -> {
+                try {
+                    for (int version = 1; version <= BATCHES; version++) {
+                        write(dao, version);
+                    }
+                } finally {
+                    done.set(true);
+                }
+                return null;
+            }));
+            for (int t = 1; t < THREADS; t++) {
+                final boolean iterate = t % 2 == 0;
+                futures.add(executor.submit(() -> {
+                    while (!done.get()) {
+                        int version = 0;
+                        final Iterator<Record> iterator = dao.iterator(ByteBuffer.allocate(0));
+                        for (int i = 0; i < BATCH_KEYS; i++) {
+                            final ByteBuffer value = iterate ? iterator.next().getValue() : dao.get(key(0, i));
+                            assertTrue(value.getInt(0) >= version);
+                            version = value.getInt(0);
+                        }
+                    }
+                    return null;
+                }));
+            }
+            await(futures);
+            executor.shutdown();
+        }
+    }
+
+    private static void write(@NotNull final MyDAO dao, final int version) throws IOException {
+        final WriteBatch batch = new WriteBatch();
+        for (int i = 0; i < BATCH_KEYS; i++) {
+            batch.upsert(key(0, i), ByteBuffer.allocate(Integer.BYTES).putInt(0, version));
+        }
+        dao.write(batch);
+    }
+
+    private static void await(@NotNull final Collection<Future<?>> futures) throws InterruptedException {
+        for (final Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                throw new AssertionError(e.getCause());
+            }
+        }
+    }
+
+    private static void checkAll(@NotNull final DAO dao, @NotNull final ByteBuffer value) throws IOException {
+        final NavigableSet<ByteBuffer> keys = new TreeSet<>();
+        for (int t = 0; t < THREADS; t++) {
+            for (int i = 0; i < KEYS_PER_THREAD; i++) {
+                keys.add(key(t, i));
+            }
+        }
+        final Iterator<Record> iterator = dao.iterator(ByteBuffer.allocate(0));
+        for (final ByteBuffer key : keys) {
+            assertTrue(iterator.hasNext());
+            final Record record = iterator.next();
+            assertEquals(key, record.getKey());
+            assertEquals(value, record.getValue());
+        }
+        assertFalse(iterator.hasNext());
+    }
+}
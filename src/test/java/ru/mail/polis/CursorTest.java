@@ -0,0 +1,79 @@
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.vasekha.Config;
+import ru.mail.polis.vasekha.MyDAO;
+import ru.mail.polis.vasekha.RecordCursor;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that {@link MyDAO#cursor(ByteBuffer, ByteBuffer)} returns the same records as the iterators
+ * of the memTable and several SSTables.
+ */
+class CursorTest extends TestBase {
+    private static final Config CONFIG = Config.builder()
+            .flushThresholdBytes(64 * 1024)
+            .build();
+
+    @Test
+    void scan(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> entries = new TreeMap<>();
+        try (MyDAO dao = new MyDAO(data, CONFIG)) {
+            for (int round = 0; round < 3; round++) {
+                for (int i = round; i < 2_000; i += round + 1) {
+                    final ByteBuffer value = randomBuffer(64);
+                    dao.upsert(key(i), value);
+                    entries.put(key(i), value);
+                }
+            }
+            for (int i = 0; i < 2_000; i += 7) {
+                dao.remove(key(i));
+                entries.remove(key(i));
+            }
+            dao.removeRange(key(500), key(600));
+            entries.subMap(key(500), key(600)).clear();
+
+            check(dao, entries, key(0), null);
+            check(dao, entries, key(250), key(1_250));
+            dao.compact();
+            check(dao, entries, key(0), null);
+        }
+    }
+
+    private static void check(
+            @NotNull final MyDAO dao,
+            @NotNull final NavigableMap<ByteBuffer, ByteBuffer> entries,
+            @NotNull final ByteBuffer from,
+            final ByteBuffer to) {
+        final Map<ByteBuffer, ByteBuffer> expected = to == null ? entries.tailMap(from) : entries.subMap(from, to);
+        try (RecordCursor cursor = dao.cursor(from, to)) {
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+                assertTrue(cursor.advance());
+                assertEquals(entry.getKey(), cursor.key());
+                assertEquals(entry.getValue(), cursor.value());
+                final Record record = cursor.record();
+                assertEquals(entry.getKey(), record.getKey());
+                assertEquals(entry.getValue(), record.getValue());
+            }
+            assertFalse(cursor.advance());
+        }
+    }
+
+    @NotNull
+    private static ByteBuffer key(final int index) {
+        return ByteBuffer.wrap(String.format("key%05d", index).getBytes(UTF_8));
+    }
+}
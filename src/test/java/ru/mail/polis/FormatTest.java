@@ -0,0 +1,332 @@
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.vasekha.BlockCodec;
+import ru.mail.polis.vasekha.Config;
+import ru.mail.polis.vasekha.CorruptedBlockException;
+import ru.mail.polis.vasekha.DeflateCodec;
+import ru.mail.polis.vasekha.LzCodec;
+import ru.mail.polis.vasekha.MyDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks the on-disk format of SSTables.
+ */
+class FormatTest extends TestBase {
+    @Test
+    void smallBlocks(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> entries = new TreeMap<>();
+        for (int i = 0; i < 5_000; i++) {
+            entries.put(randomKey(), randomBuffer(1 + i % 300));
+        }
+        final Config config = Config.builder()
+                .blockSizeBytes(512)
+                .build();
+        try (DAO dao = new MyDAO(data, config)) {
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : entries.entrySet()) {
+                dao.upsert(entry.getKey(), entry.getValue());
+            }
+        }
+        try (DAO dao = new MyDAO(data, config)) {
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : entries.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+            assertThrows(NoSuchElementException.class, () -> dao.get(randomKey()));
+
+            // Seek to the keys inside and between blocks
+            for (int i = 0; i < 100; i++) {
+                final ByteBuffer from = randomKey();
+                check(dao.iterator(from), entries.tailMap(from, true));
+            }
+            check(dao.iterator(ByteBuffer.allocate(0)), entries);
+        }
+    }
+
+    @Test
+    void segments(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> entries = new TreeMap<>();
+        for (int i = 0; i < 2_000; i++) {
+            entries.put(randomKey(), randomBuffer(1 + i % 500));
+        }
+        // Blocks, index and filter cross the borders of segments
+        final Config config = Config.builder()
+                .mappedSegmentBytes(1000)
+                .build();
+        try (DAO dao = new MyDAO(data, config)) {
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : entries.entrySet()) {
+                dao.upsert(entry.getKey(), entry.getValue());
+            }
+        }
+        try (DAO dao = new MyDAO(data, config)) {
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : entries.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+            check(dao.iterator(ByteBuffer.allocate(0)), entries);
+        }
+    }
+
+    @Test
+    void deflate(@TempDir File data) throws IOException {
+        compressed(data, new DeflateCodec());
+    }
+
+    @Test
+    void lz(@TempDir File data) throws IOException {
+        compressed(data, new LzCodec());
+    }
+
+    private static void compressed(
+            @NotNull final File data,
+            @NotNull final BlockCodec codec) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> entries = new TreeMap<>();
+        long logicalSize = 0;
+        for (int i = 0; i < 2_000; i++) {
+            final ByteBuffer key = ByteBuffer.wrap(String.format("tenant/42/entity/%08d", i).getBytes(UTF_8));
+            final ByteBuffer value = ByteBuffer.wrap(
+                    String.format("{\"id\":%d,\"name\":\"entity %d\",\"tags\":[\"a\",\"b\"],\"active\":true}", i, i)
+                            .getBytes(UTF_8));
+            entries.put(key, value);
+            logicalSize += key.remaining() + value.remaining();
+        }
+        final Config config = Config.builder()
+                .blockCodec(codec)
+                .build();
+        try (DAO dao = new MyDAO(data, config)) {
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : entries.entrySet()) {
+                dao.upsert(entry.getKey(), entry.getValue());
+            }
+        }
+        assertTrue(Files.directorySize(data) < logicalSize / 2);
+
+        // The codec is recorded in the file
+        try (DAO dao = DAOFactory.create(data)) {
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : entries.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+            check(dao.iterator(ByteBuffer.allocate(0)), entries);
+        }
+    }
+
+    @Test
+    void sharedPrefixes(@TempDir File data) throws IOException {
+        final String prefix = "tenant/0000000042/entity/0000000007/timestamp/";
+        final NavigableMap<ByteBuffer, ByteBuffer> entries = new TreeMap<>();
+        long logicalSize = 0;
+        for (int i = 0; i < 5_000; i++) {
+            final ByteBuffer key = ByteBuffer.wrap((prefix + (1_500_000_000L + i * 7L)).getBytes(UTF_8));
+            final ByteBuffer value = randomBuffer(8);
+            entries.put(key, value);
+            logicalSize += key.remaining() + value.remaining();
+        }
+        final Config config = Config.builder()
+                .blockCodec(null)
+                .build();
+        try (DAO dao = new MyDAO(data, config)) {
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : entries.entrySet()) {
+                dao.upsert(entry.getKey(), entry.getValue());
+            }
+        }
+        assertTrue(Files.directorySize(data) < logicalSize / 2);
+
+        try (DAO dao = new MyDAO(data, config)) {
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : entries.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+            final ByteBuffer from = ByteBuffer.wrap((prefix + "15000001").getBytes(UTF_8));
+            check(dao.iterator(from), entries.tailMap(from, true));
+        }
+    }
+
+    @Test
+    void keyPrefixes(@TempDir File data) throws IOException {
+        // Keys of the extreme bytes which often share or differ only in the padding of their 8-byte prefixes
+        final byte[] alphabet = {Byte.MIN_VALUE, -1, 0, 1, Byte.MAX_VALUE};
+        final NavigableMap<ByteBuffer, ByteBuffer> entries = new TreeMap<>();
+        for (int i = 0; i < 3_000; i++) {
+            entries.put(prefixKey(alphabet), randomBuffer(16));
+        }
+        final Config config = Config.builder()
+                .blockSizeBytes(128)
+                .build();
+        try (DAO dao = new MyDAO(data, config)) {
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : entries.entrySet()) {
+                dao.upsert(entry.getKey(), entry.getValue());
+            }
+        }
+        try (DAO dao = new MyDAO(data, config)) {
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : entries.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+            for (int i = 0; i < 200; i++) {
+                final ByteBuffer from = prefixKey(alphabet);
+                if (!entries.containsKey(from)) {
+                    assertThrows(NoSuchElementException.class, () -> dao.get(from));
+                }
+                check(dao.iterator(from), entries.tailMap(from, true));
+            }
+        }
+    }
+
+    @NotNull
+    private static ByteBuffer prefixKey(@NotNull final byte[] alphabet) {
+        final byte[] key = new byte[ThreadLocalRandom.current().nextInt(13)];
+        for (int i = 0; i < key.length; i++) {
+            key[i] = alphabet[ThreadLocalRandom.current().nextInt(alphabet.length)];
+        }
+        return ByteBuffer.wrap(key);
+    }
+
+    @Test
+    void checksums(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> entries = new TreeMap<>();
+        for (int i = 0; i < 1_000; i++) {
+            entries.put(randomKey(), randomBuffer(100));
+        }
+        final Config config = Config.builder()
+                .blockCodec(null)
+                .build();
+        try (DAO dao = new MyDAO(data, config)) {
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : entries.entrySet()) {
+                dao.upsert(entry.getKey(), entry.getValue());
+            }
+        }
+        final File[] files = data.listFiles((dir, name) -> name.endsWith(".db"));
+        assertEquals(1, files.length);
+        final File file = files[0];
+
+        // Flip a byte of a row in the middle of the data blocks
+        final long offset = file.length() / 4;
+        flip(file, offset);
+        try (DAO dao = new MyDAO(data, config)) {
+            final Iterator<Record> iterator = dao.iterator(ByteBuffer.allocate(0));
+            final CorruptedBlockException e = assertThrows(CorruptedBlockException.class, () -> {
+                while (iterator.hasNext()) {
+                    iterator.next();
+                }
+            });
+            assertEquals(file.toPath(), e.getPath());
+            assertTrue(e.getOffset() <= offset);
+        }
+
+        // The last key is covered by the checksum in the footer, which is verified on first access
+        flip(file, file.length() - 73);
+        try (DAO dao = new MyDAO(data, config)) {
+            assertFalse(dao.iterator(ByteBuffer.allocate(0)).hasNext());
+        }
+    }
+
+    @Test
+    void quarantinesCorruptedTable(@TempDir File data) throws IOException {
+        final Config config = Config.builder()
+                .blockCodec(null)
+                .build();
+        final NavigableMap<ByteBuffer, ByteBuffer> corrupted = new TreeMap<>();
+        final NavigableMap<ByteBuffer, ByteBuffer> intact = new TreeMap<>();
+        for (int i = 0; i < 1_000; i++) {
+            corrupted.put(randomKey(), randomBuffer(100));
+            intact.put(randomKey(), randomBuffer(100));
+        }
+        try (DAO dao = new MyDAO(data, config)) {
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : corrupted.entrySet()) {
+                dao.upsert(entry.getKey(), entry.getValue());
+            }
+        }
+        final File[] files = data.listFiles((dir, name) -> name.endsWith(".db"));
+        assertEquals(1, files.length);
+        flip(files[0], files[0].length() / 4);
+        try (DAO dao = new MyDAO(data, config)) {
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : intact.entrySet()) {
+                dao.upsert(entry.getKey(), entry.getValue());
+            }
+            assertThrows(CorruptedBlockException.class, dao::compact);
+            assertEquals(0, data.list((dir, name) -> name.endsWith(".tmp")).length);
+            assertTrue(new File(data, files[0].getName() + ".corrupted").exists());
+
+            // The quarantined table is not picked again
+            dao.compact();
+            dao.compact();
+            assertEquals(0, data.list((dir, name) -> name.endsWith(".tmp")).length);
+            assertEquals(1, data.list((dir, name) -> name.endsWith(".db")).length);
+            check(dao.iterator(ByteBuffer.allocate(0)), intact);
+        }
+        try (DAO dao = new MyDAO(data, config)) {
+            check(dao.iterator(ByteBuffer.allocate(0)), intact);
+        }
+    }
+
+    private static void flip(@NotNull final File file, final long offset) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            final ByteBuffer buffer = ByteBuffer.allocate(1);
+            channel.read(buffer, offset);
+            buffer.put(0, (byte) ~buffer.get(0));
+            channel.write(buffer.rewind(), offset);
+        }
+    }
+
+    @Test
+    void readsVersion1(@TempDir File data) throws IOException {
+        final ByteBuffer removed = ByteBuffer.wrap(new byte[]{1});
+        final ByteBuffer key = ByteBuffer.wrap(new byte[]{2});
+        final ByteBuffer value = ByteBuffer.wrap(new byte[]{3, 4});
+        // Rows | offsets | rows count
+        final ByteBuffer file = ByteBuffer.allocate(64)
+                .putInt(1).put(removed.duplicate()).putLong(-1L)
+                .putInt(1).put(key.duplicate()).putLong(1L).putInt(2).put(value.duplicate())
+                .putInt(0)
+                .putInt(Integer.BYTES + 1 + Long.BYTES)
+                .putInt(2)
+                .flip();
+        try (FileChannel channel = FileChannel.open(
+                new File(data, "1.db").toPath(),
+                StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE)) {
+            channel.write(file);
+        }
+
+        try (DAO dao = DAOFactory.create(data)) {
+            assertThrows(NoSuchElementException.class, () -> dao.get(removed));
+            assertEquals(value, dao.get(key));
+            final Iterator<Record> iterator = dao.iterator(ByteBuffer.allocate(0));
+            assertEquals(Record.of(key, value), iterator.next());
+            assertFalse(iterator.hasNext());
+        }
+
+        // Version 1 files are mapped as a single segment whatever the segment size is
+        try (DAO dao = new MyDAO(data, Config.builder().mappedSegmentBytes(16).build())) {
+            assertEquals(value, dao.get(key));
+            final Iterator<Record> iterator = dao.iterator(ByteBuffer.allocate(0));
+            assertEquals(Record.of(key, value), iterator.next());
+            assertFalse(iterator.hasNext());
+        }
+    }
+
+    private static void check(
+            @NotNull final Iterator<Record> iterator,
+            @NotNull final NavigableMap<ByteBuffer, ByteBuffer> expected) {
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+            final Record record = iterator.next();
+            assertEquals(entry.getKey(), record.getKey());
+            assertEquals(entry.getValue(), record.getValue());
+        }
+        assertFalse(iterator.hasNext());
+    }
+}
@@ -0,0 +1,129 @@
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.vasekha.Config;
+import ru.mail.polis.vasekha.MyDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that {@link DAO} keeps the data while compactions move it through several levels.
+ */
+class LeveledCompactionTest extends TestBase {
+    private static final Config CONFIG = Config.builder()
+            .flushThresholdBytes(64 * 1024)
+            .targetFileSizeBytes(32 * 1024)
+            .levelZeroCompactionTrigger(2)
+            .levelBaseBytes(128 * 1024)
+            .levelSizeMultiplier(4)
+            .build();
+
+    @Test
+    void manyLevels(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> entries = new TreeMap<>();
+        final List<ByteBuffer> keys = new ArrayList<>();
+        for (int round = 0; round < 5; round++) {
+            try (DAO dao = new MyDAO(data, CONFIG)) {
+                for (int i = 0; i < 3_000; i++) {
+                    final ByteBuffer key;
+                    if (keys.isEmpty() || ThreadLocalRandom.current().nextBoolean()) {
+                        key = randomKey();
+                        keys.add(key);
+                    } else {
+                        key = keys.get(ThreadLocalRandom.current().nextInt(keys.size()));
+                    }
+                    if (i % 7 == 0) {
+                        dao.remove(key);
+                        entries.remove(key);
+                    } else {
+                        final ByteBuffer value = randomBuffer(64);
+                        dao.upsert(key, value);
+                        entries.put(key, value);
+                    }
+                }
+                dao.compact();
+                check(dao, entries);
+            }
+        }
+        try (DAO dao = new MyDAO(data, CONFIG)) {
+            check(dao, entries);
+            for (final ByteBuffer key : keys) {
+                if (!entries.containsKey(key)) {
+                    assertThrows(NoSuchElementException.class, () -> dao.get(key));
+                }
+            }
+        }
+    }
+
+    @Test
+    void writesDuringCompaction(@TempDir File data) throws Exception {
+        final Config config = Config.builder()
+                .compactionRateBytesPerSecond(256 * 1024)
+                .build();
+        final NavigableMap<ByteBuffer, ByteBuffer> entries = new TreeMap<>();
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (DAO dao = new MyDAO(data, config)) {
+            for (int i = 0; i < 2_000; i++) {
+                final ByteBuffer key = randomKey();
+                final ByteBuffer value = randomBuffer(256);
+                dao.upsert(key, value);
+                entries.put(key, value);
+            }
+            final Future<?> compaction = executor.submit(() -> {
+                dao.compact();
+                return null;
+            });
+            // Rate limited compaction takes about 2 seconds, writes and reads must not wait for it
+            int written = 0;
+            while (!compaction.isDone()) {
+                final ByteBuffer key = randomKey();
+                final ByteBuffer value = randomBuffer(16);
+                dao.upsert(key, value);
+                entries.put(key, value);
+                assertEquals(value, dao.get(key));
+                written++;
+            }
+            compaction.get();
+            assertTrue(written > 1);
+            check(dao, entries);
+        } finally {
+            executor.shutdown();
+        }
+        try (DAO dao = new MyDAO(data, config)) {
+            check(dao, entries);
+        }
+    }
+
+    private static void check(
+            @NotNull final DAO dao,
+            @NotNull final NavigableMap<ByteBuffer, ByteBuffer> entries) throws IOException {
+        final Iterator<Record> iterator = dao.iterator(ByteBuffer.allocate(0));
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : entries.entrySet()) {
+            final Record record = iterator.next();
+            assertEquals(entry.getKey(), record.getKey());
+            assertEquals(entry.getValue(), record.getValue());
+            assertEquals(entry.getValue(), dao.get(entry.getKey()));
+        }
+        assertFalse(iterator.hasNext());
+    }
+}
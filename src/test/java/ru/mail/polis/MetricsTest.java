@@ -0,0 +1,114 @@
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.vasekha.Config;
+import ru.mail.polis.vasekha.HistogramSnapshot;
+import ru.mail.polis.vasekha.MetricsSnapshot;
+import ru.mail.polis.vasekha.MyDAO;
+import ru.mail.polis.vasekha.RecordCursor;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Set;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks the metrics of {@link MyDAO} and their export through the platform MBean server.
+ */
+class MetricsTest extends TestBase {
+    private static final int KEYS = 1_000;
+
+    @Test
+    void operations(@TempDir File data) throws IOException, JMException {
+        final Config config = Config.builder()
+                .flushThresholdBytes(16 * 1024)
+                .build();
+        final ObjectName pattern = new ObjectName(
+                "ru.mail.polis.vasekha:type=MyDAO,folder=" + ObjectName.quote(data.getAbsolutePath()) + ",*");
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try (MyDAO dao = new MyDAO(data, config)) {
+            final Set<ObjectName> names = server.queryNames(pattern, null);
+            assertEquals(1, names.size());
+            final ObjectName name = names.iterator().next();
+            for (int i = 0; i < KEYS; i++) {
+                dao.upsert(key(i), randomValue());
+            }
+            dao.remove(key(0));
+            for (int i = 1; i < KEYS; i++) {
+                dao.get(key(i));
+            }
+            try (RecordCursor cursor = dao.cursor(ByteBuffer.allocate(0), null)) {
+                assertTrue(cursor.advance());
+            }
+            dao.compact();
+
+            final MetricsSnapshot metrics = dao.getMetrics();
+            assertEquals(KEYS, metrics.getUpsertLatency().getCount());
+            assertEquals(1, metrics.getRemoveLatency().getCount());
+            assertEquals(KEYS - 1, metrics.getGetLatency().getCount());
+            assertEquals(KEYS - 1, metrics.getTablesPerGet().getCount());
+            assertTrue(metrics.getTablesPerGet().getMax() > 1);
+            assertEquals(1, metrics.getIteratorLatency().getCount());
+            assertTrue(metrics.getFlushLatency().getCount() > 1);
+            assertTrue(metrics.getFlushBytes() > 0);
+            assertTrue(metrics.getCompactionLatency().getCount() > 0);
+            assertTrue(metrics.getCompactionBytesIn() >= metrics.getCompactionBytesOut());
+            assertTrue(metrics.getCompactionBytesOut() > 0);
+            assertEquals(1, metrics.getSSTableCount());
+            assertEquals(0, metrics.getMemTableBytes());
+            checkPercentiles(metrics.getUpsertLatency());
+            checkPercentiles(metrics.getGetLatency());
+
+            final CompositeData exported = (CompositeData) server.getAttribute(name, "Metrics");
+            assertEquals(1, exported.get("SSTableCount"));
+            final CompositeData upsert = (CompositeData) exported.get("upsertLatency");
+            assertEquals((long) KEYS, upsert.get("count"));
+        }
+        assertTrue(server.queryNames(pattern, null).isEmpty());
+    }
+
+    @Test
+    void beanPerInstance(@TempDir File data) throws IOException, JMException {
+        final ObjectName pattern = new ObjectName(
+                "ru.mail.polis.vasekha:type=MyDAO,folder=" + ObjectName.quote(data.getAbsolutePath()) + ",*");
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        final MyDAO crashed = new MyDAO(data, Config.builder().build());
+        crashed.upsert(key(0), randomValue());
+        final Set<ObjectName> stale = server.queryNames(pattern, null);
+        assertEquals(1, stale.size());
+        try (MyDAO dao = new MyDAO(data, Config.builder().build())) {
+            assertEquals(2, server.queryNames(pattern, null).size());
+            dao.upsert(key(1), randomValue());
+        }
+        // The bean of the DAO which was not closed is kept
+        assertEquals(stale, server.queryNames(pattern, null));
+        for (final ObjectName name : stale) {
+            server.unregisterMBean(name);
+        }
+    }
+
+    @NotNull
+    private static ByteBuffer key(final int index) {
+        return ByteBuffer.wrap(String.format("key%05d", index).getBytes(UTF_8));
+    }
+
+    private static void checkPercentiles(@NotNull final HistogramSnapshot histogram) {
+        assertTrue(histogram.getP50() > 0);
+        assertTrue(histogram.getP50() <= histogram.getP90());
+        assertTrue(histogram.getP90() <= histogram.getP99());
+        assertTrue(histogram.getP99() <= histogram.getP999());
+        assertTrue(histogram.getP999() <= histogram.getMax());
+        assertTrue(histogram.getMean() <= histogram.getMax());
+    }
+}
@@ -0,0 +1,83 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.vasekha.Config;
+import ru.mail.polis.vasekha.MemTableMode;
+import ru.mail.polis.vasekha.MyDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Checks {@link DAO} which keeps memTables in direct memory.
+ */
+class OffHeapTest extends TestBase {
+    @Test
+    void copiesBuffers(@TempDir File data) throws IOException {
+        try (DAO dao = create(data)) {
+            final ByteBuffer key = randomKey();
+            final ByteBuffer value = randomValue();
+            final ByteBuffer expected = ByteBuffer.allocate(value.remaining()).put(value.duplicate()).rewind();
+            dao.upsert(key, value);
+
+            // The caller reuses its buffer
+            value.put(0, (byte) (value.get(0) + 1));
+            assertEquals(expected, dao.get(key));
+        }
+    }
+
+    @Test
+    void scanAfterFlushes(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> entries = new TreeMap<>();
+        try (DAO dao = create(data)) {
+            for (int i = 0; i < 10_000; i++) {
+                final ByteBuffer key = randomBuffer(8);
+                final ByteBuffer value = randomBuffer(128);
+                dao.upsert(key, value);
+                entries.put(key, value);
+                if (i % 10 == 0) {
+                    dao.remove(key);
+                    entries.remove(key);
+                }
+            }
+            check(dao, entries);
+        }
+        try (DAO dao = create(data)) {
+            check(dao, entries);
+            assertThrows(NoSuchElementException.class, () -> dao.get(randomBuffer(9)));
+        }
+    }
+
+    private static void check(
+            final DAO dao,
+            final NavigableMap<ByteBuffer, ByteBuffer> entries) throws IOException {
+        final Iterator<Record> iterator = dao.iterator(ByteBuffer.allocate(0));
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : entries.entrySet()) {
+            final Record record = iterator.next();
+            assertEquals(entry.getKey(), record.getKey());
+            assertEquals(entry.getValue(), record.getValue());
+        }
+        assertFalse(iterator.hasNext());
+    }
+
+    private static DAO create(final File data) throws IOException {
+        return new MyDAO(
+                data,
+                Config.builder()
+                        .memTableMode(MemTableMode.OFF_HEAP)
+                        .flushThresholdBytes(256 * 1024)
+                        .slabSizeBytes(64 * 1024)
+                        .build());
+    }
+}
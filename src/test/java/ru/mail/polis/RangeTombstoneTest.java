@@ -0,0 +1,92 @@
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.vasekha.Config;
+import ru.mail.polis.vasekha.MyDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Checks that {@link MyDAO#removeRange(ByteBuffer, ByteBuffer)} hides the older rows of the range
+ * through flushes, compactions and recovery.
+ */
+class RangeTombstoneTest extends TestBase {
+    private static final Config CONFIG = Config.builder()
+            .flushThresholdBytes(64 * 1024)
+            .build();
+
+    @Test
+    void removeRange(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> entries = new TreeMap<>();
+        try (MyDAO dao = new MyDAO(data, CONFIG)) {
+            for (int i = 0; i < 1_000; i++) {
+                final ByteBuffer value = randomBuffer(128);
+                dao.upsert(key(i), value);
+                entries.put(key(i), value);
+            }
+            dao.removeRange(key(100), key(900));
+            entries.subMap(key(100), key(900)).clear();
+            final ByteBuffer value = randomBuffer(128);
+            dao.upsert(key(500), value);
+            entries.put(key(500), value);
+            check(dao, entries);
+        }
+
+        // Recovered from the log
+        final MyDAO crashed = new MyDAO(data, CONFIG);
+        check(crashed, entries);
+        crashed.removeRange(key(0), key(50));
+        entries.subMap(key(0), key(50)).clear();
+
+        try (MyDAO dao = new MyDAO(data, CONFIG)) {
+            check(dao, entries);
+            dao.compact();
+            check(dao, entries);
+            final ByteBuffer value = randomBuffer(128);
+            dao.upsert(key(10), value);
+            entries.put(key(10), value);
+        }
+        try (MyDAO dao = new MyDAO(data, CONFIG)) {
+            check(dao, entries);
+        }
+    }
+
+    @NotNull
+    private static ByteBuffer key(final int index) {
+        return ByteBuffer.wrap(String.format("key%05d", index).getBytes(UTF_8));
+    }
+
+    private static void check(
+            @NotNull final DAO dao,
+            @NotNull final NavigableMap<ByteBuffer, ByteBuffer> entries) throws IOException {
+        final Iterator<Record> iterator = dao.iterator(ByteBuffer.allocate(0));
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : entries.entrySet()) {
+            final Record record = iterator.next();
+            assertEquals(entry.getKey(), record.getKey());
+            assertEquals(entry.getValue(), record.getValue());
+        }
+        assertFalse(iterator.hasNext());
+        for (int i = 0; i < 1_000; i++) {
+            final ByteBuffer key = key(i);
+            if (entries.containsKey(key)) {
+                assertEquals(entries.get(key), dao.get(key));
+            } else {
+                assertThrows(NoSuchElementException.class, () -> dao.get(key));
+            }
+        }
+    }
+}
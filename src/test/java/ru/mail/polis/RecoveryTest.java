@@ -0,0 +1,219 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.vasekha.Config;
+import ru.mail.polis.vasekha.MyDAO;
+import ru.mail.polis.vasekha.WriteBatch;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that the data written before a crash (i.e. without {@link DAO#close()}) is not lost.
+ */
+class RecoveryTest extends TestBase {
+    @Test
+    void unclosed(@TempDir File data) throws IOException {
+        final Map<ByteBuffer, ByteBuffer> entries = new HashMap<>();
+        final DAO crashed = DAOFactory.create(data);
+        for (int i = 0; i < 10_000; i++) {
+            final ByteBuffer key = randomKey();
+            final ByteBuffer value = randomBuffer(64);
+            crashed.upsert(key, value);
+            entries.put(key, value);
+        }
+        final ByteBuffer removed = entries.keySet().iterator().next();
+        crashed.remove(removed);
+        entries.remove(removed);
+
+        try (DAO dao = DAOFactory.create(data)) {
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : entries.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+            assertThrows(NoSuchElementException.class, () -> dao.get(removed));
+        }
+    }
+
+    @Test
+    void tornTail(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKey();
+        final ByteBuffer value = randomValue();
+        final DAO crashed = DAOFactory.create(data);
+        crashed.upsert(key, value);
+
+        // Emulate a record which is written partially
+        final File[] logs = data.listFiles((dir, name) -> name.endsWith(".wal"));
+        assertNotNull(logs);
+        assertEquals(1, logs.length);
+        try (FileChannel channel = FileChannel.open(logs[0].toPath(), StandardOpenOption.APPEND)) {
+            channel.write(ByteBuffer.allocate(Integer.BYTES).putInt(0, 1024));
+        }
+
+        try (DAO dao = DAOFactory.create(data)) {
+            assertEquals(value, dao.get(key));
+        }
+    }
+
+    @Test
+    void batch(@TempDir File data) throws IOException {
+        final Map<ByteBuffer, ByteBuffer> entries = new HashMap<>();
+        final MyDAO crashed = new MyDAO(data, Config.builder().build());
+        final WriteBatch batch = new WriteBatch();
+        for (int i = 0; i < 1_000; i++) {
+            final ByteBuffer key = randomKey();
+            final ByteBuffer value = randomValue();
+            batch.upsert(key, randomValue())
+                    .remove(key)
+                    .upsert(key, value);
+            entries.put(key, value);
+        }
+        crashed.write(batch);
+
+        try (DAO dao = DAOFactory.create(data)) {
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : entries.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+        }
+    }
+
+    @Test
+    void tornBatch(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKey();
+        final ByteBuffer value = randomValue();
+        final MyDAO crashed = new MyDAO(data, Config.builder().build());
+        crashed.upsert(key, value);
+        final WriteBatch batch = new WriteBatch();
+        final List<ByteBuffer> batchKeys = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            final ByteBuffer batchKey = randomKey();
+            batch.upsert(batchKey, randomValue());
+            batchKeys.add(batchKey);
+        }
+        batch.remove(key);
+        crashed.write(batch);
+        assertThrows(NoSuchElementException.class, () -> crashed.get(key));
+
+        // Emulate a batch which is written partially
+        final File[] logs = data.listFiles((dir, name) -> name.endsWith(".wal"));
+        assertNotNull(logs);
+        assertEquals(1, logs.length);
+        try (FileChannel channel = FileChannel.open(logs[0].toPath(), StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 1);
+        }
+
+        try (DAO dao = DAOFactory.create(data)) {
+            assertEquals(value, dao.get(key));
+            for (final ByteBuffer batchKey : batchKeys) {
+                assertThrows(NoSuchElementException.class, () -> dao.get(batchKey));
+            }
+        }
+    }
+
+    @Test
+    void manyTables(@TempDir File data) throws IOException {
+        final Map<ByteBuffer, ByteBuffer> entries = new HashMap<>();
+        final Config config = Config.builder()
+                .flushThresholdBytes(16 * 1024)
+                .levelZeroCompactionTrigger(1_000)
+                .openThreads(4)
+                .build();
+        try (DAO dao = new MyDAO(data, config)) {
+            for (int i = 0; i < 10_000; i++) {
+                final ByteBuffer key = randomKey();
+                final ByteBuffer value = randomBuffer(64);
+                dao.upsert(key, value);
+                entries.put(key, value);
+            }
+        }
+        final File[] tables = data.listFiles((dir, name) -> name.endsWith(".db"));
+        assertNotNull(tables);
+        assertTrue(tables.length > 10);
+
+        // The tables are still being loaded while the DAO is written and read
+        try (DAO dao = new MyDAO(data, config)) {
+            final ByteBuffer key = randomKey();
+            final ByteBuffer value = randomValue();
+            dao.upsert(key, value);
+            entries.put(key, value);
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : entries.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+        }
+    }
+
+    @Test
+    void largeLog(@TempDir File data) throws IOException {
+        final Map<ByteBuffer, ByteBuffer> entries = new HashMap<>();
+        final List<ByteBuffer> keys = new ArrayList<>();
+        for (int i = 0; i < 1_000; i++) {
+            keys.add(randomKey());
+        }
+        final MyDAO crashed = new MyDAO(data, Config.builder().build());
+        for (int i = 0; i < 10_000; i++) {
+            final ByteBuffer key = keys.get(i % keys.size());
+            final ByteBuffer value = randomBuffer(128);
+            crashed.upsert(key, value);
+            entries.put(key, value);
+        }
+
+        // The log is replayed into several tables of the smaller threshold
+        final Config config = Config.builder()
+                .flushThresholdBytes(64 * 1024)
+                .levelZeroCompactionTrigger(1_000)
+                .build();
+        try (DAO dao = new MyDAO(data, config)) {
+            final File[] tables = data.listFiles((dir, name) -> name.endsWith(".db"));
+            assertNotNull(tables);
+            assertTrue(tables.length > 1);
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : entries.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+        }
+    }
+
+    @Test
+    void leftovers(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKey();
+        final ByteBuffer value = randomValue();
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.upsert(key, value);
+        }
+        final File[] tables = data.listFiles((dir, name) -> name.endsWith(".db"));
+        assertNotNull(tables);
+        assertEquals(1, tables.length);
+        final byte[] stale = Files.readAllBytes(tables[0].toPath());
+
+        // Emulate a compaction which removed the key but crashed before deleting its input
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.remove(key);
+            dao.compact();
+        }
+        final Path input = new File(data, "1.db").toPath();
+        Files.write(input, stale);
+        final Path output = new File(data, "2.tmp").toPath();
+        Files.write(output, new byte[]{1, 2, 3});
+
+        try (DAO dao = DAOFactory.create(data)) {
+            assertThrows(NoSuchElementException.class, () -> dao.get(key));
+        }
+        assertFalse(Files.exists(input));
+        assertFalse(Files.exists(output));
+    }
+}
@@ -0,0 +1,116 @@
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.vasekha.CompactionStyle;
+import ru.mail.polis.vasekha.Config;
+import ru.mail.polis.vasekha.MetricsSnapshot;
+import ru.mail.polis.vasekha.MyDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that {@link DAO} keeps the data while background compactions merge tables of similar size.
+ */
+class SizeTieredCompactionTest extends TestBase {
+    private static final Config CONFIG = Config.builder()
+            .flushThresholdBytes(32 * 1024)
+            .compactionStyle(CompactionStyle.SIZE_TIERED)
+            .sizeTieredMinThreshold(2)
+            .sizeTieredMinBytes(16 * 1024)
+            .build();
+
+    @Test
+    void overwrites(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> entries = new TreeMap<>();
+        final List<ByteBuffer> keys = new ArrayList<>();
+        for (int round = 0; round < 3; round++) {
+            try (DAO dao = new MyDAO(data, CONFIG)) {
+                for (int i = 0; i < 5_000; i++) {
+                    final ByteBuffer key;
+                    if (keys.isEmpty() || ThreadLocalRandom.current().nextBoolean()) {
+                        key = randomKey();
+                        keys.add(key);
+                    } else {
+                        key = keys.get(ThreadLocalRandom.current().nextInt(keys.size()));
+                    }
+                    if (i % 5 == 0) {
+                        dao.remove(key);
+                        entries.remove(key);
+                    } else {
+                        final ByteBuffer value = randomBuffer(32);
+                        dao.upsert(key, value);
+                        entries.put(key, value);
+                    }
+                }
+            }
+        }
+        try (DAO dao = new MyDAO(data, CONFIG)) {
+            check(dao, entries);
+            for (final ByteBuffer key : keys) {
+                if (entries.containsKey(key)) {
+                    assertEquals(entries.get(key), dao.get(key));
+                } else {
+                    assertThrows(NoSuchElementException.class, () -> dao.get(key));
+                }
+            }
+        }
+    }
+
+    @Test
+    void splitsLargeOutputs(@TempDir File data) throws IOException {
+        final Config config = Config.builder()
+                .flushThresholdBytes(32 * 1024)
+                .compactionStyle(CompactionStyle.SIZE_TIERED)
+                .sizeTieredMinThreshold(2)
+                .sizeTieredMinBytes(16 * 1024)
+                .sizeTieredMaxFileBytes(64 * 1024)
+                .build();
+        final NavigableMap<ByteBuffer, ByteBuffer> entries = new TreeMap<>();
+        try (MyDAO dao = new MyDAO(data, config)) {
+            for (int i = 0; i < 10_000; i++) {
+                final ByteBuffer key = randomKey();
+                final ByteBuffer value = randomBuffer(32);
+                dao.upsert(key, value);
+                entries.put(key, value);
+            }
+            dao.compact();
+            final MetricsSnapshot metrics = dao.getMetrics();
+            // Every table but the last one of the split output is full
+            assertTrue(metrics.getSSTableCount() > 1);
+            assertTrue(metrics.getSSTableBytes() >= (metrics.getSSTableCount() - 1) * 64 * 1024);
+            check(dao, entries);
+        }
+        try (DAO dao = new MyDAO(data, config)) {
+            check(dao, entries);
+        }
+    }
+
+    private static void check(
+            @NotNull final DAO dao,
+            @NotNull final NavigableMap<ByteBuffer, ByteBuffer> entries) throws IOException {
+        final Iterator<Record> iterator = dao.iterator(ByteBuffer.allocate(0));
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : entries.entrySet()) {
+            final Record record = iterator.next();
+            assertEquals(entry.getKey(), record.getKey());
+            assertEquals(entry.getValue(), record.getValue());
+        }
+        assertFalse(iterator.hasNext());
+    }
+}
@@ -0,0 +1,165 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.vasekha.CloseableIterator;
+import ru.mail.polis.vasekha.Config;
+import ru.mail.polis.vasekha.MyDAO;
+import ru.mail.polis.vasekha.Snapshot;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that snapshots and iterators are not affected by the following writes and compactions.
+ */
+class SnapshotTest extends TestBase {
+    private static final Config CONFIG = Config.builder()
+            .flushThresholdBytes(64 * 1024)
+            .build();
+
+    @Test
+    void isolation(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> entries = new TreeMap<>();
+        try (MyDAO dao = new MyDAO(data, CONFIG)) {
+            for (int i = 0; i < 1_000; i++) {
+                final ByteBuffer key = randomKey();
+                final ByteBuffer value = randomValue();
+                dao.upsert(key, value);
+                entries.put(key, value);
+            }
+            try (Snapshot snapshot = dao.snapshot()) {
+                for (final ByteBuffer key : entries.keySet()) {
+                    dao.remove(key);
+                }
+                final ByteBuffer added = randomKey();
+                dao.upsert(added, randomValue());
+                dao.compact();
+
+                for (final Map.Entry<ByteBuffer, ByteBuffer> entry : entries.entrySet()) {
+                    assertEquals(entry.getValue(), snapshot.get(entry.getKey()));
+                }
+                assertThrows(NoSuchElementException.class, () -> snapshot.get(added));
+                check(snapshot.iterator(ByteBuffer.allocate(0)), entries);
+                try (CloseableIterator<Record> iterator = dao.iterator(ByteBuffer.allocate(0))) {
+                    assertEquals(added, iterator.next().getKey());
+                    assertFalse(iterator.hasNext());
+                }
+            }
+        }
+    }
+
+    @Test
+    void boundedFlushQueue(@TempDir File data) throws IOException {
+        final Config config = Config.builder()
+                .flushThresholdBytes(64 * 1024)
+                .maxFlushingMemTables(1)
+                .build();
+        try (MyDAO dao = new MyDAO(data, config)) {
+            for (int i = 0; i < 100; i++) {
+                final ByteBuffer key = randomKey();
+                final ByteBuffer value = randomValue();
+                dao.upsert(key, value);
+                try (Snapshot snapshot = dao.snapshot()) {
+                    assertTrue(dao.getMetrics().getFlushingMemTableCount() <= 1);
+                    assertEquals(value, snapshot.get(key));
+                }
+            }
+        }
+    }
+
+    @Test
+    void iteratorHoldsTables(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> entries = new TreeMap<>();
+        try (MyDAO dao = new MyDAO(data, CONFIG)) {
+            for (int i = 0; i < 1_000; i++) {
+                final ByteBuffer key = randomKey();
+                final ByteBuffer value = randomValue();
+                dao.upsert(key, value);
+                entries.put(key, value);
+            }
+            dao.compact();
+            final String[] before = tables(data);
+            try (CloseableIterator<Record> iterator = dao.iterator(ByteBuffer.allocate(0))) {
+                for (final ByteBuffer key : entries.keySet()) {
+                    dao.upsert(key, randomValue());
+                }
+                dao.compact();
+                for (final String table : before) {
+                    assertTrue(new File(data, table).exists());
+                }
+                check(iterator, entries);
+            }
+            for (final String table : before) {
+                assertFalse(new File(data, table).exists());
+            }
+        }
+    }
+
+    @Test
+    void abandonedIteratorReleasesTables(@TempDir File data) throws IOException, InterruptedException {
+        final NavigableMap<ByteBuffer, ByteBuffer> entries = new TreeMap<>();
+        try (MyDAO dao = new MyDAO(data, CONFIG)) {
+            for (int i = 0; i < 1_000; i++) {
+                final ByteBuffer key = randomKey();
+                final ByteBuffer value = randomValue();
+                dao.upsert(key, value);
+                entries.put(key, value);
+            }
+            dao.compact();
+            final String[] before = tables(data);
+            readFirst(dao);
+            for (final ByteBuffer key : entries.keySet()) {
+                dao.upsert(key, randomValue());
+            }
+            dao.compact();
+            for (int attempt = 0; attempt < 100 && new File(data, before[0]).exists(); attempt++) {
+                System.gc();
+                Thread.sleep(50);
+            }
+            for (final String table : before) {
+                assertFalse(new File(data, table).exists());
+            }
+        }
+    }
+
+    private static void readFirst(final DAO dao) throws IOException {
+        // The iterator is neither exhausted nor closed
+        final Iterator<Record> iterator = dao.iterator(ByteBuffer.allocate(0));
+        assertTrue(iterator.hasNext());
+        assertNotNull(iterator.next());
+    }
+
+    private static String[] tables(final File data) {
+        final String[] tables = data.list((dir, name) -> name.endsWith(".db"));
+        assertNotNull(tables);
+        Arrays.sort(tables);
+        return tables;
+    }
+
+    private static void check(
+            final CloseableIterator<Record> iterator,
+            final NavigableMap<ByteBuffer, ByteBuffer> entries) {
+        try (iterator) {
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : entries.entrySet()) {
+                final Record record = iterator.next();
+                assertEquals(entry.getKey(), record.getKey());
+                assertEquals(entry.getValue(), record.getValue());
+            }
+            assertFalse(iterator.hasNext());
+        }
+    }
+}
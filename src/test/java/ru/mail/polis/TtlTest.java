@@ -0,0 +1,154 @@
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.vasekha.CloseableIterator;
+import ru.mail.polis.vasekha.Config;
+import ru.mail.polis.vasekha.MemTableMode;
+import ru.mail.polis.vasekha.MyDAO;
+import ru.mail.polis.vasekha.Snapshot;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Checks that the values written by {@link MyDAO#upsert(ByteBuffer, ByteBuffer, long)} disappear
+ * when they expire and do not uncover their older versions through flushes, compactions and recovery.
+ */
+class TtlTest extends TestBase {
+    private static final long TTL_MILLIS = 500;
+    private static final int KEYS = 1_000;
+
+    @Test
+    void heap(@TempDir File data) throws IOException, InterruptedException {
+        expire(data, MemTableMode.HEAP);
+    }
+
+    @Test
+    void offHeap(@TempDir File data) throws IOException, InterruptedException {
+        expire(data, MemTableMode.OFF_HEAP);
+    }
+
+    @Test
+    void longTimeToLive(@TempDir File data) throws IOException {
+        final ByteBuffer value = randomValue();
+        try (MyDAO dao = new MyDAO(data, Config.builder().build())) {
+            assertThrows(IllegalArgumentException.class, () -> dao.upsert(key(0), value, -1));
+            dao.upsert(key(0), value, Long.MAX_VALUE);
+            dao.upsert(key(1), value, Long.MAX_VALUE - 1);
+            assertEquals(value, dao.get(key(0)));
+            assertEquals(value, dao.get(key(1)));
+            dao.compact();
+            assertEquals(value, dao.get(key(0)));
+        }
+        try (MyDAO dao = new MyDAO(data, Config.builder().build())) {
+            assertEquals(value, dao.get(key(0)));
+            assertEquals(value, dao.get(key(1)));
+        }
+    }
+
+    @Test
+    void snapshot(@TempDir File data) throws IOException, InterruptedException {
+        try (MyDAO dao = new MyDAO(data, Config.builder().build())) {
+            final ByteBuffer value = randomValue();
+            dao.upsert(key(0), value, TTL_MILLIS);
+            try (Snapshot snapshot = dao.snapshot()) {
+                Thread.sleep(TTL_MILLIS * 2);
+                assertThrows(NoSuchElementException.class, () -> dao.get(key(0)));
+                // The view keeps the values which were alive when it was taken
+                assertEquals(value, snapshot.get(key(0)));
+                try (CloseableIterator<Record> iterator = snapshot.iterator(ByteBuffer.allocate(0))) {
+                    assertEquals(value, iterator.next().getValue());
+                    assertFalse(iterator.hasNext());
+                }
+            }
+        }
+    }
+
+    private static void expire(
+            @NotNull final File data,
+            @NotNull final MemTableMode memTableMode) throws IOException, InterruptedException {
+        final Config config = Config.builder()
+                .flushThresholdBytes(64 * 1024)
+                .memTableMode(memTableMode)
+                .build();
+        final NavigableMap<ByteBuffer, ByteBuffer> entries = new TreeMap<>();
+        try (MyDAO dao = new MyDAO(data, config)) {
+            assertThrows(IllegalArgumentException.class, () -> dao.upsert(key(0), randomValue(), 0));
+            for (int i = 0; i < KEYS; i++) {
+                final ByteBuffer value = randomBuffer(128);
+                dao.upsert(key(i), value);
+                entries.put(key(i), value);
+            }
+            dao.compact();
+            for (int i = 0; i < KEYS; i += 2) {
+                final ByteBuffer value = randomBuffer(128);
+                dao.upsert(key(i), value, TTL_MILLIS);
+                entries.put(key(i), value);
+            }
+            for (int i = 1; i < KEYS; i += 4) {
+                final ByteBuffer value = randomBuffer(128);
+                dao.upsert(key(i), value, 3_600_000);
+                entries.put(key(i), value);
+            }
+            check(dao, entries);
+        }
+
+        // Recovered from the log
+        final MyDAO crashed = new MyDAO(data, config);
+        final ByteBuffer value = randomBuffer(128);
+        crashed.upsert(key(KEYS), value, TTL_MILLIS);
+        entries.put(key(KEYS), value);
+        check(crashed, entries);
+
+        Thread.sleep(TTL_MILLIS * 2);
+        for (int i = 0; i <= KEYS; i += 2) {
+            entries.remove(key(i));
+        }
+        try (MyDAO dao = new MyDAO(data, config)) {
+            check(dao, entries);
+            dao.compact();
+            check(dao, entries);
+        }
+        try (MyDAO dao = new MyDAO(data, config)) {
+            check(dao, entries);
+        }
+    }
+
+    @NotNull
+    private static ByteBuffer key(final int index) {
+        return ByteBuffer.wrap(String.format("key%05d", index).getBytes(UTF_8));
+    }
+
+    private static void check(
+            @NotNull final DAO dao,
+            @NotNull final NavigableMap<ByteBuffer, ByteBuffer> entries) throws IOException {
+        final Iterator<Record> iterator = dao.iterator(ByteBuffer.allocate(0));
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : entries.entrySet()) {
+            final Record record = iterator.next();
+            assertEquals(entry.getKey(), record.getKey());
+            assertEquals(entry.getValue(), record.getValue());
+        }
+        assertFalse(iterator.hasNext());
+        for (int i = 0; i <= KEYS; i++) {
+            final ByteBuffer key = key(i);
+            if (entries.containsKey(key)) {
+                assertEquals(entries.get(key), dao.get(key));
+            } else {
+                assertThrows(NoSuchElementException.class, () -> dao.get(key));
+            }
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package ru.mail.polis.vasekha;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.DAO;
+import ru.mail.polis.Record;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks {@link BloomFilter} on its own and the tables written without it.
+ */
+class BloomFilterTest {
+    private static final int KEYS = 10_000;
+
+    @Test
+    void noFalseNegatives() {
+        final List<ByteBuffer> keys = randomKeys(KEYS);
+        // Exact, folded and exceeded estimates
+        for (final long expectedKeys : new long[]{KEYS, KEYS * 100L, KEYS / 10}) {
+            final BloomFilter filter = build(keys, expectedKeys, 10);
+            for (final ByteBuffer key : keys) {
+                assertTrue(filter.mightContain(key));
+            }
+        }
+    }
+
+    @Test
+    void bitsPerKey() {
+        final List<ByteBuffer> keys = randomKeys(KEYS);
+        for (final int bitsPerKey : new int[]{1, 4, 10, 16}) {
+            final long bitsCount = (long) KEYS * bitsPerKey;
+            final BloomFilter exact = build(keys, KEYS, bitsPerKey);
+            assertTrue(exact.getBitsCount() >= bitsCount);
+            assertTrue(exact.getBitsCount() <= bitsCount + bitsCount / 8 + Long.SIZE);
+            final BloomFilter folded = build(keys, KEYS * 100L, bitsPerKey);
+            assertTrue(folded.getBitsCount() >= bitsCount);
+            assertTrue(folded.getBitsCount() < bitsCount * 2);
+        }
+    }
+
+    @Test
+    void falsePositiveRate() {
+        final BloomFilter filter = build(randomKeys(KEYS), KEYS, 10);
+        final int probes = 100_000;
+        int positives = 0;
+        for (final ByteBuffer key : randomKeys(probes)) {
+            if (filter.mightContain(key)) {
+                positives++;
+            }
+        }
+        // About 0.8% for 10 bits per key
+        assertTrue(positives < probes * 0.02, "False positives: " + positives);
+    }
+
+    @Test
+    void tablesWithoutFilter(@TempDir File data) throws IOException {
+        final Config noFilter = Config.builder()
+                .flushThresholdBytes(64 * 1024)
+                .bloomBitsPerKey(0)
+                .build();
+        final NavigableMap<ByteBuffer, ByteBuffer> entries = new TreeMap<>();
+        try (DAO dao = new MyDAO(data, noFilter)) {
+            for (final ByteBuffer key : randomKeys(KEYS)) {
+                final ByteBuffer value = randomBuffer(16);
+                dao.upsert(key, value);
+                entries.put(key, value);
+            }
+        }
+        final Config config = Config.builder()
+                .flushThresholdBytes(64 * 1024)
+                .build();
+        try (DAO dao = new MyDAO(data, config)) {
+            check(dao, entries);
+            assertThrows(NoSuchElementException.class, () -> dao.get(randomBuffer(16)));
+            // The outputs get the filter sized by the files of the inputs
+            dao.compact();
+            check(dao, entries);
+        }
+    }
+
+    @NotNull
+    private static BloomFilter build(
+            @NotNull final List<ByteBuffer> keys,
+            final long expectedKeys,
+            final int bitsPerKey) {
+        final BloomFilter.Builder builder = new BloomFilter.Builder(expectedKeys, bitsPerKey);
+        for (final ByteBuffer key : keys) {
+            builder.add(key);
+        }
+        return BloomFilter.read(builder.build());
+    }
+
+    private static void check(
+            @NotNull final DAO dao,
+            @NotNull final NavigableMap<ByteBuffer, ByteBuffer> entries) throws IOException {
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : entries.entrySet()) {
+            assertEquals(entry.getValue(), dao.get(entry.getKey()));
+        }
+        final Iterator<Record> iterator = dao.iterator(ByteBuffer.allocate(0));
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : entries.entrySet()) {
+            final Record record = iterator.next();
+            assertEquals(entry.getKey(), record.getKey());
+            assertEquals(entry.getValue(), record.getValue());
+        }
+        assertFalse(iterator.hasNext());
+    }
+
+    @NotNull
+    private static List<ByteBuffer> randomKeys(final int count) {
+        final List<ByteBuffer> result = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            result.add(randomBuffer(16));
+        }
+        return result;
+    }
+
+    @NotNull
+    private static ByteBuffer randomBuffer(final int length) {
+        final byte[] result = new byte[length];
+        ThreadLocalRandom.current().nextBytes(result);
+        return ByteBuffer.wrap(result);
+    }
+}
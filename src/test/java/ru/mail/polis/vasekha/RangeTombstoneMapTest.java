@@ -0,0 +1,72 @@
+package ru.mail.polis.vasekha;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that {@link RangeTombstoneMap} splits the tombstones as {@link RangeTombstones#of} does.
+ */
+class RangeTombstoneMapTest {
+    // Keys are compared as signed bytes, so they stay below 128
+    private static final int KEYS = 100;
+
+    @Test
+    void overlapping() {
+        final RangeTombstoneMap map = new RangeTombstoneMap();
+        final List<RangeTombstone> added = new ArrayList<>();
+        long timestamp = 0;
+        for (int i = 0; i < 500; i++) {
+            final int from = ThreadLocalRandom.current().nextInt(KEYS);
+            final int to = from + 1 + ThreadLocalRandom.current().nextInt(KEYS / 10);
+            // Replayed tombstones may come in any order of timestamps
+            timestamp += 1 + ThreadLocalRandom.current().nextInt(3);
+            final long tombstoneTimestamp = ThreadLocalRandom.current().nextBoolean() ? timestamp : timestamp / 2 + 1;
+            final RangeTombstone tombstone = new RangeTombstone(key(from), key(to), tombstoneTimestamp);
+            map.add(tombstone);
+            added.add(tombstone);
+            if (i % 50 == 0) {
+                check(map, RangeTombstones.of(added));
+            }
+        }
+        check(map, RangeTombstones.of(added));
+    }
+
+    @Test
+    void snapshotPerChange() {
+        final RangeTombstoneMap map = new RangeTombstoneMap();
+        assertTrue(map.snapshot().isEmpty());
+        map.add(new RangeTombstone(key(1), key(5), 1));
+        final RangeTombstones first = map.snapshot();
+        assertSame(first, map.snapshot());
+        map.add(new RangeTombstone(key(3), key(8), 2));
+        final RangeTombstones second = map.snapshot();
+        assertEquals(1, second.getTimestamp(key(2)));
+        assertEquals(2, second.getTimestamp(key(5)));
+        assertEquals(0, second.getTimestamp(key(8)));
+        assertEquals(0, first.getTimestamp(key(5)));
+    }
+
+    private static void check(@NotNull final RangeTombstoneMap map, @NotNull final RangeTombstones expected) {
+        final RangeTombstones snapshot = map.snapshot();
+        for (int i = 0; i < Byte.MAX_VALUE; i++) {
+            final ByteBuffer key = key(i);
+            assertEquals(expected.getTimestamp(key), map.getTimestamp(key));
+            assertEquals(expected.getTimestamp(key), snapshot.getTimestamp(key));
+        }
+        assertEquals(expected.getSizeBytes(), snapshot.getSizeBytes());
+    }
+
+    @NotNull
+    private static ByteBuffer key(final int index) {
+        return ByteBuffer.allocate(Integer.BYTES).putInt(0, index);
+    }
+}